@@ -0,0 +1,92 @@
+import java.util.*;
+
+// **********************************************************************
+// The Cache class models one level-1 cache for the timing model of
+// MipsSim (see Pipeline): its size, line size and associativity come
+// from a spec "SIZE:LINE:WAYS" in bytes, bytes and lines per set, so
+// 4096:16:1 is a direct-mapped 4K cache with 16-byte lines.  Each set
+// keeps its lines in least-recently-used order; a miss replaces the
+// least recently used line.  Stores allocate lines like loads (a
+// write-back, write-allocate cache), and only hits and misses are
+// counted: the time a miss takes is up to the pipeline.
+// **********************************************************************
+
+public class Cache {
+    private String name;
+    private int lineBits;
+    private int sets;
+    private int ways;
+    // by set, the tags of its lines, most recently used first; -1 is empty
+    private int[][] tags;
+
+    long accesses;
+    long misses;
+
+    /**
+     * Make a cache called name ("icache" or "dcache") from the given spec.
+     * Prints an error and exits if the spec is not three powers of two
+     * that fit together.
+     */
+    public Cache(String name, String spec) {
+        this.name = name;
+        String[] parts = spec.split(":");
+        int size = 0, line = 0;
+        try {
+            if (parts.length == 3) {
+                size = Integer.parseInt(parts[0]);
+                line = Integer.parseInt(parts[1]);
+                ways = Integer.parseInt(parts[2]);
+            }
+        } catch (NumberFormatException ex) {
+            size = 0;
+        }
+        if (!powerOfTwo(size) || !powerOfTwo(line) || !powerOfTwo(ways) ||
+            line < 4 || size < line * ways) {
+            System.err.println("bad " + name + " spec " + spec +
+                               " (want SIZE:LINE:WAYS, powers of two)");
+            System.exit(-1);
+        }
+        lineBits = Integer.numberOfTrailingZeros(line);
+        sets = size / line / ways;
+        tags = new int[sets][ways];
+        for (int[] set : tags)
+            Arrays.fill(set, -1);
+    }
+
+    private static boolean powerOfTwo(int n) {
+        return n > 0 && (n & (n - 1)) == 0;
+    }
+
+    /**
+     * Look up the given address, bringing its line in on a miss.
+     * Returns true on a hit.
+     */
+    public boolean access(int addr) {
+        accesses++;
+        int block = addr >>> lineBits;
+        int[] set = tags[block & (sets - 1)];
+        int tag = block >>> Integer.numberOfTrailingZeros(sets);
+        int k = 0;
+        while (k < ways - 1 && set[k] != tag)
+            k++;
+        boolean hit = set[k] == tag;
+        if (!hit)
+            misses++;
+        // move the line to the front (on a miss k is the LRU line)
+        for (; k > 0; k--)
+            set[k] = set[k - 1];
+        set[0] = tag;
+        return hit;
+    }
+
+    /**
+     * Describe the configuration, e.g. "icache 4096 bytes, 16-byte lines,
+     * direct mapped".
+     */
+    public String describe() {
+        int size = sets * ways << lineBits;
+        return name + " " + size + " bytes, " + (1 << lineBits) +
+            "-byte lines, " +
+            (ways == 1 ? "direct mapped" : ways + "-way set associative");
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.*;
+
+// **********************************************************************
+// The CallGraph class is the call graph of a program: its functions, the
+// functions each one calls, the number of call sites of each, and the
+// globals each one may write, itself or through the functions it calls.
+// It is an analysis kept by the PassManager, built when a pass first
+// asks for it and built again after a pass changes the program.
+// **********************************************************************
+
+public class CallGraph {
+    // every function, by its symbol, in source order
+    private Map<SemSym, FnDeclNode> fns =
+        new LinkedHashMap<SemSym, FnDeclNode>();
+    // the functions called by each function
+    private Map<SemSym, Set<SemSym>> callees =
+        new HashMap<SemSym, Set<SemSym>>();
+    // the number of call sites of each function
+    private Map<SemSym, Integer> sites = new HashMap<SemSym, Integer>();
+    // the globals each function may write, through its calls too
+    private Map<SemSym, Set<SemSym>> writes =
+        new HashMap<SemSym, Set<SemSym>>();
+
+    public CallGraph(ProgramNode program) {
+        for (ASTnode decl : program.kids().get(0).kids()) {
+            if (decl instanceof FnDeclNode) {
+                FnDeclNode fn = (FnDeclNode)decl;
+                fns.put(fn.sym(), fn);
+            }
+        }
+        for (FnDeclNode fn : fns.values()) {
+            Set<SemSym> called = new LinkedHashSet<SemSym>();
+            Set<SemSym> written = new HashSet<SemSym>();
+            for (ASTnode node : fn.walk()) {
+                SemSym target = target(node);
+                if (target != null && target.isGlobal()) {
+                    written.add(target);
+                }
+                if (!(node instanceof CallExpNode)) {
+                    continue;
+                }
+                SemSym callee = ((CallExpNode)node).callee();
+                called.add(callee);
+                Integer n = sites.get(callee);
+                sites.put(callee, n == null ? 1 : n + 1);
+            }
+            callees.put(fn.sym(), called);
+            writes.put(fn.sym(), written);
+        }
+        // a function writes what its callees write, round and round until
+        // recursive calls add nothing more
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FnDeclNode fn : fns.values()) {
+                Set<SemSym> written = writes.get(fn.sym());
+                for (SemSym callee : callees(fn.sym())) {
+                    Set<SemSym> more = writes.get(callee);
+                    if (more != null && written.addAll(more)) {
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the variable written by the given node if it is an
+     * assignment, ++, -- or cin, or null if it is none of these.  A store
+     * into a field writes the struct variable left of the first dot.
+     */
+    public static SemSym target(ASTnode node) {
+        if (!(node instanceof AssignNode || node instanceof ReadStmtNode ||
+              node instanceof PostIncStmtNode ||
+              node instanceof PostDecStmtNode)) {
+            return null;
+        }
+        ASTnode target = node.kids().get(0);
+        if (target instanceof DotAccessExpNode) {
+            target = ((DotAccessExpNode)target).root();
+        }
+        return ((IdNode)target).sym();
+    }
+
+    /**
+     * Return the functions of the program, in source order.
+     */
+    public Collection<FnDeclNode> functions() {
+        return fns.values();
+    }
+
+    /**
+     * Return the declaration of the function with the given symbol.
+     */
+    public FnDeclNode function(SemSym fn) {
+        return fns.get(fn);
+    }
+
+    /**
+     * Return the functions the given function calls directly.
+     */
+    public Set<SemSym> callees(SemSym fn) {
+        Set<SemSym> called = callees.get(fn);
+        return called == null ? new HashSet<SemSym>() : called;
+    }
+
+    /**
+     * Return the number of calls to the given function in the program.
+     */
+    public int sites(SemSym fn) {
+        Integer n = sites.get(fn);
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * Return the globals a call to the given function may write.
+     */
+    public Set<SemSym> mayWrite(SemSym fn) {
+        Set<SemSym> written = writes.get(fn);
+        return written == null ? new HashSet<SemSym>() : written;
+    }
+
+    /**
+     * Return true if the function from can reach the function to through
+     * one or more calls.
+     */
+    public boolean reaches(SemSym from, SemSym to) {
+        Set<SemSym> seen = new HashSet<SemSym>();
+        Stack<SemSym> todo = new Stack<SemSym>();
+        todo.push(from);
+        while (!todo.isEmpty()) {
+            for (SemSym sym : callees(todo.pop())) {
+                if (sym == to) {
+                    return true;
+                }
+                if (seen.add(sym)) {
+                    todo.push(sym);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.*;
+
+// **********************************************************************
+// The Cfg class is the control-flow graph of one function at the level of
+// its source.  A node is a simple statement (an assignment, ++, --, cin,
+// cout, call or return) or the condition of an if, if-else or while, and
+// there is an edge from each node to every node that may run right after
+// it.  harambe has no goto, so the edges follow the nesting of the AST:
+//     if (c) { S }               c -> S, c -> after, S -> after
+//     if (c) { S } else { T }    c -> S, c -> T, S -> after, T -> after
+//     while (c) { S }            c -> S, c -> after, S -> c
+//     return                     -> exit
+// where S -> x means the nodes that end S go to x.  The entry and exit
+// nodes stand for no AST node.  The nodes are numbered in source order.
+//
+// It is an analysis kept by the PassManager; Dominators and Liveness are
+// computed from it.
+// **********************************************************************
+
+public class Cfg {
+    /**
+     * One node of the graph.
+     */
+    public static class Node {
+        // position in source order; the entry is 0 and the exit last
+        public final int index;
+        // the statement or condition, or null for the entry and exit
+        public final ASTnode ast;
+        public final List<Node> succs = new ArrayList<Node>();
+        public final List<Node> preds = new ArrayList<Node>();
+
+        private Node(int index, ASTnode ast) {
+            this.index = index;
+            this.ast = ast;
+        }
+
+        public String toString() {
+            return ast == null ? (index == 0 ? "entry" : "exit") : "n" + index;
+        }
+    }
+
+    private FnDeclNode fn;
+    private List<Node> nodes = new ArrayList<Node>();
+    private Map<ASTnode, Node> byAst = new HashMap<ASTnode, Node>();
+    private Node entry;
+    private Node exit;
+    // the return statements, joined to the exit once it exists
+    private List<Node> returns = new ArrayList<Node>();
+
+    public Cfg(FnDeclNode fn) {
+        this.fn = fn;
+        entry = newNode(null);
+        List<Node> ends = new ArrayList<Node>();
+        ends.add(entry);
+        ASTnode body = fn.kids().get(2);
+        ends = stmts(body.kids().get(1), ends);
+        exit = newNode(null);
+        ends.addAll(returns);
+        link(ends, exit);
+    }
+
+    /**
+     * Return the function of this graph.
+     */
+    public FnDeclNode function() {
+        return fn;
+    }
+
+    /**
+     * Return the nodes, in source order.
+     */
+    public List<Node> nodes() {
+        return nodes;
+    }
+
+    public Node entry() {
+        return entry;
+    }
+
+    public Node exit() {
+        return exit;
+    }
+
+    /**
+     * Return the node of the given statement or condition, or null if it
+     * has none (a compound statement, or a node of another function).
+     */
+    public Node node(ASTnode ast) {
+        return byAst.get(ast);
+    }
+
+    // add the statements of the given list after the given nodes; return
+    // the nodes that end the list
+    private List<Node> stmts(ASTnode list, List<Node> preds) {
+        for (ASTnode stmt : list.kids()) {
+            preds = stmt(stmt, preds);
+        }
+        return preds;
+    }
+
+    private List<Node> stmt(ASTnode stmt, List<Node> preds) {
+        List<ASTnode> kids = stmt.kids();
+        List<Node> ends = new ArrayList<Node>();
+        if (stmt instanceof IfStmtNode) {
+            Node cond = add(kids.get(0), preds);
+            ends.addAll(stmts(kids.get(2), single(cond)));
+            ends.add(cond);
+        } else if (stmt instanceof IfElseStmtNode) {
+            Node cond = add(kids.get(0), preds);
+            ends.addAll(stmts(kids.get(2), single(cond)));
+            ends.addAll(stmts(kids.get(4), single(cond)));
+        } else if (stmt instanceof WhileStmtNode) {
+            Node cond = add(kids.get(0), preds);
+            link(stmts(kids.get(2), single(cond)), cond);
+            ends.add(cond);
+        } else if (stmt instanceof ReturnStmtNode) {
+            returns.add(add(stmt, preds));
+        } else {
+            ends.add(add(stmt, preds));
+        }
+        return ends;
+    }
+
+    private Node add(ASTnode ast, List<Node> preds) {
+        Node node = newNode(ast);
+        link(preds, node);
+        return node;
+    }
+
+    private Node newNode(ASTnode ast) {
+        Node node = new Node(nodes.size(), ast);
+        nodes.add(node);
+        if (ast != null) {
+            byAst.put(ast, node);
+        }
+        return node;
+    }
+
+    private static void link(List<Node> preds, Node to) {
+        for (Node from : preds) {
+            from.succs.add(to);
+            to.preds.add(from);
+        }
+    }
+
+    private static List<Node> single(Node node) {
+        List<Node> list = new ArrayList<Node>();
+        list.add(node);
+        return list;
+    }
+}
@@ -5,7 +5,7 @@ import java.io.*;
 // generation.
 //
 // The constants are:
-//     Registers: FP, SP, RA, V0, V1, A0, T0, T1
+//     Registers: FP, SP, GP, RA, V0, V1, A0, A1, A2, A3, T0, T1
 //     Values: TRUE, FALSE
 //
 // The operations are include various "generate" methods to print nicely
@@ -16,9 +16,20 @@ import java.io.*;
 //     generateLabeled
 //     genPush
 //     genPop
+//     genDrop
+//     genTop
 //     genLabel
 // and a method nextLabel to create and return a new label.
 //
+// genPush and genPop hold the temporaries of expressions.  Normally
+// (-temps=static) they are fixed slots at the bottom of the frame,
+// addressed from $sp, which stays put in the body of a function except
+// while the actuals of a call are stored (see genReserve): a push is one
+// sw, a pop one lw, and a value popped right after it is pushed is moved
+// between registers instead.  The prologue reserves the most slots in
+// use at once (see maxDepth).  With -temps=stack they are pushed onto
+// and popped off the stack, moving $sp each time.
+//
 // **********************************************************************
 
 public class Codegen {
@@ -32,14 +43,21 @@ public class Codegen {
     // registers
     public static final String FP = "$fp";
     public static final String SP = "$sp";
+    public static final String GP = "$gp";
     public static final String RA = "$ra";
     public static final String V0 = "$v0";
     public static final String V1 = "$v1";
     public static final String A0 = "$a0";
+    public static final String A1 = "$a1";
+    public static final String A2 = "$a2";
+    public static final String A3 = "$a3";
     public static final String T0 = "$t0";
     public static final String T1 = "$t1";
 
 
+    // registers for the first actuals of a call (see argRegister)
+    private static final String[] ARGS = { A0, A1, A2, A3 };
+
     // for pretty printing generated code
     private static final int MAXLEN = 4;
 
@@ -47,6 +65,28 @@ public class Codegen {
     // for generating labels
     private static int currLabel = 0;
 
+    // label of the epilogue of the function being generated; return
+    // statements jump here
+    public static String fnExitLabel = null;
+
+    // calls (jal) and $fp-relative accesses generated so far; FnDeclNode
+    // compares them around a body to see if it needs $ra and $fp saved
+    private static int calls = 0;
+    private static int fpRefs = 0;
+
+    // words pushed by genPush and not popped yet; the statements check
+    // it to find code that leaves values on the stack (see
+    // StmtNode.genChecked)
+    private static int depth = 0;
+    // the most words pushed at once since startFrame
+    private static int maxDepth = 0;
+    // the register of the last push while it is not stored yet, in case
+    // the next instruction pops it (static temporaries only)
+    private static String pending = null;
+    // bytes $sp is below its place in the body, for the actuals of the
+    // calls being set up (static temporaries only)
+    private static int outgoing = 0;
+
 
     // **********************************************************************
     // **********************************************************************
@@ -63,6 +103,8 @@ public class Codegen {
                                         String arg1, String arg2, String arg3) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flush();
+        count(opcode);
         p.print("\t" + opcode);
         if (arg1 != "") {
             for (int k = 1; k <= space; k++) 
@@ -102,6 +144,8 @@ public class Codegen {
                                 String arg3) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flush();
+        count(opcode);
         p.print("\t" + opcode);
         if (arg1 != "") {
             for (int k = 1; k <= space; k++) 
@@ -137,6 +181,8 @@ public class Codegen {
                                 int arg3) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flush();
+        count(opcode);
         p.print("\t" + opcode);
         for (int k = 1; k <= space; k++) 
             p.print(" ");
@@ -151,6 +197,8 @@ public class Codegen {
     public static void generate(String opcode, String arg1, int arg2) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flush();
+        count(opcode);
         p.print("\t" + opcode);
         for (int k = 1; k <= space; k++) 
             p.print(" ");
@@ -168,6 +216,10 @@ public class Codegen {
                                        int arg3, String comment) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flush();
+        count(opcode);
+        if (arg2.equals(FP))
+            fpRefs++;
         p.print("\t" + opcode);
         for (int k = 1; k <= space; k++) 
             p.print(" ");
@@ -191,6 +243,8 @@ public class Codegen {
                                        String comment, String arg1) {
         int space = MAXLEN - opcode.length() + 2;
     
+        flush();
+        count(opcode);
         p.print(label + ":");
         p.print("\t" + opcode);
         if (arg1 != "") {
@@ -208,13 +262,67 @@ public class Codegen {
         generateLabeled(label, opcode, comment, "");
     }
 
+    // **********************************************************************
+    // count
+    //    record an emitted instruction in the statistics (directives and
+    //    empty opcodes are not instructions)
+    // **********************************************************************
+    private static void count(String opcode) {
+        if (opcode.equals("jal"))
+            calls++;
+        if (opcode.length() > 0 && !opcode.startsWith("."))
+            Stats.count(opcode);
+    }
+
+    /**
+     * Return the register that actual (and formal) i of a call is passed
+     * in: $a0-$a3 for the first four with -args=regs, or null if it is
+     * passed on the stack.  The caller leaves a word on the stack for
+     * every actual, as the MIPS convention does, so the callee can store
+     * them where it expects its formals.
+     */
+    public static String argRegister(int i) {
+        if (!Options.regArgs || i >= ARGS.length)
+            return null;
+        return ARGS[i];
+    }
+
+    /**
+     * Return the number of calls generated so far.
+     */
+    public static int calls() {
+        return calls;
+    }
+
+    /**
+     * Return the number of words pushed and not popped so far.
+     */
+    public static int depth() {
+        return depth;
+    }
+
+    /**
+     * Return the number of $fp-relative loads and stores generated so
+     * far.
+     */
+    public static int fpRefs() {
+        return fpRefs;
+    }
+
     // **********************************************************************
     // genPush
     //    generate code to push the given value onto the stack
     // **********************************************************************
     public static void genPush(String s) {
-        generateIndexed("sw", s, SP, 0, "PUSH");
-        generate("subu", SP, SP, 4);
+        if (Options.staticTemps) {
+            flush();
+            pending = s;
+        } else {
+            generateIndexed("sw", s, SP, 0, "PUSH");
+            generate("subu", SP, SP, 4);
+        }
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
     }
 
     // **********************************************************************
@@ -222,8 +330,122 @@ public class Codegen {
     //    generate code to pop into the given register
     // **********************************************************************
     public static void genPop(String s) {
-        generateIndexed("lw", s, SP, 4, "POP");
-        generate("addu", SP, SP, 4);
+        if (pending != null) {
+            String r = pending;
+            pending = null;
+            if (!r.equals(s))
+                generate("move", s, r);
+        } else if (Options.staticTemps) {
+            generateIndexed("lw", s, SP, topOffset(0), "POP");
+        } else {
+            generateIndexed("lw", s, SP, 4, "POP");
+            generate("addu", SP, SP, 4);
+        }
+        depth--;
+    }
+
+    // **********************************************************************
+    // genDrop
+    //    generate code to pop the top of the stack, which nobody uses
+    // **********************************************************************
+    public static void genDrop() {
+        if (pending != null)
+            pending = null;
+        else if (!Options.staticTemps)
+            generate("addu", SP, SP, 4);
+        depth--;
+    }
+
+    // **********************************************************************
+    // genTop
+    //    generate code to copy the top of the stack into the given
+    //    register, leaving it on the stack
+    // **********************************************************************
+    public static void genTop(String s) {
+        if (pending != null) {
+            String r = pending;
+            pending = null;
+            if (!r.equals(s))
+                generate("move", s, r);
+            pending = r;
+        } else {
+            generateIndexed("lw", s, SP, topOffset(0));
+        }
+    }
+
+    /**
+     * Return the offset from $sp of the word k below the top of the
+     * stack (0 is the top).  A pushed value not stored yet is stored.
+     */
+    public static int topOffset(int k) {
+        flush();
+        if (!Options.staticTemps)
+            return 4 * (k + 1);
+        return outgoing + 4 * (depth - k);
+    }
+
+    /**
+     * Pop the top of the stack into the word at the given offset from
+     * the given register.
+     */
+    public static void genPopStore(String base, int offset, String comment) {
+        if (pending != null) {
+            String r = pending;
+            pending = null;
+            depth--;
+            generateIndexed("sw", r, base, offset, comment);
+        } else {
+            genPop(T0);
+            generateIndexed("sw", T0, base, offset, comment);
+        }
+    }
+
+    /**
+     * Make room below $sp for the n actuals of a call, to be stored at
+     * 4n($sp) (the first) down to 4($sp) (the last), where pushing them
+     * would have put them (static temporaries only).
+     */
+    public static void genReserve(int n) {
+        if (n > 0)
+            generate("subu", SP, SP, 4 * n);
+        outgoing += 4 * n;
+    }
+
+    /**
+     * Record that a callee popped the n actuals of its call.
+     */
+    public static void calleePopped(int n) {
+        if (Options.staticTemps)
+            outgoing -= 4 * n;
+        else
+            depth -= n;
+    }
+
+    /**
+     * Start the temporaries of a new function.
+     */
+    public static void startFrame() {
+        depth = 0;
+        maxDepth = 0;
+        outgoing = 0;
+        pending = null;
+    }
+
+    /**
+     * Return the bytes of frame the temporaries generated since
+     * startFrame need: none if they are pushed on the stack.
+     */
+    public static int tempsSize() {
+        return Options.staticTemps ? 4 * maxDepth : 0;
+    }
+
+    // store the last push if it is not stored yet
+    private static void flush() {
+        if (pending == null)
+            return;
+        String r = pending;
+        pending = null;
+        generateIndexed("sw", r, SP, topOffset(0), "PUSH");
     }
 
     // **********************************************************************
@@ -232,6 +454,7 @@ public class Codegen {
     //   generate: L:    # comment
     // **********************************************************************
     public static void genLabel(String label, String comment) {
+        flush();
         p.print(label + ":");
         if (comment != "") 
             p.print("\t\t" + "# " + comment);
@@ -0,0 +1,220 @@
+import java.util.*;
+
+// **********************************************************************
+// The ColoringAlloc class is the Chaitin-Briggs register allocator: it
+// builds an interference graph from the liveness walk, coalesces copies
+// with the conservative Briggs test, and colors the graph optimistically,
+// spilling the variables with the lowest cost per interference (uses and
+// defs weighted by how often their loops run, measured or guessed).
+// **********************************************************************
+
+public class ColoringAlloc extends RegAlloc {
+    // one node of the interference graph
+    private static class Node {
+        SemSym sym;
+        Set<Node> adj = new HashSet<Node>();
+        boolean crossesCall = false;
+        double cost = 0;
+        Node alias = null;      // node this one was coalesced into
+        String reg = null;
+
+        Node(SemSym sym) {
+            this.sym = sym;
+        }
+
+        // number of colors this node may use
+        int colors() {
+            return crossesCall ? CALLEE_SAVED.length
+                : CALLER_SAVED.length + CALLEE_SAVED.length;
+        }
+    }
+
+    private LinkedHashMap<SemSym, Node> nodes =
+        new LinkedHashMap<SemSym, Node>();
+    private List<Node[]> moves = new ArrayList<Node[]>();
+    private int coalesced = 0;
+
+    public ColoringAlloc(String fnName) {
+        super(fnName);
+    }
+
+    private Node node(SemSym sym) {
+        Node n = nodes.get(sym);
+        if (n == null) {
+            n = new Node(sym);
+            nodes.put(sym, n);
+        }
+        return n;
+    }
+
+    private static void addEdge(Node a, Node b) {
+        if (a != b) {
+            a.adj.add(b);
+            b.adj.add(a);
+        }
+    }
+
+    // **********************************************************************
+    // liveness callbacks
+    // **********************************************************************
+
+    protected void recordUse(SemSym sym) {
+        node(sym).cost += weight();
+    }
+
+    protected void recordDef(SemSym sym, Set<SemSym> live, SemSym src) {
+        Node n = node(sym);
+        n.cost += weight();
+        for (SemSym other : live) {
+            if (other != sym && other != src)
+                addEdge(n, node(other));
+        }
+        if (src != null && src != sym)
+            moves.add(new Node[] { n, node(src) });
+    }
+
+    protected void recordCall(Set<SemSym> live) {
+        for (SemSym sym : live)
+            node(sym).crossesCall = true;
+    }
+
+    public void entry(List<SemSym> formals, Set<SemSym> live) {
+        Set<SemSym> all = new HashSet<SemSym>(live);
+        for (SemSym f : formals)
+            if (isCandidate(f))
+                all.add(f);
+        for (SemSym f : formals) {
+            if (isCandidate(f) && nodes.containsKey(f)) {
+                for (SemSym other : all)
+                    if (other != f)
+                        addEdge(node(f), node(other));
+            }
+        }
+    }
+
+    // **********************************************************************
+    // allocation
+    // **********************************************************************
+
+    private static Node find(Node n) {
+        while (n.alias != null)
+            n = n.alias;
+        return n;
+    }
+
+    // Briggs test: the merged node has fewer than K neighbors of
+    // significant degree
+    private static boolean canCoalesce(Node a, Node b) {
+        Set<Node> adj = new HashSet<Node>(a.adj);
+        adj.addAll(b.adj);
+        int k = (a.crossesCall || b.crossesCall) ? CALLEE_SAVED.length
+            : CALLER_SAVED.length + CALLEE_SAVED.length;
+        int significant = 0;
+        for (Node n : adj) {
+            if (n.adj.size() >= n.colors())
+                significant++;
+        }
+        return significant < k;
+    }
+
+    private void merge(Node keep, Node gone) {
+        gone.alias = keep;
+        for (Node n : gone.adj) {
+            n.adj.remove(gone);
+            addEdge(keep, n);
+        }
+        gone.adj.clear();
+        keep.crossesCall |= gone.crossesCall;
+        keep.cost += gone.cost;
+        coalesced++;
+    }
+
+    private void coalesce() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Node[] m : moves) {
+                Node a = find(m[0]);
+                Node b = find(m[1]);
+                if (a == b || a.adj.contains(b) || !canCoalesce(a, b))
+                    continue;
+                merge(a, b);
+                changed = true;
+            }
+        }
+    }
+
+    protected String assign() {
+        coalesce();
+
+        // simplify: remove nodes of low degree, or the cheapest node to
+        // spill when none is left (optimistically, as Briggs does)
+        List<Node> work = new ArrayList<Node>();
+        for (Node n : nodes.values())
+            if (n.alias == null)
+                work.add(n);
+        HashMap<Node, Integer> degree = new HashMap<Node, Integer>();
+        for (Node n : work)
+            degree.put(n, n.adj.size());
+        Deque<Node> stack = new ArrayDeque<Node>();
+        Set<Node> removed = new HashSet<Node>();
+        while (removed.size() < work.size()) {
+            Node pick = null;
+            for (Node n : work) {
+                if (!removed.contains(n) && degree.get(n) < n.colors()) {
+                    pick = n;
+                    break;
+                }
+            }
+            if (pick == null) {
+                double best = Double.MAX_VALUE;
+                for (Node n : work) {
+                    if (removed.contains(n))
+                        continue;
+                    double c = n.cost / Math.max(1, degree.get(n));
+                    if (c < best) {
+                        best = c;
+                        pick = n;
+                    }
+                }
+            }
+            removed.add(pick);
+            stack.push(pick);
+            for (Node n : pick.adj)
+                if (!removed.contains(n))
+                    degree.put(n, degree.get(n) - 1);
+        }
+
+        // select: pop and color, preferring caller-saved registers for
+        // variables that are not live across a call
+        int spilled = 0;
+        Set<String> saved = new TreeSet<String>();
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            Set<String> taken = new HashSet<String>();
+            for (Node m : n.adj)
+                if (m.reg != null)
+                    taken.add(m.reg);
+            n.reg = null;
+            if (!n.crossesCall)
+                n.reg = firstFree(CALLER_SAVED, taken);
+            if (n.reg == null)
+                n.reg = firstFree(CALLEE_SAVED, taken);
+            if (n.reg == null)
+                spilled++;
+            else if (n.reg.startsWith("$s"))
+                saved.add(n.reg);
+        }
+        calleeSaved.addAll(saved);
+
+        int inRegs = 0;
+        for (Node n : nodes.values()) {
+            String reg = find(n).reg;
+            n.sym.setRegister(reg);
+            if (reg != null)
+                inRegs++;
+        }
+        return nodes.size() + " variables, " + inRegs + " in registers, " +
+            coalesced + " coalesced, " + spilled + " spilled";
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.*;
+
+// **********************************************************************
+// The DelaySlots class turns the code of one function into code for a
+// machine with delayed branches (SPIM -delayed_branches), where the
+// instruction after each branch or jump runs before the branch takes
+// effect.  It only acts with -delayed=on.
+//
+// Each slot is filled in the first of these ways that is legal:
+//   1. With an instruction from before the branch, in the same basic
+//      block, that the branch does not depend on and that may trade
+//      places with every instruction between it and the branch.  It ran
+//      on every path through the branch before, and still does.
+//   2. For a jump to a label of the same function, with a copy of the
+//      instruction at the label; the jump then goes to a new label just
+//      after that instruction.  (A conditional branch would need the
+//      copy to be harmless when the branch is not taken, which takes
+//      liveness the generated text does not carry, so it gets none.)
+//   3. With a nop.
+// An instruction only goes into a slot if it assembles to one machine
+// instruction.  -stats reports how many slots of each function were
+// filled.
+// **********************************************************************
+
+public class DelaySlots {
+    /**
+     * Return the given code of the function with the given name with a
+     * delay slot after every branch and jump.
+     */
+    public static String fill(String fnName, String code) {
+        if (!Options.delayedBranches)
+            return code;
+        DelaySlots d = new DelaySlots(code);
+        d.fillFromBefore();
+        d.fillFromTargets();
+        int filled = d.before + d.target;
+        int slots = d.slots.size();
+        totalFilled += filled;
+        Stats.report("delay slots " + fnName + ": " + slots + " slots, " +
+                     d.before + " from before, " + d.target +
+                     " from the target, " + (slots - filled) + " nops (" +
+                     (slots == 0 ? 100 : 100 * filled / slots) +
+                     "% filled)");
+        for (int i = 0; i < slots - filled; i++)
+            Stats.count("nop");
+        StringBuilder out = new StringBuilder();
+        for (String line : d.lines)
+            out.append(line).append('\n');
+        // split leaves one empty line after the last newline
+        out.setLength(out.length() - 1);
+        return out.toString();
+    }
+
+    /**
+     * Return the number of slots filled so far, in all functions.
+     */
+    public static int filled() {
+        return totalFilled;
+    }
+
+    private static final String NOP = "\tnop";
+    private static int totalFilled = 0;
+
+    private List<String> lines;
+    // the lines that are delay slots, by identity
+    private Set<String> slots =
+        Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+    private int before = 0;
+    private int target = 0;
+
+    private DelaySlots(String code) {
+        lines = new ArrayList<String>(Arrays.asList(code.split("\n", -1)));
+    }
+
+    // give each branch its slot, moving an instruction from before it
+    // when one qualifies
+    private void fillFromBefore() {
+        for (int i = 0; i < lines.size(); i++) {
+            Instr branch = Instr.parse(lines.get(i));
+            if (branch == null || !branch.isBranch())
+                continue;
+            int from = movable(i, branch);
+            String slot;
+            if (from < 0) {
+                slot = new String(NOP);
+            } else {
+                slot = lines.remove(from);
+                i--;
+                before++;
+            }
+            slots.add(slot);
+            lines.add(i + 1, slot);
+            i++;
+        }
+    }
+
+    // the index of the nearest instruction before the branch at index i
+    // that may go into its slot, or -1
+    private int movable(int i, Instr branch) {
+        List<Instr> between = new ArrayList<Instr>();
+        between.add(branch);
+        for (int k = i - 1; k >= 0; k--) {
+            String line = lines.get(k);
+            Instr instr = Instr.parse(line);
+            if (instr == null || instr.endsBlock() || slots.contains(line))
+                return -1;
+            if (instr.isSingle() && independentOfAll(instr, between))
+                return k;
+            between.add(instr);
+        }
+        return -1;
+    }
+
+    private static boolean independentOfAll(Instr instr, List<Instr> others) {
+        for (Instr other : others)
+            if (!instr.independent(other))
+                return false;
+        return true;
+    }
+
+    // fill the slots still holding a nop after jumps to local labels
+    private void fillFromTargets() {
+        // the label put after the first instruction of each target
+        Map<String, String> after = new HashMap<String, String>();
+        for (int i = 0; i + 1 < lines.size(); i++) {
+            Instr jump = Instr.parse(lines.get(i));
+            if (jump == null || !jump.op.equals("j") ||
+                !slots.contains(lines.get(i + 1)) ||
+                !lines.get(i + 1).equals(NOP))
+                continue;
+            String label = jump.args[0];
+            int at = lines.indexOf(label + ":");
+            for (int k = 0; at < 0 && k < lines.size(); k++)
+                if (lines.get(k).startsWith(label + ":\t"))
+                    at = k;
+            if (at < 0 || at + 1 >= lines.size())
+                continue;
+            String first = lines.get(at + 1);
+            Instr instr = Instr.parse(first);
+            if (instr == null || !instr.isSingle() || slots.contains(first))
+                continue;
+            String next = after.get(label);
+            if (next == null) {
+                next = Codegen.nextLabel();
+                after.put(label, next);
+                lines.add(at + 2, next + ":");
+                if (at + 2 <= i)
+                    i++;
+            }
+            String slot = new String(first);
+            slots.remove(lines.get(i + 1));
+            slots.add(slot);
+            lines.set(i + 1, slot);
+            lines.set(i, lines.get(i).replace(" " + label, " " + next));
+            Stats.count(instr.op);
+            target++;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.*;
+
+// **********************************************************************
+// The Dominators class is the dominator tree of a control-flow graph
+// (see Cfg): node a dominates node b if every path from the entry to b
+// goes through a.  The immediate dominators are found with the iterative
+// algorithm of Cooper, Harvey and Kennedy, which visits the nodes in
+// reverse postorder until nothing changes; on the graphs of structured
+// code that takes two or three rounds.  Nodes the entry cannot reach
+// (code after a return) have no dominator and dominate nothing.
+//
+// It is an analysis kept by the PassManager.
+// **********************************************************************
+
+public class Dominators {
+    private Cfg cfg;
+    // immediate dominator of each node, by index; the entry is its own
+    private Cfg.Node[] idom;
+    // position of each node in reverse postorder, by index
+    private int[] order;
+    private Map<Cfg.Node, List<Cfg.Node>> children =
+        new HashMap<Cfg.Node, List<Cfg.Node>>();
+
+    public Dominators(Cfg cfg) {
+        this.cfg = cfg;
+        int n = cfg.nodes().size();
+        idom = new Cfg.Node[n];
+        order = new int[n];
+        List<Cfg.Node> rpo = reversePostorder();
+        for (int i = 0; i < rpo.size(); i++) {
+            order[rpo.get(i).index] = i;
+        }
+        idom[cfg.entry().index] = cfg.entry();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Cfg.Node node : rpo) {
+                if (node == cfg.entry()) {
+                    continue;
+                }
+                Cfg.Node best = null;
+                for (Cfg.Node pred : node.preds) {
+                    if (idom[pred.index] == null) {
+                        continue;  // not processed yet, or unreachable
+                    }
+                    best = best == null ? pred : intersect(pred, best);
+                }
+                if (best != idom[node.index]) {
+                    idom[node.index] = best;
+                    changed = true;
+                }
+            }
+        }
+        for (Cfg.Node node : rpo) {
+            if (node != cfg.entry()) {
+                children(idom[node.index]).add(node);
+            }
+        }
+    }
+
+    /**
+     * Return the immediate dominator of the given node: null for the
+     * entry and for unreachable nodes.
+     */
+    public Cfg.Node idom(Cfg.Node node) {
+        return node == cfg.entry() ? null : idom[node.index];
+    }
+
+    /**
+     * Return the nodes the given node immediately dominates, in reverse
+     * postorder.
+     */
+    public List<Cfg.Node> children(Cfg.Node node) {
+        List<Cfg.Node> list = children.get(node);
+        if (list == null) {
+            list = new ArrayList<Cfg.Node>();
+            children.put(node, list);
+        }
+        return list;
+    }
+
+    /**
+     * Return true if a dominates b (every node dominates itself).
+     */
+    public boolean dominates(Cfg.Node a, Cfg.Node b) {
+        if (idom[a.index] == null || idom[b.index] == null) {
+            return false;
+        }
+        while (b != a && b != cfg.entry()) {
+            b = idom[b.index];
+        }
+        return b == a;
+    }
+
+    // the closest common dominator of two processed nodes
+    private Cfg.Node intersect(Cfg.Node a, Cfg.Node b) {
+        while (a != b) {
+            while (order[a.index] > order[b.index]) {
+                a = idom[a.index];
+            }
+            while (order[b.index] > order[a.index]) {
+                b = idom[b.index];
+            }
+        }
+        return a;
+    }
+
+    private List<Cfg.Node> reversePostorder() {
+        List<Cfg.Node> post = new ArrayList<Cfg.Node>();
+        Set<Cfg.Node> seen = new HashSet<Cfg.Node>();
+        // explicit stack of (node, next successor to visit)
+        Stack<Cfg.Node> nodes = new Stack<Cfg.Node>();
+        Stack<Integer> next = new Stack<Integer>();
+        nodes.push(cfg.entry());
+        next.push(0);
+        seen.add(cfg.entry());
+        while (!nodes.isEmpty()) {
+            Cfg.Node node = nodes.peek();
+            int i = next.pop();
+            if (i < node.succs.size()) {
+                next.push(i + 1);
+                Cfg.Node succ = node.succs.get(i);
+                if (seen.add(succ)) {
+                    nodes.push(succ);
+                    next.push(0);
+                }
+            } else {
+                nodes.pop();
+                post.add(node);
+            }
+        }
+        Collections.reverse(post);
+        return post;
+    }
+}
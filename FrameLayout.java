@@ -0,0 +1,169 @@
+import java.util.*;
+
+// **********************************************************************
+// The FrameLayout class places the locals of a function in its frame
+// once the register allocator has run.  Name analysis has already given
+// each block its own area below the blocks around it, so blocks side by
+// side share their words (see FnBodyNode.nameAnalysis); this packs the
+// frame further:
+//     a local kept in a register for the whole function takes no word;
+//     two scalars in memory share a word if they never hold values at
+//     the same time: no node of the control-flow graph has both live
+//     before or after it or written by it (see Liveness.occupied);
+//     structs, scalars that may be read before they are written, and
+//     locals the linear-scan allocator splits (they are stored back at
+//     the split, live or not) keep their words for their whole block.
+// The locals are placed in the order of their declarations, each at the
+// lowest offset free of the locals it conflicts with.
+//
+// Code generation runs it for each function; -share=off keeps the
+// layout of name analysis.
+// **********************************************************************
+
+public class FrameLayout {
+    /**
+     * Place the locals of the given function, which start at localsStart
+     * (an offset from $fp) and go down.  Returns the bytes they take.
+     */
+    public static int layout(FnDeclNode fn, int localsStart) {
+        List<SemSym> locals = new ArrayList<SemSym>();
+        Map<SemSym, Integer> size = new HashMap<SemSym, Integer>();
+        Map<SemSym, List<ASTnode>> scope = new HashMap<SemSym, List<ASTnode>>();
+        Set<SemSym> split = new HashSet<SemSym>();
+        ASTnode body = fn.kids().get(2);
+        block(body.kids().get(0), body.kids().get(1), new ArrayList<ASTnode>(),
+              locals, size, scope, split);
+
+        // the scalars in memory that may share words by liveness,
+        // numbered; liveness is only computed if there are two of them
+        List<SemSym> scalars = new ArrayList<SemSym>();
+        for (SemSym sym : locals) {
+            if (!(sym instanceof StructSym) && sym.getRegister() == null &&
+                !split.contains(sym)) {
+                scalars.add(sym);
+            }
+        }
+        Map<SemSym, Integer> index = new HashMap<SemSym, Integer>();
+        BitSet[] conflicts = new BitSet[0];
+        if (scalars.size() >= 2) {
+            Liveness live = PassManager.liveness(fn);
+            Set<SemSym> entry = live.liveAtEntry();
+            for (SemSym sym : scalars) {
+                if (!entry.contains(sym)) {
+                    index.put(sym, index.size());
+                }
+            }
+            conflicts = conflicts(fn, live, index);
+        }
+
+        // first fit, in words below localsStart
+        Map<SemSym, Integer> word = new HashMap<SemSym, Integer>();
+        int words = 0;
+        for (SemSym sym : locals) {
+            int n = size.get(sym) / 4;
+            if (sym.getRegister() != null && !split.contains(sym)) {
+                continue;
+            }
+            int at = 0;
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                for (Map.Entry<SemSym, Integer> e : word.entrySet()) {
+                    SemSym other = e.getKey();
+                    int from = e.getValue();
+                    int to = from + size.get(other) / 4;
+                    if (at < to && from < at + n &&
+                        conflict(sym, other, index, conflicts, scope)) {
+                        at = to;
+                        moved = true;
+                    }
+                }
+            }
+            word.put(sym, at);
+            words = Math.max(words, at + n);
+            //a struct's offset is the bottom of its area, as in
+            //VarDeclNode.nameAnalysis
+            sym.setSymOffsetSize(localsStart - 4 * at - size.get(sym) + 4);
+        }
+        return 4 * words;
+    }
+
+    // for each numbered scalar, the scalars holding values at some node
+    // where it holds one
+    private static BitSet[] conflicts(FnDeclNode fn, Liveness live,
+                                      Map<SemSym, Integer> index) {
+        BitSet[] conflicts = new BitSet[index.size()];
+        for (int i = 0; i < conflicts.length; i++) {
+            conflicts[i] = new BitSet();
+        }
+        List<SemSym> vars = live.variables();
+        int[] renumber = new int[vars.size()];
+        for (int v = 0; v < vars.size(); v++) {
+            Integer i = index.get(vars.get(v));
+            renumber[v] = i == null ? -1 : i;
+        }
+        for (Cfg.Node node : PassManager.cfg(fn).nodes()) {
+            BitSet occupied = live.occupied(node);
+            BitSet together = new BitSet();
+            for (int v = occupied.nextSetBit(0); v >= 0;
+                 v = occupied.nextSetBit(v + 1)) {
+                if (renumber[v] >= 0) {
+                    together.set(renumber[v]);
+                }
+            }
+            for (int i = together.nextSetBit(0); i >= 0;
+                 i = together.nextSetBit(i + 1)) {
+                conflicts[i].or(together);
+            }
+        }
+        return conflicts;
+    }
+
+    // collect the locals declared in the given block and the blocks in
+    // it; outer holds the declaration lists of the blocks around it
+    private static void block(ASTnode decls, ASTnode stmts, List<ASTnode> outer,
+                              List<SemSym> locals, Map<SemSym, Integer> size,
+                              Map<SemSym, List<ASTnode>> scope,
+                              Set<SemSym> split) {
+        List<ASTnode> path = new ArrayList<ASTnode>(outer);
+        path.add(decls);
+        for (ASTnode decl : decls.kids()) {
+            if (decl instanceof VarDeclNode) {
+                SemSym sym = ((VarDeclNode)decl).sym();
+                if (sym != null) {
+                    locals.add(sym);
+                    size.put(sym, ((VarDeclNode)decl).size());
+                    scope.put(sym, path);
+                }
+            }
+        }
+        for (ASTnode stmt : stmts.kids()) {
+            split.addAll(((StmtNode)stmt).splits());
+            List<ASTnode> kids = stmt.kids();
+            if (stmt instanceof IfStmtNode || stmt instanceof WhileStmtNode) {
+                block(kids.get(1), kids.get(2), path, locals, size, scope, split);
+            } else if (stmt instanceof IfElseStmtNode) {
+                block(kids.get(1), kids.get(2), path, locals, size, scope, split);
+                block(kids.get(3), kids.get(4), path, locals, size, scope, split);
+            }
+        }
+    }
+
+    // may the two locals not share a word?
+    private static boolean conflict(SemSym a, SemSym b,
+                                    Map<SemSym, Integer> index,
+                                    BitSet[] conflicts,
+                                    Map<SemSym, List<ASTnode>> scope) {
+        Integer i = index.get(a);
+        Integer j = index.get(b);
+        if (i != null && j != null) {
+            return conflicts[i].get(j);
+        }
+        // one of them keeps its word for its whole block: the blocks must
+        // be apart
+        List<ASTnode> pa = scope.get(a);
+        List<ASTnode> pb = scope.get(b);
+        int n = Math.min(pa.size(), pb.size());
+        return pa.subList(0, n).equals(pb.subList(0, n));
+    }
+}
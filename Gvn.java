@@ -0,0 +1,390 @@
+import java.util.*;
+
+// **********************************************************************
+// The Gvn class finds the expressions of a function whose value was
+// already computed on every path to them, and has the first computation
+// save the value in a temporary for the later ones to take.  It is global
+// value numbering over the dominator tree (see Dominators): the nodes of
+// the control-flow graph are visited from the entry down the tree with a
+// table from each value computed so far to the expression computing it.
+// A node sees only the values of the nodes that dominate it, which ran
+// on every path to it.
+//
+// A value is named by a key made from the operator and the keys of the
+// operands, so x + y and y + x have one key (the operands of +, *, ==,
+// !=, && and || are sorted, and a > b is b < a).  The key of a variable
+// has a version, which changes wherever the variable may be written:
+//     - by an assignment, ++, -- or cin; a store into a field writes the
+//       whole struct variable;
+//     - by a call: the globals the callee may write (CallGraph.mayWrite),
+//       and nothing else;
+//     - anywhere on a path from a node to its child in the tree, as in a
+//       loop body between the test and the code after the loop.
+// The right operand of && and || may not run, so its values are dropped
+// after it, but what it writes still counts.
+//
+// Arithmetic, comparisons, logical operators and loads of fields and
+// globals get a temporary; a load only if it is repeated at least twice
+// more, since each reuse saves just one lw.  Frame variables (already
+// in registers), expressions of literals (folded) and expressions with
+// assignments or calls in them are left alone, as are the expressions a
+// loop hoisted (see Hoister).
+//
+// It is a pass run by the PassManager after licm, with -gvn=on (the
+// default at -O2).
+// **********************************************************************
+
+public class Gvn {
+    // the temporaries of each function
+    private static Map<FnDeclNode, List<SemSym>> temps =
+        new HashMap<FnDeclNode, List<SemSym>>();
+
+    /**
+     * Find the values the given function computes again, and set the
+     * expressions up to save and reuse them; return the number of
+     * expressions that will not be computed again.
+     */
+    public static int number(FnDeclNode fn, CallGraph calls, Cfg cfg,
+                             Dominators dom) {
+        Gvn gvn = new Gvn(calls, dom);
+        gvn.walk(cfg.entry());
+        // the reuses of each expression, in source order
+        Map<ExpNode, List<ExpNode>> users =
+            new LinkedHashMap<ExpNode, List<ExpNode>>();
+        for (ExpNode[] match : gvn.matches) {
+            List<ExpNode> list = users.get(match[1]);
+            if (list == null) {
+                list = new ArrayList<ExpNode>();
+                users.put(match[1], list);
+            }
+            list.add(match[0]);
+        }
+        List<SemSym> list = new ArrayList<SemSym>();
+        int reused = 0;
+        for (Map.Entry<ExpNode, List<ExpNode>> entry : users.entrySet()) {
+            ExpNode first = entry.getKey();
+            boolean load = first instanceof IdNode ||
+                           first instanceof DotAccessExpNode;
+            if (load && entry.getValue().size() < 2) {
+                continue;
+            }
+            SemSym temp = new SemSym(first.typeCheck(), 0);
+            first.setSavedIn(temp);
+            for (ExpNode user : entry.getValue()) {
+                user.setValueIn(temp);
+            }
+            list.add(temp);
+            reused += entry.getValue().size();
+        }
+        temps.put(fn, list);
+        Stats.report("gvn " + fn.name() + ": " + reused + " expression" +
+                     (reused == 1 ? "" : "s") + " reused from " +
+                     list.size() + " temporar" +
+                     (list.size() == 1 ? "y" : "ies"));
+        return reused;
+    }
+
+    /**
+     * Return the temporaries of the given function, which need a slot in
+     * its frame.
+     */
+    public static List<SemSym> temps(FnDeclNode fn) {
+        List<SemSym> list = temps.get(fn);
+        return list == null ? new ArrayList<SemSym>() : list;
+    }
+
+    private CallGraph calls;
+    private Dominators dom;
+    // the first expression with each value, on the current path down
+    // the dominator tree, and the keys added to it, to take them out
+    private Map<String, ExpNode> table = new HashMap<String, ExpNode>();
+    private List<String> added = new ArrayList<String>();
+    // the current version of each variable
+    private Map<SemSym, Integer> versions;
+    private int lastVersion = 0;
+    // a number for each variable, for the keys
+    private Map<SemSym, Integer> ids = new HashMap<SemSym, Integer>();
+    // pairs (expression, earlier expression with the same value)
+    private List<ExpNode[]> matches = new ArrayList<ExpNode[]>();
+    // the variables each node may write
+    private Map<Cfg.Node, Set<SemSym>> writes =
+        new HashMap<Cfg.Node, Set<SemSym>>();
+
+    private Gvn(CallGraph calls, Dominators dom) {
+        this.calls = calls;
+        this.dom = dom;
+    }
+
+    /**
+     * A node of the dominator tree being visited.
+     */
+    private static class Visit {
+        Cfg.Node node;
+        // the versions after the node, and the table size before it
+        Map<SemSym, Integer> out;
+        int mark;
+        // the next child to visit
+        int next = 0;
+    }
+
+    // number the values of the nodes under root in the dominator tree,
+    // with an explicit stack since the tree is as deep as the function
+    // is long
+    private void walk(Cfg.Node root) {
+        Stack<Visit> stack = new Stack<Visit>();
+        stack.push(enter(root, new HashMap<SemSym, Integer>()));
+        while (!stack.isEmpty()) {
+            Visit visit = stack.peek();
+            List<Cfg.Node> children = dom.children(visit.node);
+            if (visit.next == children.size()) {
+                undo(visit.mark);
+                stack.pop();
+                continue;
+            }
+            Cfg.Node child = children.get(visit.next++);
+            // the last child may have the parent's versions
+            Map<SemSym, Integer> in = visit.next == children.size() ?
+                visit.out : new HashMap<SemSym, Integer>(visit.out);
+            for (SemSym sym : between(visit.node, child)) {
+                in.put(sym, ++lastVersion);
+            }
+            stack.push(enter(child, in));
+        }
+    }
+
+    // number the values of one node, starting from the given versions
+    private Visit enter(Cfg.Node node, Map<SemSym, Integer> in) {
+        Visit visit = new Visit();
+        visit.node = node;
+        visit.mark = added.size();
+        versions = in;
+        if (node.ast != null) {
+            stmt(node.ast);
+        }
+        visit.out = versions;
+        return visit;
+    }
+
+    private void stmt(ASTnode stmt) {
+        if (stmt instanceof ExpNode) {
+            exp((ExpNode)stmt);  // a condition
+            return;
+        }
+        SemSym target = CallGraph.target(stmt);
+        if (target != null) {
+            bump(target);  // ++, -- or cin
+            return;
+        }
+        for (ASTnode kid : stmt.kids()) {
+            if (kid instanceof ExpNode) {
+                exp((ExpNode)kid);
+            }
+        }
+    }
+
+    // number the values of exp, in the order the code computes them, and
+    // return the key of its value, or null if it has none
+    private String exp(ExpNode exp) {
+        if (Hoister.isClaimed(exp)) {
+            return null;  // computed before its loop, and free of effects
+        }
+        int mark = added.size();
+        int found = matches.size();
+        List<ASTnode> kids = exp.kids();
+        String key;
+        if (exp instanceof IntLitNode) {
+            return "k" + ((IntLitNode)exp).value();
+        } else if (exp instanceof TrueNode) {
+            return "k1";
+        } else if (exp instanceof FalseNode) {
+            return "k0";
+        } else if (exp instanceof IdNode) {
+            SemSym sym = ((IdNode)exp).sym();
+            if (!isScalar(sym.getType()) || sym.getClass() != SemSym.class) {
+                return null;
+            }
+            key = "v" + id(sym) + "." + version(sym);
+            if (!sym.isGlobal()) {
+                return key;
+            }
+        } else if (exp instanceof DotAccessExpNode) {
+            if (!isScalar(exp.typeCheck())) {
+                return null;
+            }
+            DotAccessExpNode dot = (DotAccessExpNode)exp;
+            SemSym root = dot.root().sym();
+            key = "f" + id(root) + "." + version(root) + "+" +
+                  dot.fieldOffset();
+        } else if (exp instanceof AssignNode) {
+            exp((ExpNode)kids.get(1));
+            bump(CallGraph.target(exp));
+            return null;
+        } else if (exp instanceof CallExpNode) {
+            for (ASTnode actual : kids.get(1).kids()) {
+                exp((ExpNode)actual);
+            }
+            for (SemSym sym : calls.mayWrite(((CallExpNode)exp).callee())) {
+                bump(sym);
+            }
+            return null;
+        } else if (exp instanceof UnaryExpNode) {
+            String operand = exp((ExpNode)kids.get(0));
+            key = operand == null ? null :
+                  "(" + operator(exp) + " " + operand + ")";
+        } else if (exp instanceof BinaryExpNode) {
+            String left = exp((ExpNode)kids.get(0));
+            int right = added.size();
+            String rightKey = exp((ExpNode)kids.get(1));
+            if (exp instanceof LogicalExpNode) {
+                undo(right);
+            }
+            key = left == null || rightKey == null ? null :
+                  binary(exp, left, rightKey);
+        } else {
+            return null;  // a string literal
+        }
+        if (key == null || (key.indexOf('v') < 0 && key.indexOf('f') < 0)) {
+            return key;  // no value, or a constant
+        }
+        ExpNode first = table.get(key);
+        if (first == null) {
+            table.put(key, exp);
+            added.add(key);
+        } else {
+            // the operands will not be computed either
+            undo(mark);
+            while (matches.size() > found) {
+                matches.remove(matches.size() - 1);
+            }
+            matches.add(new ExpNode[] { exp, first });
+        }
+        return key;
+    }
+
+    private static String binary(ExpNode exp, String left, String right) {
+        String op = operator(exp);
+        if (exp instanceof GreaterNode || exp instanceof GreaterEqNode) {
+            String t = left;
+            left = right;
+            right = t;
+        } else if ((exp instanceof PlusNode || exp instanceof TimesNode ||
+                    exp instanceof EqualityExpNode ||
+                    exp instanceof LogicalExpNode) &&
+                   left.compareTo(right) > 0) {
+            String t = left;
+            left = right;
+            right = t;
+        }
+        return "(" + op + " " + left + " " + right + ")";
+    }
+
+    // the operator in a key; no v or f, which mark variables
+    private static String operator(ExpNode exp) {
+        if (exp instanceof UnaryMinusNode) return "~";
+        if (exp instanceof NotNode) return "!";
+        if (exp instanceof PlusNode) return "+";
+        if (exp instanceof MinusNode) return "-";
+        if (exp instanceof TimesNode) return "*";
+        if (exp instanceof DivideNode) return "/";
+        if (exp instanceof AndNode) return "&&";
+        if (exp instanceof OrNode) return "||";
+        if (exp instanceof EqualsNode) return "==";
+        if (exp instanceof NotEqualsNode) return "!=";
+        if (exp instanceof LessNode || exp instanceof GreaterNode) return "<";
+        return "<=";  // LessEqNode, GreaterEqNode
+    }
+
+    private static boolean isScalar(Type type) {
+        return type.isIntType() || type.isBoolType();
+    }
+
+    // the variables that may be written on a path from node to its child
+    // in the dominator tree, after node and before child
+    private Set<SemSym> between(Cfg.Node node, Cfg.Node child) {
+        Set<SemSym> written = new HashSet<SemSym>();
+        Set<Cfg.Node> before = reach(child.preds, node, false);
+        if (before.isEmpty()) {
+            return written;  // node is the only way in
+        }
+        Set<Cfg.Node> after = reach(node.succs, node, true);
+        for (Cfg.Node m : before) {
+            if (after.contains(m)) {
+                written.addAll(writes(m));
+            }
+        }
+        return written;
+    }
+
+    // the nodes reachable from the given ones, forward or backward,
+    // without going through stop
+    private static Set<Cfg.Node> reach(List<Cfg.Node> from, Cfg.Node stop,
+                                       boolean forward) {
+        Set<Cfg.Node> seen = new HashSet<Cfg.Node>();
+        Stack<Cfg.Node> todo = new Stack<Cfg.Node>();
+        for (Cfg.Node node : from) {
+            todo.push(node);
+        }
+        while (!todo.isEmpty()) {
+            Cfg.Node node = todo.pop();
+            if (node == stop || !seen.add(node)) {
+                continue;
+            }
+            for (Cfg.Node next : forward ? node.succs : node.preds) {
+                todo.push(next);
+            }
+        }
+        return seen;
+    }
+
+    private Set<SemSym> writes(Cfg.Node node) {
+        Set<SemSym> written = writes.get(node);
+        if (written != null) {
+            return written;
+        }
+        written = new HashSet<SemSym>();
+        Stack<ASTnode> todo = new Stack<ASTnode>();
+        if (node.ast != null) {
+            todo.push(node.ast);
+        }
+        while (!todo.isEmpty()) {
+            ASTnode ast = todo.pop();
+            SemSym target = CallGraph.target(ast);
+            if (target != null) {
+                written.add(target);
+            }
+            if (ast instanceof CallExpNode) {
+                written.addAll(calls.mayWrite(((CallExpNode)ast).callee()));
+            }
+            for (ASTnode kid : ast.kids()) {
+                todo.push(kid);
+            }
+        }
+        writes.put(node, written);
+        return written;
+    }
+
+    private void bump(SemSym sym) {
+        versions.put(sym, ++lastVersion);
+    }
+
+    private int version(SemSym sym) {
+        Integer v = versions.get(sym);
+        return v == null ? 0 : v;
+    }
+
+    private int id(SemSym sym) {
+        Integer id = ids.get(sym);
+        if (id == null) {
+            id = ids.size();
+            ids.put(sym, id);
+        }
+        return id;
+    }
+
+    // take the keys added since mark out of the table
+    private void undo(int mark) {
+        while (added.size() > mark) {
+            table.remove(added.remove(added.size() - 1));
+        }
+    }
+}
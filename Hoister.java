@@ -0,0 +1,165 @@
+import java.util.*;
+
+// **********************************************************************
+// The Hoister class does loop-invariant code motion for while loops.
+// harambe has no goto and no other kind of loop, so every loop of the
+// control-flow graph is a while statement: its test is the loop header,
+// the only way in is from the code before it, and that code is where the
+// preheader goes.  The loops are therefore taken straight from the AST.
+//
+// An expression is invariant in a loop if it only reads literals and int
+// or bool variables that nothing in the loop writes.  The writes of a
+// loop are the targets of its assignments, ++, -- and cin statements; a
+// call anywhere in the loop may write any global, so then no global is
+// invariant.  The largest invariant expressions that read at least one
+// variable (a global alone is worth hoisting: it saves a load) are
+// computed once before the loop into a temporary, which the register
+// allocator treats like any other local.
+//
+// Hoisting evaluates an expression even when the loop would not have,
+// which is harmless for everything but division.  A division is only
+// hoisted if its divisor is a nonzero literal, or if the loop test is
+// about to evaluate it anyway: it sits in the test, outside the right
+// operand of && or ||, and the test makes no calls that could produce
+// output first.
+//
+// Loops are analyzed outermost first.  An expression taken by an outer
+// loop is not considered again by the loops nested inside it.
+// **********************************************************************
+
+public class Hoister {
+    // expressions already hoisted by some loop
+    private static Set<ExpNode> claimed = new HashSet<ExpNode>();
+
+    /**
+     * Return the expressions of the loop with the given test and body to
+     * compute in its preheader, in evaluation order.
+     */
+    public static List<ExpNode> invariants(ExpNode test, ASTnode body) {
+        List<ExpNode> found = new ArrayList<ExpNode>();
+        if (!Options.licm) {
+            return found;
+        }
+        Set<SemSym> written = new HashSet<SemSym>();
+        boolean calls = false;
+        List<ASTnode> nodes = test.walk();
+        nodes.addAll(body.walk());
+        for (ASTnode node : nodes) {
+            if (node instanceof CallExpNode) {
+                calls = true;
+            } else if (node instanceof AssignNode ||
+                       node instanceof ReadStmtNode ||
+                       node instanceof PostIncStmtNode ||
+                       node instanceof PostDecStmtNode) {
+                ASTnode target = node.kids().get(0);
+                if (target instanceof IdNode)
+                    written.add(((IdNode)target).sym());
+            }
+        }
+        Hoister h = new Hoister(written, calls);
+        h.find(test, !hasCall(test), found);
+        h.find(body, false, found);
+        claimed.addAll(found);
+        Stats.report("licm loop at line " + test.lineNum() + ": " +
+                     found.size() + " expression" +
+                     (found.size() == 1 ? "" : "s") + " hoisted");
+        return found;
+    }
+
+    /**
+     * Return true if some loop hoisted the given expression.
+     */
+    public static boolean isClaimed(ExpNode exp) {
+        return claimed.contains(exp);
+    }
+
+    private Set<SemSym> written;
+    private boolean calls;
+
+    private Hoister(Set<SemSym> written, boolean calls) {
+        this.written = written;
+        this.calls = calls;
+    }
+
+    // add the largest hoistable expressions under node to found; first is
+    // true if node is evaluated whenever the loop test is
+    private void find(ASTnode node, boolean first, List<ExpNode> found) {
+        if (claimed.contains(node))
+            return;
+        if (node instanceof ExpNode) {
+            ExpNode exp = (ExpNode)node;
+            if (invariant(exp) && worthIt(exp) && divisionsSafe(exp, first)) {
+                found.add(exp);
+                return;
+            }
+        }
+        List<ASTnode> kids = node.kids();
+        for (int i = 0; i < kids.size(); i++) {
+            boolean always = first;
+            if (node instanceof LogicalExpNode && i == 1)
+                always = false;
+            find(kids.get(i), always, found);
+        }
+    }
+
+    private boolean invariant(ExpNode exp) {
+        if (exp instanceof IntLitNode || exp instanceof TrueNode ||
+            exp instanceof FalseNode)
+            return true;
+        if (exp instanceof IdNode) {
+            SemSym sym = ((IdNode)exp).sym();
+            if (!RegAlloc.isCandidate(sym) && !isScalarGlobal(sym))
+                return false;
+            if (sym.isGlobal() && calls)
+                return false;
+            return !written.contains(sym);
+        }
+        if (!(exp instanceof UnaryExpNode || exp instanceof BinaryExpNode))
+            return false;
+        for (ASTnode kid : exp.kids())
+            if (!invariant((ExpNode)kid))
+                return false;
+        return true;
+    }
+
+    // an expression is worth a temporary if it loads a global or computes
+    // something from a variable
+    private static boolean worthIt(ExpNode exp) {
+        if (exp instanceof IdNode)
+            return ((IdNode)exp).sym().isGlobal();
+        for (ASTnode node : exp.walk())
+            if (node instanceof IdNode)
+                return true;
+        return false;
+    }
+
+    private static boolean divisionsSafe(ASTnode node, boolean first) {
+        if (node instanceof DivideNode) {
+            ASTnode divisor = node.kids().get(1);
+            if (!first && !(divisor instanceof IntLitNode &&
+                            ((IntLitNode)divisor).value() != 0))
+                return false;
+        }
+        List<ASTnode> kids = node.kids();
+        for (int i = 0; i < kids.size(); i++) {
+            boolean always = first && !(node instanceof LogicalExpNode && i == 1);
+            if (!divisionsSafe(kids.get(i), always))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isScalarGlobal(SemSym sym) {
+        if (sym == null || !sym.isGlobal() || sym.getClass() != SemSym.class)
+            return false;
+        Type t = sym.getType();
+        return t.isIntType() || t.isBoolType();
+    }
+
+    private static boolean hasCall(ASTnode root) {
+        for (ASTnode node : root.walk())
+            if (node instanceof CallExpNode)
+                return true;
+        return false;
+    }
+}
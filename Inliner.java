@@ -0,0 +1,126 @@
+import java.util.*;
+
+// **********************************************************************
+// The Inliner class decides which functions are expanded inline at their
+// call sites.  The decision is made once for the whole program, by the
+// inline pass (see PassManager) before code generation, from the call
+// graph and a simple cost model:
+//     - main, and functions that can reach themselves through the call
+//       graph (directly or mutually recursive), are never inlined
+//     - functions with struct formals or locals are not inlined
+//     - a function whose body has at most -inline=N AST nodes is inlined
+//       at every call site; with -profile, a hot function may be larger
+//       and a function the run never called is not inlined (see Profile)
+//     - a function with a single call site is inlined if its body has at
+//       most SINGLE_SITE_FACTOR * N nodes, since inlining it does not
+//       grow the program
+// A function inlined at every call site is never called, so its own body
+// is not emitted.  FnDeclNode.genInline does the expansion.
+//
+// The decisions go into the -stats report, one line per function and one
+// per expanded call site.
+// **********************************************************************
+
+public class Inliner {
+    private static final int SINGLE_SITE_FACTOR = 4;
+
+    // every function, by its symbol
+    private static Map<SemSym, FnDeclNode> fns =
+        new HashMap<SemSym, FnDeclNode>();
+    // functions inlined at every call site
+    private static Set<SemSym> inlined = new HashSet<SemSym>();
+
+    /**
+     * Decide which functions of the program to inline, from its call
+     * graph.  Returns the number of functions inlined.
+     */
+    public static int decide(CallGraph graph) {
+        for (FnDeclNode fn : graph.functions()) {
+            fns.put(fn.sym(), fn);
+        }
+        for (FnDeclNode fn : graph.functions()) {
+            int size = size(fn);
+            int count = graph.sites(fn.sym());
+            int limit = Profile.inlineLimit(fn);
+            String why;
+            if (fn.name().equals("main")) {
+                continue;
+            } else if (Options.inlineSize == 0) {
+                why = "not inlined (inlining off)";
+            } else if (count == 0) {
+                why = "not inlined (never called)";
+            } else if (limit == 0) {
+                why = "not inlined (no calls in the profile)";
+            } else if (graph.reaches(fn.sym(), fn.sym())) {
+                why = "not inlined (recursive)";
+            } else if (hasStructs(fn)) {
+                why = "not inlined (struct variables)";
+            } else if (size <= limit ||
+                       (count == 1 && size <= SINGLE_SITE_FACTOR * limit)) {
+                inlined.add(fn.sym());
+                why = "inlined, body dropped";
+                if (size > Options.inlineSize &&
+                    !(count == 1 &&
+                      size <= SINGLE_SITE_FACTOR * Options.inlineSize))
+                    why += " (hot in the profile)";
+            } else {
+                why = "not inlined (too big)";
+            }
+            Stats.report("inline " + fn.name() + ": size " + size + ", " +
+                         count + " call site" + (count == 1 ? "" : "s") +
+                         ", " + why);
+        }
+        return inlined.size();
+    }
+
+    /**
+     * Return the function to expand at the given call, or null if the
+     * call stays a call.
+     */
+    public static FnDeclNode target(CallExpNode call) {
+        if (!inlined.contains(call.callee()))
+            return null;
+        return fns.get(call.callee());
+    }
+
+    /**
+     * Return true if the given function is inlined everywhere, so its
+     * body need not be emitted.
+     */
+    public static boolean isDropped(FnDeclNode fn) {
+        return inlined.contains(fn.sym());
+    }
+
+    /**
+     * Return the symbols the given function keeps in its frame: the
+     * formals in order, then the locals of every scope of the body.
+     */
+    public static List<SemSym> frameSyms(FnDeclNode fn) {
+        List<SemSym> syms = new ArrayList<SemSym>();
+        for (ASTnode node : fn.walk()) {
+            SemSym sym = null;
+            if (node instanceof FormalDeclNode)
+                sym = ((FormalDeclNode)node).sym();
+            else if (node instanceof VarDeclNode)
+                sym = ((VarDeclNode)node).sym();
+            if (sym != null)
+                syms.add(sym);
+        }
+        return syms;
+    }
+
+    // **********************************************************************
+    // helpers
+    // **********************************************************************
+
+    private static int size(FnDeclNode fn) {
+        return fn.walk().size();
+    }
+
+    private static boolean hasStructs(FnDeclNode fn) {
+        for (SemSym sym : frameSyms(fn))
+            if (sym instanceof StructSym)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.*;
+
+// **********************************************************************
+// An Instr is one instruction line of generated code, with the registers
+// it reads and writes and the memory it loads or stores.
+// **********************************************************************
+
+public class Instr {
+    public String line;     // as generated, comment included
+    public String op;
+    public String[] args;
+    public Set<String> uses = new HashSet<String>();
+    public Set<String> defs = new HashSet<String>();
+    public boolean loads;
+    public boolean stores;
+    // address of a load or store: a label, or an offset from baseReg
+    public String label;
+    public String baseReg;
+    public int offset;
+    public int size;
+
+    private static final Set<String> ALU = new HashSet<String>(Arrays.asList(
+        "add", "addu", "addi", "addiu", "sub", "subu", "subi", "and", "andi",
+        "or", "ori", "xor", "xori", "nor", "slt", "slti", "sltu", "sltiu",
+        "sll", "srl", "sra", "sllv", "srlv", "srav", "seq", "sne", "sge",
+        "sgeu", "sgt", "sgtu", "sle", "sleu", "neg", "negu", "not", "abs",
+        "move", "li", "la", "lui", "mul", "mfhi", "mflo"));
+    // ops that are one machine instruction when all operands are registers
+    private static final Set<String> ONE_WORD = new HashSet<String>(
+        Arrays.asList("add", "addu", "sub", "subu", "and", "or", "xor",
+                      "nor", "slt", "sltu", "sllv", "srlv", "srav", "move",
+                      "neg", "negu", "not", "mfhi", "mflo", "mult", "multu",
+                      "div", "divu", "nop"));
+    private static final Set<String> ENDS = new HashSet<String>(Arrays.asList(
+        "j", "jal", "jr", "jalr", "syscall", "break"));
+
+    /**
+     * Return the instruction on the given line, or null if the line is
+     * not a plain instruction (a label, directive, comment or blank line,
+     * or an instruction the scheduler does not know).
+     */
+    public static Instr parse(String line) {
+        if (!line.startsWith("\t"))
+            return null;
+        String text = line;
+        int hash = text.indexOf('#');
+        if (hash >= 0)
+            text = text.substring(0, hash);
+        text = text.trim();
+        if (text.length() == 0 || text.startsWith("."))
+            return null;
+        Instr instr = new Instr();
+        instr.line = line;
+        int space = text.indexOf(' ');
+        instr.op = space < 0 ? text : text.substring(0, space);
+        String rest = space < 0 ? "" : text.substring(space).trim();
+        instr.args = rest.length() == 0 ? new String[0] : rest.split(",\\s*");
+        return instr.classify() ? instr : null;
+    }
+
+    /**
+     * Return true if this instruction must end its block.
+     */
+    public boolean endsBlock() {
+        return ENDS.contains(op) || op.startsWith("b");
+    }
+
+    /**
+     * Return true if this instruction is a branch or jump (and so, with
+     * delayed branches, has a delay slot).
+     */
+    public boolean isBranch() {
+        return endsBlock() && !op.equals("syscall") && !op.equals("break");
+    }
+
+    /**
+     * Return true if the assembler turns this instruction into exactly
+     * one machine instruction, so that it may sit in a delay slot.
+     */
+    public boolean isSingle() {
+        if (endsBlock() || op.equals("la"))
+            return false;
+        if (loads || stores)
+            return label == null && fits(offset, true);
+        String last = args.length == 0 ? "" : args[args.length - 1];
+        if (!isInt(last))
+            return ONE_WORD.contains(op) &&
+                !(op.startsWith("div") && args.length == 3);
+        int n = Integer.parseInt(last);
+        if (op.equals("li"))
+            return fits(n, true) || fits(n, false);
+        if (op.equals("and") || op.equals("andi") || op.equals("or") ||
+            op.equals("ori") || op.equals("xor") || op.equals("xori"))
+            return fits(n, false);
+        if (op.equals("add") || op.equals("addu") || op.equals("addi") ||
+            op.equals("addiu") || op.equals("slt") || op.equals("slti") ||
+            op.equals("sltiu"))
+            return fits(n, true);
+        if (op.equals("sub") || op.equals("subu") || op.equals("subi"))
+            return fits(-n, true);
+        return op.equals("sll") || op.equals("srl") || op.equals("sra") ||
+            op.equals("lui");
+    }
+
+    /**
+     * Return true if this instruction and the given one may trade places:
+     * neither writes a register the other reads or writes, and they do
+     * not both touch memory with one of them storing (unless one is a
+     * global and the other a stack slot).
+     */
+    public boolean independent(Instr other) {
+        if (!Collections.disjoint(defs, other.uses) ||
+            !Collections.disjoint(uses, other.defs) ||
+            !Collections.disjoint(defs, other.defs))
+            return false;
+        if (!(stores && (other.loads || other.stores) ||
+              loads && other.stores))
+            return true;
+        return isGlobal() && onStack(other) || other.isGlobal() && onStack(this);
+    }
+
+    /**
+     * Return true if this instruction loads or stores a global: through
+     * its label or $gp.
+     */
+    public boolean isGlobal() {
+        return label != null || Codegen.GP.equals(baseReg);
+    }
+
+    private static boolean onStack(Instr instr) {
+        return Codegen.SP.equals(instr.baseReg) ||
+            Codegen.FP.equals(instr.baseReg);
+    }
+
+    // true if n fits a 16-bit immediate field
+    private static boolean fits(int n, boolean signed) {
+        return signed ? n >= -32768 && n <= 32767 : n >= 0 && n <= 0xffff;
+    }
+
+    static boolean isInt(String s) {
+        try {
+            Integer.parseInt(s);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    // fill in the registers and memory touched; false if the op is unknown
+    private boolean classify() {
+        String[] a = args;
+        if (op.equals("lw") || op.equals("lb") || op.equals("lbu") ||
+            op.equals("sw") || op.equals("sb")) {
+            if (a.length != 2)
+                return false;
+            size = op.equals("lw") || op.equals("sw") ? 4 : 1;
+            String addr = a[1];
+            int paren = addr.indexOf('(');
+            if (paren >= 0) {
+                baseReg = addr.substring(paren + 1, addr.length() - 1);
+                offset = paren == 0 ? 0 :
+                    Integer.parseInt(addr.substring(0, paren));
+                use(baseReg);
+            } else {
+                int plus = addr.indexOf('+');
+                label = plus < 0 ? addr : addr.substring(0, plus);
+                offset = plus < 0 ? 0 :
+                    Integer.parseInt(addr.substring(plus + 1));
+            }
+            if (op.startsWith("s")) {
+                stores = true;
+                use(a[0]);
+            } else {
+                loads = true;
+                def(a[0]);
+            }
+        } else if (op.equals("mult") || op.equals("multu") ||
+                   ((op.startsWith("div") || op.startsWith("rem")) &&
+                    a.length == 2)) {
+            use(a[0]);
+            use(a[1]);
+            defs.add("hi");
+            defs.add("lo");
+        } else if (endsBlock()) {
+            for (String arg : a)
+                use(arg);
+            if (op.equals("syscall")) {
+                uses.add(Codegen.V0);
+                uses.add(Codegen.A0);
+                defs.add(Codegen.V0);
+            } else if (op.startsWith("jal")) {
+                defs.add(Codegen.RA);
+            }
+        } else if (ALU.contains(op) || op.startsWith("div") ||
+                   op.startsWith("rem")) {
+            if (a.length == 0)
+                return false;
+            def(a[0]);
+            for (int i = 1; i < a.length; i++)
+                use(a[i]);
+            if (op.equals("mfhi"))
+                uses.add("hi");
+            else if (op.equals("mflo"))
+                uses.add("lo");
+            else if (op.equals("mul") || op.startsWith("div") ||
+                     op.startsWith("rem")) {
+                defs.add("hi");
+                defs.add("lo");
+            }
+        } else if (!op.equals("nop")) {
+            return false;
+        }
+        return true;
+    }
+
+    private void use(String arg) {
+        int paren = arg.indexOf('(');
+        if (paren >= 0)
+            arg = arg.substring(paren + 1, arg.length() - 1);
+        if (arg.startsWith("$") && !arg.equals("$zero"))
+            uses.add(arg);
+    }
+
+    private void def(String arg) {
+        if (arg.startsWith("$") && !arg.equals("$zero"))
+            defs.add(arg);
+    }
+}
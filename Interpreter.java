@@ -0,0 +1,1226 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The Interpreter class runs a checked program straight from its AST
+// (P6 -run), without generating MIPS code.  It first turns the bodies of
+// the functions into trees of its own nodes, each with an execute method;
+// a function is turned when it is first called.
+//
+// Some nodes rewrite themselves the first time they run, replacing
+// themselves in their parent by a node specialized for what they saw:
+//     binary operators   their operands were ints: a node for the int
+//                        operation (Add, Lt, ...), or for an int and a
+//                        literal (AddConst, LtConst, ...); strings: a
+//                        string comparison (StrEq, StrNe)
+//     cout               an int or bool, or a string
+//     calls              the function called, looked up and turned once
+// The first run goes through executeGeneric, which boxes its result;
+// after that the specialized nodes pass plain ints.
+//
+// Memory is one int array: the globals from the bottom, then the stack
+// from the top down.  A frame holds the formals and locals at the
+// offsets name analysis gave their SemSyms (divided by 4), from the
+// word of the first formal; bool fields of structs are bytes, as in the
+// generated code.  A call evaluates the actuals straight into the new
+// frame and passes the result back in retVal, so calls and returns
+// allocate nothing.  A return of a call jumps to the callee in the same
+// frame, as the generated code does, unless -tailcalls=off.
+// **********************************************************************
+
+public class Interpreter {
+    // words of memory (16M bytes)
+    private static final int MEMORY_WORDS = 1 << 22;
+    // stack size of the thread running the program, for deep recursion
+    private static final long THREAD_STACK = 1L << 30;
+
+    // what a statement tells the statements around it
+    private static final int NEXT = 0, RETURN = 1, TAIL = 2;
+
+    // binary operators
+    private static final int PLUS = 0, MINUS = 1, TIMES = 2, DIVIDE = 3,
+        LESS = 4, LESS_EQ = 5, GREATER = 6, GREATER_EQ = 7, EQUALS = 8,
+        NOT_EQUALS = 9;
+
+    private static final int[] mem = new int[MEMORY_WORDS];
+    // the lowest word in use on the stack, and the top of the globals
+    private static int sp;
+    private static int stackLimit;
+    // the value of the last return, and the function a tail call goes to
+    private static int retVal;
+    private static Function tailTarget;
+
+    // the byte address of each global
+    private static Map<SemSym, Integer> globals = new HashMap<SemSym, Integer>();
+    private static Map<SemSym, FnDeclNode> decls =
+        new HashMap<SemSym, FnDeclNode>();
+    private static Map<SemSym, Function> functions =
+        new HashMap<SemSym, Function>();
+
+    private static BufferedReader in;
+    private static PrintStream out;
+
+    // nodes made, and nodes that rewrote themselves
+    private static int nodes = 0;
+    private static int rewrites = 0;
+
+    /**
+     * Run the given program, which has passed type checking, reading
+     * System.in and writing System.out.  Returns the number of nodes that
+     * rewrote themselves.
+     */
+    public static int run(ProgramNode program) {
+        int next = 0;
+        FnDeclNode main = null;
+        for (ASTnode decl : program.kids().get(0).kids()) {
+            if (decl instanceof VarDeclNode &&
+                ((VarDeclNode)decl).sym() != null) {
+                globals.put(((VarDeclNode)decl).sym(), next);
+                next += ((VarDeclNode)decl).size();
+            } else if (decl instanceof FnDeclNode) {
+                FnDeclNode fn = (FnDeclNode)decl;
+                decls.put(fn.sym(), fn);
+                if (fn.name().equals("main")) {
+                    main = fn;
+                }
+            }
+        }
+        if (main == null) {
+            fail("no main function");
+        }
+        stackLimit = next / 4;
+        sp = MEMORY_WORDS;
+        in = new BufferedReader(new InputStreamReader(System.in));
+        out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16));
+
+        final Function entry = function(main.sym());
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                try {
+                    entry.invoke(MEMORY_WORDS - 1);
+                } catch (ArithmeticException ex) {
+                    fail("division by zero");
+                } catch (StackOverflowError ex) {
+                    fail("stack overflow");
+                } catch (ArrayIndexOutOfBoundsException ex) {
+                    //actuals stored below the bottom of memory
+                    fail("stack overflow");
+                }
+                out.flush();
+            }
+        }, "interpreter", THREAD_STACK);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            fail("interrupted");
+        }
+        Stats.report("interp: " + functions.size() + " functions, " + nodes +
+                     " nodes, " + rewrites + " rewritten");
+        return rewrites;
+    }
+
+    private static void fail(String msg) {
+        if (out != null) {
+            out.flush();
+        }
+        System.err.println("runtime error: " + msg);
+        System.exit(-1);
+    }
+
+    // the function with the given symbol, turned into nodes on first use
+    private static Function function(SemSym sym) {
+        Function f = functions.get(sym);
+        if (f == null) {
+            FnDeclNode decl = decls.get(sym);
+            ASTnode formals = decl.kids().get(1);
+            FnBodyNode body = (FnBodyNode)decl.kids().get(2);
+            int bytes = ((FormalsListNode)formals).totalFormalsOffsetSize() +
+                8 + body.totalLocalsOffsetSize();
+            f = new Function(decl.name(), bytes / 4,
+                             block(body.kids().get(1)));
+            functions.put(sym, f);
+        }
+        return f;
+    }
+
+    // **********************************************************************
+    // Turning the AST into nodes
+    // **********************************************************************
+
+    private static Block block(ASTnode stmts) {
+        List<ASTnode> kids = stmts.kids();
+        Stmt[] list = new Stmt[kids.size()];
+        for (int i = 0; i < list.length; i++) {
+            list[i] = stmt((StmtNode)kids.get(i));
+        }
+        return new Block(list);
+    }
+
+    private static Stmt stmt(StmtNode s) {
+        List<ASTnode> kids = s.kids();
+        if (s instanceof AssignStmtNode || s instanceof CallStmtNode) {
+            return new ExprStmt(expr(kids.get(0)));
+        } else if (s instanceof PostIncStmtNode ||
+                   s instanceof PostDecStmtNode) {
+            int delta = s instanceof PostIncStmtNode ? 1 : -1;
+            Loc loc = loc(kids.get(0));
+            if (loc instanceof LocalWord) {
+                return new IncLocal(((LocalWord)loc).word, delta);
+            }
+            return new IncLoc(loc, delta);
+        } else if (s instanceof ReadStmtNode) {
+            return new Read(loc(kids.get(0)));
+        } else if (s instanceof WriteStmtNode) {
+            return new UninitWrite(expr(kids.get(0)));
+        } else if (s instanceof IfStmtNode) {
+            return new If(expr(kids.get(0)), block(kids.get(2)));
+        } else if (s instanceof IfElseStmtNode) {
+            return new IfElse(expr(kids.get(0)), block(kids.get(2)),
+                              block(kids.get(4)));
+        } else if (s instanceof WhileStmtNode) {
+            return new While(expr(kids.get(0)), block(kids.get(2)));
+        } else if (s instanceof ReturnStmtNode) {
+            if (kids.isEmpty()) {
+                return new Return(null);
+            }
+            if (kids.get(0) instanceof CallExpNode && Options.tailCalls) {
+                CallExpNode call = (CallExpNode)kids.get(0);
+                return new UninitTailCall(call.callee(), actuals(call));
+            }
+            return new Return(expr(kids.get(0)));
+        }
+        fail("cannot run " + s.getClass().getName());
+        return null;
+    }
+
+    private static Expr expr(ASTnode e) {
+        List<ASTnode> kids = e.kids();
+        if (e instanceof IntLitNode) {
+            return new Const(((IntLitNode)e).value());
+        } else if (e instanceof TrueNode) {
+            return new Const(1);
+        } else if (e instanceof FalseNode) {
+            return new Const(0);
+        } else if (e instanceof StringLitNode) {
+            return new StrLit(((StringLitNode)e).chars());
+        } else if (e instanceof IdNode || e instanceof DotAccessExpNode) {
+            return loc(e);
+        } else if (e instanceof AssignNode) {
+            Loc loc = loc(kids.get(0));
+            Expr value = expr(kids.get(1));
+            if (loc instanceof LocalWord) {
+                return new AssignLocal(((LocalWord)loc).word, value);
+            }
+            return new AssignLoc(loc, value);
+        } else if (e instanceof CallExpNode) {
+            CallExpNode call = (CallExpNode)e;
+            return new UninitCall(call.callee(), actuals(call));
+        } else if (e instanceof UnaryMinusNode) {
+            return new Neg(expr(kids.get(0)));
+        } else if (e instanceof NotNode) {
+            return new Not(expr(kids.get(0)));
+        } else if (e instanceof AndNode) {
+            return new And(expr(kids.get(0)), expr(kids.get(1)));
+        } else if (e instanceof OrNode) {
+            return new Or(expr(kids.get(0)), expr(kids.get(1)));
+        }
+        int op = e instanceof PlusNode ? PLUS :
+            e instanceof MinusNode ? MINUS :
+            e instanceof TimesNode ? TIMES :
+            e instanceof DivideNode ? DIVIDE :
+            e instanceof LessNode ? LESS :
+            e instanceof LessEqNode ? LESS_EQ :
+            e instanceof GreaterNode ? GREATER :
+            e instanceof GreaterEqNode ? GREATER_EQ :
+            e instanceof EqualsNode ? EQUALS :
+            e instanceof NotEqualsNode ? NOT_EQUALS : -1;
+        if (op < 0) {
+            fail("cannot run " + e.getClass().getName());
+        }
+        return new UninitBinary(op, expr(kids.get(0)), expr(kids.get(1)));
+    }
+
+    private static Expr[] actuals(CallExpNode call) {
+        List<ASTnode> kids = call.kids().get(1).kids();
+        Expr[] args = new Expr[kids.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = expr(kids.get(i));
+        }
+        return args;
+    }
+
+    // the node for a variable or a field
+    private static Loc loc(ASTnode e) {
+        IdNode root;
+        int offset = 0;
+        boolean isByte = false;
+        if (e instanceof DotAccessExpNode) {
+            DotAccessExpNode dot = (DotAccessExpNode)e;
+            root = dot.root();
+            offset = dot.fieldOffset();
+            isByte = dot.isByte();
+        } else {
+            root = (IdNode)e;
+        }
+        SemSym sym = root.sym();
+        if (sym.isGlobal()) {
+            int addr = globals.get(sym) + offset;
+            return isByte ? new GlobalByte(addr) : new GlobalWord(addr / 4);
+        }
+        offset += sym.getSymOffsetSize();
+        return isByte ? new LocalByte(offset) : new LocalWord(offset / 4);
+    }
+
+    private static int readInt() {
+        out.flush();
+        try {
+            String line = in.readLine();
+            return line == null ? 0 : Integer.parseInt(line.trim());
+        } catch (IOException ex) {
+            return 0;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    // **********************************************************************
+    // Nodes
+    // **********************************************************************
+
+    private abstract static class Node {
+        Node parent;
+
+        Node() {
+            nodes++;
+        }
+
+        // make this node the parent of child
+        <T extends Node> T adopt(T child) {
+            if (child != null) {
+                child.parent = this;
+            }
+            return child;
+        }
+
+        // put now where old is among the children
+        void replaceChild(Node old, Node now) {
+        }
+
+        // put now in this node's place in its parent
+        <T extends Node> T replace(T now) {
+            now.parent = parent;
+            parent.replaceChild(this, now);
+            rewrites++;
+            return now;
+        }
+    }
+
+    private static final class Function {
+        final String name;
+        final int frameWords;
+        final Block body;
+
+        Function(String name, int frameWords, Block body) {
+            this.name = name;
+            this.frameWords = frameWords;
+            this.body = body;
+        }
+
+        // run the function with its frame at fp, the actuals in place;
+        // tail calls from it run here too
+        int invoke(int fp) {
+            Function f = this;
+            while (true) {
+                sp = fp - f.frameWords + 1;
+                if (sp <= stackLimit) {
+                    fail("stack overflow in " + f.name);
+                }
+                if (f.body.execute(fp) != TAIL) {
+                    return retVal;
+                }
+                f = tailTarget;
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Statements: execute returns NEXT, RETURN or TAIL
+    // ----------------------------------------------------------------------
+
+    private abstract static class Stmt extends Node {
+        abstract int execute(int fp);
+    }
+
+    private static final class Block extends Stmt {
+        final Stmt[] stmts;
+
+        Block(Stmt[] stmts) {
+            this.stmts = stmts;
+            for (Stmt s : stmts) {
+                adopt(s);
+            }
+        }
+
+        int execute(int fp) {
+            Stmt[] list = stmts;
+            for (int i = 0; i < list.length; i++) {
+                int status = list[i].execute(fp);
+                if (status != NEXT) {
+                    return status;
+                }
+            }
+            return NEXT;
+        }
+
+        void replaceChild(Node old, Node now) {
+            for (int i = 0; i < stmts.length; i++) {
+                if (stmts[i] == old) {
+                    stmts[i] = (Stmt)now;
+                }
+            }
+        }
+    }
+
+    private static final class ExprStmt extends Stmt {
+        Expr exp;
+
+        ExprStmt(Expr exp) {
+            this.exp = adopt(exp);
+        }
+
+        int execute(int fp) {
+            exp.execute(fp);
+            return NEXT;
+        }
+
+        void replaceChild(Node old, Node now) {
+            exp = (Expr)now;
+        }
+    }
+
+    private static final class IncLocal extends Stmt {
+        final int word;
+        final int delta;
+
+        IncLocal(int word, int delta) {
+            this.word = word;
+            this.delta = delta;
+        }
+
+        int execute(int fp) {
+            mem[fp + word] += delta;
+            return NEXT;
+        }
+    }
+
+    private static final class IncLoc extends Stmt {
+        final Loc loc;
+        final int delta;
+
+        IncLoc(Loc loc, int delta) {
+            this.loc = adopt(loc);
+            this.delta = delta;
+        }
+
+        int execute(int fp) {
+            loc.store(fp, loc.execute(fp) + delta);
+            return NEXT;
+        }
+    }
+
+    private static final class Read extends Stmt {
+        final Loc loc;
+
+        Read(Loc loc) {
+            this.loc = adopt(loc);
+        }
+
+        int execute(int fp) {
+            loc.store(fp, readInt());
+            return NEXT;
+        }
+    }
+
+    private static final class UninitWrite extends Stmt {
+        Expr exp;
+
+        UninitWrite(Expr exp) {
+            this.exp = adopt(exp);
+        }
+
+        int execute(int fp) {
+            Object value = exp.executeGeneric(fp);
+            if (value instanceof String) {
+                replace(new WriteString(exp));
+            } else {
+                replace(new WriteInt(exp));
+            }
+            out.print(value);
+            return NEXT;
+        }
+
+        void replaceChild(Node old, Node now) {
+            exp = (Expr)now;
+        }
+    }
+
+    private static final class WriteInt extends Stmt {
+        Expr exp;
+
+        WriteInt(Expr exp) {
+            this.exp = adopt(exp);
+        }
+
+        int execute(int fp) {
+            out.print(exp.execute(fp));
+            return NEXT;
+        }
+
+        void replaceChild(Node old, Node now) {
+            exp = (Expr)now;
+        }
+    }
+
+    private static final class WriteString extends Stmt {
+        Expr exp;
+
+        WriteString(Expr exp) {
+            this.exp = adopt(exp);
+        }
+
+        int execute(int fp) {
+            out.print(exp.executeString(fp));
+            return NEXT;
+        }
+
+        void replaceChild(Node old, Node now) {
+            exp = (Expr)now;
+        }
+    }
+
+    private static final class If extends Stmt {
+        Expr cond;
+        final Block body;
+
+        If(Expr cond, Block body) {
+            this.cond = adopt(cond);
+            this.body = adopt(body);
+        }
+
+        int execute(int fp) {
+            if (cond.execute(fp) != 0) {
+                return body.execute(fp);
+            }
+            return NEXT;
+        }
+
+        void replaceChild(Node old, Node now) {
+            cond = (Expr)now;
+        }
+    }
+
+    private static final class IfElse extends Stmt {
+        Expr cond;
+        final Block then;
+        final Block otherwise;
+
+        IfElse(Expr cond, Block then, Block otherwise) {
+            this.cond = adopt(cond);
+            this.then = adopt(then);
+            this.otherwise = adopt(otherwise);
+        }
+
+        int execute(int fp) {
+            if (cond.execute(fp) != 0) {
+                return then.execute(fp);
+            }
+            return otherwise.execute(fp);
+        }
+
+        void replaceChild(Node old, Node now) {
+            cond = (Expr)now;
+        }
+    }
+
+    private static final class While extends Stmt {
+        Expr cond;
+        final Block body;
+
+        While(Expr cond, Block body) {
+            this.cond = adopt(cond);
+            this.body = adopt(body);
+        }
+
+        int execute(int fp) {
+            while (cond.execute(fp) != 0) {
+                int status = body.execute(fp);
+                if (status != NEXT) {
+                    return status;
+                }
+            }
+            return NEXT;
+        }
+
+        void replaceChild(Node old, Node now) {
+            cond = (Expr)now;
+        }
+    }
+
+    private static final class Return extends Stmt {
+        Expr exp;  // null in "return;"
+
+        Return(Expr exp) {
+            this.exp = adopt(exp);
+        }
+
+        int execute(int fp) {
+            if (exp != null) {
+                retVal = exp.execute(fp);
+            }
+            return RETURN;
+        }
+
+        void replaceChild(Node old, Node now) {
+            exp = (Expr)now;
+        }
+    }
+
+    // "return f(...);" before its first run
+    private static final class UninitTailCall extends Stmt {
+        final SemSym callee;
+        final Expr[] args;
+
+        UninitTailCall(SemSym callee, Expr[] args) {
+            this.callee = callee;
+            this.args = args;
+            for (Expr arg : args) {
+                adopt(arg);
+            }
+        }
+
+        int execute(int fp) {
+            return replace(new TailCall(function(callee), args)).execute(fp);
+        }
+
+        void replaceChild(Node old, Node now) {
+            replaceArg(args, old, now);
+        }
+    }
+
+    // "return f(...);": put the actuals in this frame's formals and let
+    // Function.invoke run f in it
+    private static final class TailCall extends Stmt {
+        final Function fn;
+        final Expr[] args;
+
+        TailCall(Function fn, Expr[] args) {
+            this.fn = fn;
+            this.args = args;
+            for (Expr arg : args) {
+                adopt(arg);
+            }
+        }
+
+        int execute(int fp) {
+            Expr[] actuals = args;
+            int n = actuals.length;
+            // the actuals may read the formals: evaluate them below the
+            // frame first
+            int temps = sp - 1;
+            sp -= n;
+            for (int i = 0; i < n; i++) {
+                mem[temps - i] = actuals[i].execute(fp);
+            }
+            for (int i = 0; i < n; i++) {
+                mem[fp - i] = mem[temps - i];
+            }
+            sp += n;
+            tailTarget = fn;
+            return TAIL;
+        }
+
+        void replaceChild(Node old, Node now) {
+            replaceArg(args, old, now);
+        }
+    }
+
+    private static void replaceArg(Expr[] args, Node old, Node now) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == old) {
+                args[i] = (Expr)now;
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // Expressions: ints and bools (0 or 1) are ints, strings are Strings
+    // ----------------------------------------------------------------------
+
+    private abstract static class Expr extends Node {
+        abstract int execute(int fp);
+
+        // the value, boxed; the first run of a node goes through here
+        Object executeGeneric(int fp) {
+            return execute(fp);
+        }
+
+        String executeString(int fp) {
+            fail("not a string");
+            return null;
+        }
+    }
+
+    private static final class Const extends Expr {
+        final int value;
+
+        Const(int value) {
+            this.value = value;
+        }
+
+        int execute(int fp) {
+            return value;
+        }
+    }
+
+    private static final class StrLit extends Expr {
+        final String value;
+
+        StrLit(String value) {
+            this.value = value;
+        }
+
+        int execute(int fp) {
+            fail("not an int");
+            return 0;
+        }
+
+        Object executeGeneric(int fp) {
+            return value;
+        }
+
+        String executeString(int fp) {
+            return value;
+        }
+    }
+
+    // a variable or field; execute loads it
+    private abstract static class Loc extends Expr {
+        abstract void store(int fp, int value);
+    }
+
+    private static final class LocalWord extends Loc {
+        final int word;  // from fp
+
+        LocalWord(int word) {
+            this.word = word;
+        }
+
+        int execute(int fp) {
+            return mem[fp + word];
+        }
+
+        void store(int fp, int value) {
+            mem[fp + word] = value;
+        }
+    }
+
+    private static final class GlobalWord extends Loc {
+        final int word;
+
+        GlobalWord(int word) {
+            this.word = word;
+        }
+
+        int execute(int fp) {
+            return mem[word];
+        }
+
+        void store(int fp, int value) {
+            mem[word] = value;
+        }
+    }
+
+    private static final class LocalByte extends Loc {
+        final int offset;  // bytes from fp
+
+        LocalByte(int offset) {
+            this.offset = offset;
+        }
+
+        int execute(int fp) {
+            return loadByte(fp * 4 + offset);
+        }
+
+        void store(int fp, int value) {
+            storeByte(fp * 4 + offset, value);
+        }
+    }
+
+    private static final class GlobalByte extends Loc {
+        final int addr;
+
+        GlobalByte(int addr) {
+            this.addr = addr;
+        }
+
+        int execute(int fp) {
+            return loadByte(addr);
+        }
+
+        void store(int fp, int value) {
+            storeByte(addr, value);
+        }
+    }
+
+    // the bytes of a word go from its low end up, as on little-endian
+    // MIPS
+    private static int loadByte(int addr) {
+        return mem[addr >> 2] >>> ((addr & 3) << 3) & 0xff;
+    }
+
+    private static void storeByte(int addr, int value) {
+        int shift = (addr & 3) << 3;
+        int w = addr >> 2;
+        mem[w] = mem[w] & ~(0xff << shift) | (value & 0xff) << shift;
+    }
+
+    private static final class AssignLocal extends Expr {
+        final int word;
+        Expr exp;
+
+        AssignLocal(int word, Expr exp) {
+            this.word = word;
+            this.exp = adopt(exp);
+        }
+
+        int execute(int fp) {
+            int value = exp.execute(fp);
+            mem[fp + word] = value;
+            return value;
+        }
+
+        void replaceChild(Node old, Node now) {
+            exp = (Expr)now;
+        }
+    }
+
+    private static final class AssignLoc extends Expr {
+        final Loc loc;
+        Expr exp;
+
+        AssignLoc(Loc loc, Expr exp) {
+            this.loc = adopt(loc);
+            this.exp = adopt(exp);
+        }
+
+        int execute(int fp) {
+            int value = exp.execute(fp);
+            loc.store(fp, value);
+            return value;
+        }
+
+        void replaceChild(Node old, Node now) {
+            exp = (Expr)now;
+        }
+    }
+
+    // a call before its first run
+    private static final class UninitCall extends Expr {
+        final SemSym callee;
+        final Expr[] args;
+
+        UninitCall(SemSym callee, Expr[] args) {
+            this.callee = callee;
+            this.args = args;
+            for (Expr arg : args) {
+                adopt(arg);
+            }
+        }
+
+        int execute(int fp) {
+            return replace(new Call(function(callee), args)).execute(fp);
+        }
+
+        void replaceChild(Node old, Node now) {
+            replaceArg(args, old, now);
+        }
+    }
+
+    private static final class Call extends Expr {
+        final Function fn;
+        final Expr[] args;
+
+        Call(Function fn, Expr[] args) {
+            this.fn = fn;
+            this.args = args;
+            for (Expr arg : args) {
+                adopt(arg);
+            }
+        }
+
+        int execute(int fp) {
+            Expr[] actuals = args;
+            int saved = sp;
+            int callee = saved - 1;
+            // calls made by the actuals go below them
+            sp = callee - actuals.length + 1;
+            for (int i = 0; i < actuals.length; i++) {
+                mem[callee - i] = actuals[i].execute(fp);
+            }
+            int value = fn.invoke(callee);
+            sp = saved;
+            return value;
+        }
+
+        void replaceChild(Node old, Node now) {
+            replaceArg(args, old, now);
+        }
+    }
+
+    private abstract static class Unary extends Expr {
+        Expr exp;
+
+        Unary(Expr exp) {
+            this.exp = adopt(exp);
+        }
+
+        void replaceChild(Node old, Node now) {
+            exp = (Expr)now;
+        }
+    }
+
+    private static final class Neg extends Unary {
+        Neg(Expr exp) {
+            super(exp);
+        }
+
+        int execute(int fp) {
+            return -exp.execute(fp);
+        }
+    }
+
+    private static final class Not extends Unary {
+        Not(Expr exp) {
+            super(exp);
+        }
+
+        int execute(int fp) {
+            return exp.execute(fp) ^ 1;
+        }
+    }
+
+    private abstract static class Binary extends Expr {
+        Expr left;
+        Expr right;
+
+        Binary(Expr left, Expr right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        void replaceChild(Node old, Node now) {
+            if (left == old) {
+                left = (Expr)now;
+            }
+            if (right == old) {
+                right = (Expr)now;
+            }
+        }
+    }
+
+    private static final class And extends Binary {
+        And(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) != 0 ? right.execute(fp) : 0;
+        }
+    }
+
+    private static final class Or extends Binary {
+        Or(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) != 0 ? 1 : right.execute(fp);
+        }
+    }
+
+    // an arithmetic, relational or equality operator before its first run
+    private static final class UninitBinary extends Binary {
+        final int op;
+
+        UninitBinary(int op, Expr left, Expr right) {
+            super(left, right);
+            this.op = op;
+        }
+
+        int execute(int fp) {
+            return (Integer)executeGeneric(fp);
+        }
+
+        Object executeGeneric(int fp) {
+            Object a = left.executeGeneric(fp);
+            Object b = right.executeGeneric(fp);
+            if (a instanceof String) {
+                // == and != on string literals
+                boolean same = a.equals(b);
+                if (op == EQUALS) {
+                    replace(new StrEq(left, right));
+                    return same ? 1 : 0;
+                }
+                replace(new StrNe(left, right));
+                return same ? 0 : 1;
+            }
+            int x = (Integer)a;
+            int y = (Integer)b;
+            replace(specialize());
+            switch (op) {
+            case PLUS: return x + y;
+            case MINUS: return x - y;
+            case TIMES: return x * y;
+            case DIVIDE: return x / y;
+            case LESS: return x < y ? 1 : 0;
+            case LESS_EQ: return x <= y ? 1 : 0;
+            case GREATER: return x > y ? 1 : 0;
+            case GREATER_EQ: return x >= y ? 1 : 0;
+            case EQUALS: return x == y ? 1 : 0;
+            default: return x != y ? 1 : 0;
+            }
+        }
+
+        // the int node for this operator and these operands
+        private Expr specialize() {
+            if (right instanceof Const && op != TIMES && op != DIVIDE) {
+                int k = ((Const)right).value;
+                switch (op) {
+                case PLUS: return new AddConst(left, k);
+                case MINUS: return new AddConst(left, -k);
+                case LESS: return new LtConst(left, k);
+                case LESS_EQ: return new LeConst(left, k);
+                case GREATER: return new GtConst(left, k);
+                case GREATER_EQ: return new GeConst(left, k);
+                case EQUALS: return new EqConst(left, k);
+                default: return new NeConst(left, k);
+                }
+            }
+            switch (op) {
+            case PLUS: return new Add(left, right);
+            case MINUS: return new Sub(left, right);
+            case TIMES: return new Mul(left, right);
+            case DIVIDE: return new Div(left, right);
+            case LESS: return new Lt(left, right);
+            case LESS_EQ: return new Le(left, right);
+            case GREATER: return new Gt(left, right);
+            case GREATER_EQ: return new Ge(left, right);
+            case EQUALS: return new Eq(left, right);
+            default: return new Ne(left, right);
+            }
+        }
+    }
+
+    private static final class Add extends Binary {
+        Add(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) + right.execute(fp);
+        }
+    }
+
+    private static final class Sub extends Binary {
+        Sub(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) - right.execute(fp);
+        }
+    }
+
+    private static final class Mul extends Binary {
+        Mul(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) * right.execute(fp);
+        }
+    }
+
+    private static final class Div extends Binary {
+        Div(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) / right.execute(fp);
+        }
+    }
+
+    private static final class Lt extends Binary {
+        Lt(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) < right.execute(fp) ? 1 : 0;
+        }
+    }
+
+    private static final class Le extends Binary {
+        Le(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) <= right.execute(fp) ? 1 : 0;
+        }
+    }
+
+    private static final class Gt extends Binary {
+        Gt(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) > right.execute(fp) ? 1 : 0;
+        }
+    }
+
+    private static final class Ge extends Binary {
+        Ge(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) >= right.execute(fp) ? 1 : 0;
+        }
+    }
+
+    private static final class Eq extends Binary {
+        Eq(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) == right.execute(fp) ? 1 : 0;
+        }
+    }
+
+    private static final class Ne extends Binary {
+        Ne(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.execute(fp) != right.execute(fp) ? 1 : 0;
+        }
+    }
+
+    private static final class StrEq extends Binary {
+        StrEq(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.executeString(fp).equals(right.executeString(fp))
+                ? 1 : 0;
+        }
+    }
+
+    private static final class StrNe extends Binary {
+        StrNe(Expr left, Expr right) {
+            super(left, right);
+        }
+
+        int execute(int fp) {
+            return left.executeString(fp).equals(right.executeString(fp))
+                ? 0 : 1;
+        }
+    }
+
+    // an int operator whose right operand is the literal k
+    private abstract static class WithConst extends Unary {
+        final int k;
+
+        WithConst(Expr left, int k) {
+            super(left);
+            this.k = k;
+        }
+    }
+
+    private static final class AddConst extends WithConst {
+        AddConst(Expr left, int k) {
+            super(left, k);
+        }
+
+        int execute(int fp) {
+            return exp.execute(fp) + k;
+        }
+    }
+
+    private static final class LtConst extends WithConst {
+        LtConst(Expr left, int k) {
+            super(left, k);
+        }
+
+        int execute(int fp) {
+            return exp.execute(fp) < k ? 1 : 0;
+        }
+    }
+
+    private static final class LeConst extends WithConst {
+        LeConst(Expr left, int k) {
+            super(left, k);
+        }
+
+        int execute(int fp) {
+            return exp.execute(fp) <= k ? 1 : 0;
+        }
+    }
+
+    private static final class GtConst extends WithConst {
+        GtConst(Expr left, int k) {
+            super(left, k);
+        }
+
+        int execute(int fp) {
+            return exp.execute(fp) > k ? 1 : 0;
+        }
+    }
+
+    private static final class GeConst extends WithConst {
+        GeConst(Expr left, int k) {
+            super(left, k);
+        }
+
+        int execute(int fp) {
+            return exp.execute(fp) >= k ? 1 : 0;
+        }
+    }
+
+    private static final class EqConst extends WithConst {
+        EqConst(Expr left, int k) {
+            super(left, k);
+        }
+
+        int execute(int fp) {
+            return exp.execute(fp) == k ? 1 : 0;
+        }
+    }
+
+    private static final class NeConst extends WithConst {
+        NeConst(Expr left, int k) {
+            super(left, k);
+        }
+
+        int execute(int fp) {
+            return exp.execute(fp) != k ? 1 : 0;
+        }
+    }
+}
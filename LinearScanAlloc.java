@@ -0,0 +1,217 @@
+import java.util.*;
+
+// **********************************************************************
+// The LinearScanAlloc class is the linear-scan register allocator of
+// Poletto and Sarkar.  Each variable gets one live interval: the range of
+// positions, numbered along the backward liveness walk, from its first to
+// its last use or def.  Loops stretch the intervals of the variables live
+// at the loop head over the whole loop.  The intervals are then scanned in
+// order of their start; when no register is free, the interval that ends
+// last loses its register.
+//
+// Instead of losing its register everywhere, a local may be split at the
+// start of a top-level statement of the function body: it keeps the
+// register up to that statement, the statement stores it back to its
+// stack slot, and the rest of the function uses the slot.  Splitting is
+// limited to top-level statements because no branch or loop crosses them,
+// so the store reaches every later use.
+// **********************************************************************
+
+public class LinearScanAlloc extends RegAlloc {
+    // one live interval; positions are backward until assign() runs
+    private static class Interval {
+        SemSym sym;
+        int start = Integer.MAX_VALUE;
+        int end = Integer.MIN_VALUE;
+        boolean crossesCall = false;
+        boolean formal = false;
+        String reg = null;
+        StmtNode splitAt = null;
+
+        Interval(SemSym sym) {
+            this.sym = sym;
+        }
+
+        void extend(int pos) {
+            start = Math.min(start, pos);
+            end = Math.max(end, pos);
+        }
+    }
+
+    private LinkedHashMap<SemSym, Interval> intervals =
+        new LinkedHashMap<SemSym, Interval>();
+    private int pos = 0;
+    private Stack<Integer> loopEnds = new Stack<Integer>();
+    private List<Integer> calls = new ArrayList<Integer>();
+    private TreeMap<Integer, StmtNode> boundaries =
+        new TreeMap<Integer, StmtNode>();
+
+    public LinearScanAlloc(String fnName) {
+        super(fnName);
+    }
+
+    private Interval interval(SemSym sym) {
+        Interval iv = intervals.get(sym);
+        if (iv == null) {
+            iv = new Interval(sym);
+            intervals.put(sym, iv);
+        }
+        return iv;
+    }
+
+    // **********************************************************************
+    // liveness callbacks
+    // **********************************************************************
+
+    public void enterLoop(double trips) {
+        super.enterLoop(trips);
+        loopEnds.push(pos);
+    }
+
+    public void exitLoop(Set<SemSym> head) {
+        super.exitLoop(head);
+        int end = loopEnds.pop();
+        if (!recording())
+            return;
+        for (SemSym sym : head) {
+            Interval iv = interval(sym);
+            iv.extend(end);
+            iv.extend(pos);
+        }
+        pos++;
+    }
+
+    protected void recordUse(SemSym sym) {
+        interval(sym).extend(pos++);
+    }
+
+    protected void recordDef(SemSym sym, Set<SemSym> live, SemSym src) {
+        interval(sym).extend(pos++);
+    }
+
+    protected void recordCall(Set<SemSym> live) {
+        calls.add(pos++);
+    }
+
+    public void boundary(StmtNode stmt) {
+        if (recording())
+            boundaries.put(pos++, stmt);
+    }
+
+    // every formal with an interval starts here, read or not: the
+    // prologue moves them all in together, and so do self tail calls
+    public void entry(List<SemSym> formals, Set<SemSym> live) {
+        for (SemSym sym : formals) {
+            if (isCandidate(sym) &&
+                (live.contains(sym) || intervals.containsKey(sym))) {
+                Interval iv = interval(sym);
+                iv.formal = true;
+                iv.extend(pos);
+            }
+        }
+        for (SemSym sym : live)
+            interval(sym).extend(pos);
+        pos++;
+    }
+
+    // **********************************************************************
+    // allocation
+    // **********************************************************************
+
+    protected String assign() {
+        // turn the backward positions into program order
+        List<Interval> order = new ArrayList<Interval>(intervals.values());
+        for (Interval iv : order) {
+            int start = pos - iv.end;
+            iv.end = pos - iv.start;
+            iv.start = start;
+        }
+        TreeSet<Integer> callPos = new TreeSet<Integer>();
+        for (int c : calls)
+            callPos.add(pos - c);
+        TreeMap<Integer, StmtNode> splitPos = new TreeMap<Integer, StmtNode>();
+        for (Map.Entry<Integer, StmtNode> e : boundaries.entrySet())
+            splitPos.put(pos - e.getKey(), e.getValue());
+
+        for (Interval iv : order) {
+            Integer c = callPos.higher(iv.start);
+            iv.crossesCall = c != null && c < iv.end;
+        }
+
+        Collections.sort(order, new Comparator<Interval>() {
+            public int compare(Interval a, Interval b) {
+                return a.start - b.start;
+            }
+        });
+
+        List<Interval> active = new ArrayList<Interval>();
+        Set<String> taken = new HashSet<String>();
+        int spilled = 0;
+        int split = 0;
+        for (Interval cur : order) {
+            // expire the intervals that ended before this one starts
+            Iterator<Interval> it = active.iterator();
+            while (it.hasNext()) {
+                Interval a = it.next();
+                if (a.end < cur.start) {
+                    taken.remove(a.reg);
+                    it.remove();
+                }
+            }
+
+            String reg = cur.crossesCall ? null
+                : firstFree(CALLER_SAVED, taken);
+            if (reg == null)
+                reg = firstFree(CALLEE_SAVED, taken);
+            if (reg != null) {
+                cur.reg = reg;
+                taken.add(reg);
+                active.add(cur);
+                continue;
+            }
+
+            // no register: take one from the active interval ending last,
+            // if that ends after this one
+            Interval victim = null;
+            for (Interval a : active) {
+                if (cur.crossesCall && !a.reg.startsWith("$s"))
+                    continue;
+                if (victim == null || a.end > victim.end)
+                    victim = a;
+            }
+            if (victim == null || victim.end <= cur.end) {
+                spilled++;
+                continue;
+            }
+            Map.Entry<Integer, StmtNode> b = splitPos.floorEntry(cur.start);
+            if (!victim.formal && b != null && b.getKey() > victim.start) {
+                victim.splitAt = b.getValue();
+                split++;
+            } else {
+                spilled++;
+            }
+            cur.reg = victim.reg;
+            if (victim.splitAt == null)
+                victim.reg = null;
+            active.remove(victim);
+            active.add(cur);
+        }
+
+        int inRegs = 0;
+        Set<String> used = new TreeSet<String>();
+        for (Interval iv : order) {
+            iv.sym.setRegister(iv.reg);
+            if (iv.reg == null)
+                continue;
+            inRegs++;
+            used.add(iv.reg);
+            if (iv.splitAt != null)
+                iv.splitAt.addSplit(iv.sym);
+        }
+        for (String r : used)
+            if (r.startsWith("$s"))
+                calleeSaved.add(r);
+        return order.size() + " variables, " + inRegs + " in registers, " +
+            split + " split, " + spilled + " spilled";
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.*;
+
+// **********************************************************************
+// The Liveness class finds, for each node of a control-flow graph (see
+// Cfg), the formals and locals of the function that are live before and
+// after it: read on some path from there before being written.  It is
+// the usual backward dataflow problem, solved by iterating over the
+// nodes in reverse source order until nothing changes.
+//
+// A node reads the variables named anywhere in it and writes the targets
+// of its assignments, ++, -- and cin (so x = x + 1 reads and writes x).
+// Storing into a field writes only part of a struct, so it counts as a
+// read of the struct.  Globals are left out: any call may read them.
+//
+// It is an analysis kept by the PassManager.  The register allocators
+// keep their own liveness walk, which also tracks the temporaries of
+// the code generator.
+// **********************************************************************
+
+public class Liveness {
+    private Cfg cfg;
+    // the formals and locals, numbered for the bit sets below
+    private List<SemSym> vars;
+    private Map<SemSym, Integer> number = new HashMap<SemSym, Integer>();
+    // by node index: live before, live after, and written
+    private BitSet[] in;
+    private BitSet[] out;
+    private BitSet[] defs;
+
+    public Liveness(Cfg cfg) {
+        this.cfg = cfg;
+        vars = new ArrayList<SemSym>();
+        for (SemSym sym : Inliner.frameSyms(cfg.function())) {
+            if (!number.containsKey(sym)) {
+                number.put(sym, vars.size());
+                vars.add(sym);
+            }
+        }
+        List<Cfg.Node> nodes = cfg.nodes();
+        int n = nodes.size();
+        BitSet[] uses = new BitSet[n];
+        in = new BitSet[n];
+        out = new BitSet[n];
+        defs = new BitSet[n];
+        for (Cfg.Node node : nodes) {
+            int i = node.index;
+            uses[i] = new BitSet();
+            defs[i] = new BitSet();
+            if (node.ast != null) {
+                useDef(node.ast, number, uses[i], defs[i]);
+            }
+            in[i] = new BitSet();
+            out[i] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = n - 1; k >= 0; k--) {
+                Cfg.Node node = nodes.get(k);
+                int i = node.index;
+                BitSet after = out[i];
+                for (Cfg.Node succ : node.succs) {
+                    after.or(in[succ.index]);
+                }
+                BitSet before = (BitSet)after.clone();
+                before.andNot(defs[i]);
+                before.or(uses[i]);
+                if (!before.equals(in[i])) {
+                    in[i] = before;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the variables live before the given statement or condition.
+     */
+    public Set<SemSym> liveIn(ASTnode ast) {
+        return syms(in[cfg.node(ast).index]);
+    }
+
+    /**
+     * Return the variables live after the given statement or condition.
+     */
+    public Set<SemSym> liveOut(ASTnode ast) {
+        return syms(out[cfg.node(ast).index]);
+    }
+
+    /**
+     * Return the variables live on entry to the function: those that may
+     * be read before they are written, and the formals read.
+     */
+    public Set<SemSym> liveAtEntry() {
+        return syms(out[cfg.entry().index]);
+    }
+
+    /**
+     * Return the formals and locals, in the order of the bits of
+     * occupied.
+     */
+    public List<SemSym> variables() {
+        return vars;
+    }
+
+    /**
+     * Return the variables that hold a value at the given node: those
+     * live before or after it and those it writes, as bits numbered as
+     * in variables().
+     */
+    public BitSet occupied(Cfg.Node node) {
+        BitSet set = (BitSet)in[node.index].clone();
+        set.or(out[node.index]);
+        set.or(defs[node.index]);
+        return set;
+    }
+
+    private Set<SemSym> syms(BitSet bits) {
+        Set<SemSym> set = new HashSet<SemSym>();
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            set.add(vars.get(i));
+        }
+        return set;
+    }
+
+    // the frame variables the given node reads and writes
+    private static void useDef(ASTnode root, Map<SemSym, Integer> number,
+                               BitSet use, BitSet def) {
+        Set<ASTnode> targets = new HashSet<ASTnode>();
+        Stack<ASTnode> todo = new Stack<ASTnode>();
+        todo.push(root);
+        while (!todo.isEmpty()) {
+            ASTnode node = todo.pop();
+            if (node instanceof AssignNode || node instanceof ReadStmtNode) {
+                targets.add(node.kids().get(0));
+            }
+            if (node instanceof IdNode) {
+                Integer i = number.get(((IdNode)node).sym());
+                if (i != null) {
+                    if (targets.contains(node)) {
+                        def.set(i);
+                    } else {
+                        use.set(i);
+                    }
+                }
+            }
+            for (ASTnode kid : node.kids()) {
+                todo.push(kid);
+            }
+        }
+        // a variable read and written is live before the node
+        def.andNot(use);
+    }
+}
@@ -0,0 +1,1095 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The MipsSim class runs the MIPS assembly written by Codegen without
+// leaving the project.  It understands the subset of SPIM that the code
+// generator emits:
+//     directives:  .text .data .sdata .rdata .globl .align .space .asciiz
+//                  .ascii .word .byte .set
+//     pseudo ops:  li la move neg not subi b beqz bnez blt bgt ble bge
+//                  (and the unsigned forms), 3-operand div/rem/mul,
+//                  lw/sw/lb/lbu/sb on a label, immediate forms of the
+//                  R-type arithmetic ops
+//     syscalls:    1 (print_int) 4 (print_string) 5 (read_int)
+//                  10 (exit) 11 (print_char) 17 (exit2)
+//
+// Pseudo instructions are expanded the way SPIM expands them, so the
+// dynamic instruction counts are counts of real machine instructions.
+// The program is predecoded into a flat int array (OPS_PER_INSTR ints per
+// instruction) and executed by a single switch loop.
+//
+// -delayed runs with branch delay slots, as spim -delayed_branches does
+// (for code compiled with -delayed=on).  -stats prints the dynamic
+// instruction count, the loads, stores, branches and jumps and the speed
+// of the simulator to stderr; -mix adds the count of each opcode.
+// -timing also runs the program through the pipeline and cache model of
+// Pipeline and Cache and prints its cycles, CPI, stalls and miss rates;
+// -icache=SIZE:LINE:WAYS and -dcache=SIZE:LINE:WAYS set up the caches
+// (4096:16:1, direct mapped, by default) and -miss=N the cycles a miss
+// costs (10).
+//
+// Usage:  java MipsSim [-delayed] [-stats] [-mix] [-timing]
+//                      [-icache=SIZE:LINE:WAYS] [-dcache=SIZE:LINE:WAYS]
+//                      [-miss=N] file.s
+// **********************************************************************
+
+public class MipsSim {
+    // memory map (the SPIM defaults)
+    public static final int TEXT_BASE = 0x00400000;
+    public static final int DATA_BASE = 0x10000000;
+    public static final int GP_INIT = 0x10008000;
+    public static final int STACK_TOP = 0x7ffffffc;
+    private static final int DATA_SIZE = 1 << 22;
+    private static final int STACK_SIZE = 1 << 24;
+    private static final int STACK_BASE = STACK_TOP + 4 - STACK_SIZE;
+
+    // register numbers used by the expansions
+    private static final int ZERO = 0;
+    private static final int AT = 1;
+    private static final int V0 = 2;
+    private static final int A0 = 4;
+    private static final int GP = 28;
+    private static final int SP = 29;
+    private static final int RA = 31;
+
+    // opcodes of the predecoded form
+    static final int ADDU = 0, SUBU = 1, AND = 2, OR = 3, XOR = 4, NOR = 5,
+        SLT = 6, SLTU = 7, SLLV = 8, SRLV = 9, SRAV = 10, ADDIU = 11,
+        ANDI = 12, ORI = 13, XORI = 14, SLTI = 15, SLTIU = 16, LUI = 17,
+        SLL = 18, SRL = 19, SRA = 20, MULT = 21, MULTU = 22, DIV = 23,
+        DIVU = 24, MFHI = 25, MFLO = 26, MTHI = 27, MTLO = 28, MUL = 29,
+        LW = 30, LB = 31, LBU = 32, LH = 33, LHU = 34, SW = 35, SB = 36,
+        SH = 37, BEQ = 38, BNE = 39, BLTZ = 40, BGEZ = 41, BLEZ = 42,
+        BGTZ = 43, J = 44, JAL = 45, JR = 46, JALR = 47, SYSCALL = 48,
+        BREAK = 49, NOP = 50;
+    static final int NUM_OPS = 51;
+
+    static final String[] OP_NAMES = {
+        "addu", "subu", "and", "or", "xor", "nor", "slt", "sltu", "sllv",
+        "srlv", "srav", "addiu", "andi", "ori", "xori", "slti", "sltiu",
+        "lui", "sll", "srl", "sra", "mult", "multu", "div", "divu", "mfhi",
+        "mflo", "mthi", "mtlo", "mul", "lw", "lb", "lbu", "lh", "lhu", "sw",
+        "sb", "sh", "beq", "bne", "bltz", "bgez", "blez", "bgtz", "j",
+        "jal", "jr", "jalr", "syscall", "break", "nop"
+    };
+
+    // each instruction is op, x, y, z
+    static final int OPS_PER_INSTR = 4;
+
+    private static final String[] REG_NAMES = {
+        "zero", "at", "v0", "v1", "a0", "a1", "a2", "a3",
+        "t0", "t1", "t2", "t3", "t4", "t5", "t6", "t7",
+        "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7",
+        "t8", "t9", "k0", "k1", "gp", "sp", "fp", "ra"
+    };
+
+    // the predecoded program
+    int[] code = new int[1024];
+    int numInstrs = 0;
+    // source line of each instruction, for error messages
+    int[] srcLine = new int[256];
+    // text labels that start a function (no leading '.'), by instruction
+    TreeMap<Integer, String> fnStarts = new TreeMap<Integer, String>();
+
+    private byte[] data = new byte[DATA_SIZE];
+    private byte[] stack = new byte[STACK_SIZE];
+    private int dataEnd = DATA_BASE;
+
+    private HashMap<String, Integer> labels = new HashMap<String, Integer>();
+    private List<Fixup> fixups = new ArrayList<Fixup>();
+    private boolean delayed;
+    // the timing model, or null
+    Pipeline pipeline;
+
+    // machine state
+    int[] regs = new int[32];
+    int hi, lo;
+
+    // statistics
+    long instrCount;
+    long[] opCounts = new long[NUM_OPS];
+    long takenBranches;
+
+    private BufferedReader in;
+    private PrintStream out;
+    private int exitCode = 0;
+
+    // a label reference to patch once every label is known
+    private static class Fixup {
+        int index;      // instruction index (or data address for .word)
+        int kind;       // FIX_BRANCH, FIX_JUMP, FIX_HI, FIX_LO, FIX_WORD
+        String label;
+        int addend;
+        int line;
+        Fixup(int index, int kind, String label, int addend, int line) {
+            this.index = index;
+            this.kind = kind;
+            this.label = label;
+            this.addend = addend;
+            this.line = line;
+        }
+    }
+
+    private static final int FIX_BRANCH = 0, FIX_JUMP = 1, FIX_HI = 2,
+        FIX_LO = 3, FIX_WORD = 4;
+
+    public static class SimException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        public SimException(String msg) {
+            super(msg);
+        }
+    }
+
+    public MipsSim(boolean delayedBranches) {
+        delayed = delayedBranches;
+    }
+
+    // **********************************************************************
+    // ASSEMBLER
+    // **********************************************************************
+
+    /**
+     * Assemble the given program text.  Throws SimException on input the
+     * simulator does not understand.
+     */
+    public void assemble(String text) {
+        boolean inText = true;
+        String[] lines = text.split("\n");
+        for (int ln = 0; ln < lines.length; ln++) {
+            String line = stripComment(lines[ln]).trim();
+            // peel off any labels
+            while (true) {
+                int colon = labelEnd(line);
+                if (colon < 0)
+                    break;
+                String name = line.substring(0, colon).trim();
+                if (labels.containsKey(name))
+                    throw new SimException("line " + (ln + 1) +
+                                           ": duplicate label " + name);
+                if (inText) {
+                    labels.put(name, TEXT_BASE + 4 * numInstrs);
+                    if (!name.startsWith("."))
+                        fnStarts.put(numInstrs, name);
+                } else {
+                    labels.put(name, dataEnd);
+                }
+                line = line.substring(colon + 1).trim();
+            }
+            if (line.length() == 0)
+                continue;
+            if (line.startsWith(".")) {
+                String dir = firstWord(line);
+                String rest = line.substring(dir.length()).trim();
+                if (dir.equals(".text")) {
+                    inText = true;
+                } else if (dir.equals(".data") || dir.equals(".sdata") ||
+                           dir.equals(".rdata")) {
+                    inText = false;
+                } else if (dir.equals(".globl") || dir.equals(".set") ||
+                           dir.equals(".ent") || dir.equals(".end")) {
+                    // nothing to do
+                } else if (inText) {
+                    throw new SimException("line " + (ln + 1) +
+                                           ": data directive in .text");
+                } else {
+                    dataDirective(dir, rest, ln + 1);
+                }
+                continue;
+            }
+            if (!inText)
+                throw new SimException("line " + (ln + 1) +
+                                       ": instruction in data segment");
+            instruction(line, ln + 1);
+        }
+
+        for (Fixup f : fixups) {
+            Integer addr = labels.get(f.label);
+            if (addr == null)
+                throw new SimException("line " + f.line +
+                                       ": undefined label " + f.label);
+            int target = addr + f.addend;
+            switch (f.kind) {
+            case FIX_BRANCH:
+            case FIX_JUMP:
+                code[f.index * OPS_PER_INSTR + 3] = (target - TEXT_BASE) / 4;
+                break;
+            case FIX_HI:
+                code[f.index * OPS_PER_INSTR + 3] =
+                    (target + 0x8000) >>> 16;
+                break;
+            case FIX_LO:
+                code[f.index * OPS_PER_INSTR + 3] = (short)target;
+                break;
+            case FIX_WORD:
+                storeWord(f.index, target);
+                break;
+            }
+        }
+    }
+
+    private static String stripComment(String line) {
+        boolean inStr = false;
+        for (int k = 0; k < line.length(); k++) {
+            char c = line.charAt(k);
+            if (c == '"' && (k == 0 || line.charAt(k - 1) != '\\'))
+                inStr = !inStr;
+            else if (c == '#' && !inStr)
+                return line.substring(0, k);
+        }
+        return line;
+    }
+
+    // index of the ':' ending a leading label, or -1
+    private static int labelEnd(String line) {
+        for (int k = 0; k < line.length(); k++) {
+            char c = line.charAt(k);
+            if (c == ':')
+                return k;
+            if (!(Character.isLetterOrDigit(c) || c == '_' || c == '.' ||
+                  c == '$'))
+                return -1;
+        }
+        return -1;
+    }
+
+    private static String firstWord(String line) {
+        int k = 0;
+        while (k < line.length() && !Character.isWhitespace(line.charAt(k)))
+            k++;
+        return line.substring(0, k);
+    }
+
+    private void dataDirective(String dir, String rest, int ln) {
+        if (dir.equals(".align")) {
+            int a = 1 << Integer.parseInt(rest);
+            dataEnd = (dataEnd + a - 1) & -a;
+        } else if (dir.equals(".space")) {
+            dataEnd += parseInt(rest, ln);
+        } else if (dir.equals(".asciiz") || dir.equals(".ascii")) {
+            byte[] s = unescape(rest, ln);
+            for (byte b : s)
+                data[dataEnd++ - DATA_BASE] = b;
+            if (dir.equals(".asciiz"))
+                data[dataEnd++ - DATA_BASE] = 0;
+        } else if (dir.equals(".word")) {
+            dataEnd = (dataEnd + 3) & -4;
+            for (String w : rest.split(",")) {
+                w = w.trim();
+                if (isNumber(w)) {
+                    storeWord(dataEnd, parseInt(w, ln));
+                } else {
+                    fixups.add(new Fixup(dataEnd, FIX_WORD, w, 0, ln));
+                }
+                dataEnd += 4;
+            }
+        } else if (dir.equals(".byte")) {
+            for (String w : rest.split(","))
+                data[dataEnd++ - DATA_BASE] = (byte)parseInt(w.trim(), ln);
+        } else {
+            throw new SimException("line " + ln + ": unknown directive " + dir);
+        }
+        if (dataEnd - DATA_BASE >= DATA_SIZE)
+            throw new SimException("line " + ln + ": data segment full");
+    }
+
+    private static byte[] unescape(String lit, int ln) {
+        if (lit.length() < 2 || lit.charAt(0) != '"' ||
+            lit.charAt(lit.length() - 1) != '"')
+            throw new SimException("line " + ln + ": bad string " + lit);
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        for (int k = 1; k < lit.length() - 1; k++) {
+            char c = lit.charAt(k);
+            if (c == '\\') {
+                c = lit.charAt(++k);
+                switch (c) {
+                case 'n': c = '\n'; break;
+                case 't': c = '\t'; break;
+                case '0': c = 0; break;
+                default: break;      // \" \' \\ \?
+                }
+            }
+            b.write(c);
+        }
+        return b.toByteArray();
+    }
+
+    private static boolean isNumber(String s) {
+        if (s.length() == 0)
+            return false;
+        char c = s.charAt(0);
+        return Character.isDigit(c) || c == '-' || c == '+';
+    }
+
+    private static int parseInt(String s, int ln) {
+        s = s.trim();
+        try {
+            if (s.startsWith("0x") || s.startsWith("0X"))
+                return (int)Long.parseLong(s.substring(2), 16);
+            if (s.startsWith("-0x"))
+                return -(int)Long.parseLong(s.substring(3), 16);
+            return (int)Long.parseLong(s);
+        } catch (NumberFormatException ex) {
+            throw new SimException("line " + ln + ": bad number " + s);
+        }
+    }
+
+    private static int reg(String s, int ln) {
+        s = s.trim();
+        if (!s.startsWith("$"))
+            throw new SimException("line " + ln + ": expected register: " + s);
+        String r = s.substring(1);
+        if (Character.isDigit(r.charAt(0)))
+            return Integer.parseInt(r);
+        for (int k = 0; k < REG_NAMES.length; k++)
+            if (REG_NAMES[k].equals(r))
+                return k;
+        if (r.equals("s8"))
+            return 30;
+        throw new SimException("line " + ln + ": unknown register " + s);
+    }
+
+    private static boolean isReg(String s) {
+        return s.trim().startsWith("$");
+    }
+
+    private static String[] operands(String rest) {
+        if (rest.trim().length() == 0)
+            return new String[0];
+        String[] ops = rest.split(",");
+        for (int k = 0; k < ops.length; k++)
+            ops[k] = ops[k].trim();
+        return ops;
+    }
+
+    private void emit(int op, int x, int y, int z, int ln) {
+        if ((numInstrs + 1) * OPS_PER_INSTR > code.length)
+            code = Arrays.copyOf(code, code.length * 2);
+        if (numInstrs >= srcLine.length)
+            srcLine = Arrays.copyOf(srcLine, srcLine.length * 2);
+        int base = numInstrs * OPS_PER_INSTR;
+        code[base] = op;
+        code[base + 1] = x;
+        code[base + 2] = y;
+        code[base + 3] = z;
+        srcLine[numInstrs] = ln;
+        numInstrs++;
+    }
+
+    // load a 32-bit constant into register r (1 or 2 instructions)
+    private void loadImm(int r, int imm, int ln) {
+        if (imm >= -32768 && imm <= 32767) {
+            emit(ADDIU, r, ZERO, imm, ln);
+        } else if ((imm & 0xffff0000) == 0) {
+            emit(ORI, r, ZERO, imm, ln);
+        } else {
+            emit(LUI, AT, 0, imm >>> 16, ln);
+            if ((imm & 0xffff) != 0)
+                emit(ORI, r, AT, imm & 0xffff, ln);
+            else if (r != AT)
+                emit(ADDU, r, AT, ZERO, ln);
+        }
+    }
+
+    // split "label", "label+4", "label-4" into the label and addend
+    private static String labelPart(String s) {
+        int k = Math.max(s.indexOf('+', 1), s.indexOf('-', 1));
+        return k < 0 ? s : s.substring(0, k).trim();
+    }
+
+    private static int addendPart(String s, int ln) {
+        int k = Math.max(s.indexOf('+', 1), s.indexOf('-', 1));
+        return k < 0 ? 0 : parseInt(s.substring(k).replace("+", ""), ln);
+    }
+
+    // emit a memory op whose address is "off($r)", "label", "label+k" or
+    // "label($r)"
+    private void memOp(int op, int rt, String addr, int ln) {
+        int paren = addr.indexOf('(');
+        if (paren >= 0) {
+            String before = addr.substring(0, paren).trim();
+            int base = reg(addr.substring(paren + 1, addr.indexOf(')')), ln);
+            if (before.length() == 0 || isNumber(before)) {
+                int off = before.length() == 0 ? 0 : parseInt(before, ln);
+                if (off >= -32768 && off <= 32767) {
+                    emit(op, rt, base, off, ln);
+                } else {
+                    loadImm(AT, off, ln);
+                    emit(ADDU, AT, AT, base, ln);
+                    emit(op, rt, AT, 0, ln);
+                }
+                return;
+            }
+            // label(base)
+            fixups.add(new Fixup(numInstrs, FIX_HI, labelPart(before),
+                                 addendPart(before, ln), ln));
+            emit(LUI, AT, 0, 0, ln);
+            emit(ADDU, AT, AT, base, ln);
+            fixups.add(new Fixup(numInstrs, FIX_LO, labelPart(before),
+                                 addendPart(before, ln), ln));
+            emit(op, rt, AT, 0, ln);
+            return;
+        }
+        if (isNumber(addr)) {
+            emit(op, rt, ZERO, parseInt(addr, ln), ln);
+            return;
+        }
+        fixups.add(new Fixup(numInstrs, FIX_HI, labelPart(addr),
+                             addendPart(addr, ln), ln));
+        emit(LUI, AT, 0, 0, ln);
+        fixups.add(new Fixup(numInstrs, FIX_LO, labelPart(addr),
+                             addendPart(addr, ln), ln));
+        emit(op, rt, AT, 0, ln);
+    }
+
+    private void branch(int op, int x, int y, String label, int ln) {
+        fixups.add(new Fixup(numInstrs, FIX_BRANCH, label, 0, ln));
+        emit(op, x, y, 0, ln);
+    }
+
+    // operand that may be a register or an immediate: returns a register,
+    // loading the immediate into $at if needed
+    private int regOrImm(String s, int ln) {
+        if (isReg(s))
+            return reg(s, ln);
+        loadImm(AT, parseInt(s, ln), ln);
+        return AT;
+    }
+
+    private static final HashMap<String, Integer> RTYPE =
+        new HashMap<String, Integer>();
+    private static final HashMap<String, Integer> ITYPE =
+        new HashMap<String, Integer>();
+    static {
+        RTYPE.put("addu", ADDU); RTYPE.put("add", ADDU);
+        RTYPE.put("subu", SUBU); RTYPE.put("sub", SUBU);
+        RTYPE.put("and", AND); RTYPE.put("or", OR); RTYPE.put("xor", XOR);
+        RTYPE.put("nor", NOR); RTYPE.put("slt", SLT); RTYPE.put("sltu", SLTU);
+        RTYPE.put("sllv", SLLV); RTYPE.put("srlv", SRLV);
+        RTYPE.put("srav", SRAV); RTYPE.put("mul", MUL);
+        ITYPE.put("addi", ADDIU); ITYPE.put("addiu", ADDIU);
+        ITYPE.put("andi", ANDI); ITYPE.put("ori", ORI); ITYPE.put("xori", XORI);
+        ITYPE.put("slti", SLTI); ITYPE.put("sltiu", SLTIU);
+    }
+
+    private void instruction(String line, int ln) {
+        String opName = firstWord(line);
+        String[] ops = operands(line.substring(opName.length()));
+        Integer rop = RTYPE.get(opName);
+        Integer iop = ITYPE.get(opName);
+
+        if (rop != null) {
+            int rd = reg(ops[0], ln);
+            int rs = reg(ops[1], ln);
+            if (isReg(ops[2])) {
+                emit(rop, rd, rs, reg(ops[2], ln), ln);
+                return;
+            }
+            int imm = parseInt(ops[2], ln);
+            if (rop == SUBU) {
+                imm = -imm;
+                rop = ADDU;
+            }
+            Integer immOp = null;
+            if (rop == ADDU) immOp = ADDIU;
+            else if (rop == AND && (imm & 0xffff0000) == 0) immOp = ANDI;
+            else if (rop == OR && (imm & 0xffff0000) == 0) immOp = ORI;
+            else if (rop == XOR && (imm & 0xffff0000) == 0) immOp = XORI;
+            else if (rop == SLT) immOp = SLTI;
+            if (immOp != null && (immOp != ADDIU && immOp != SLTI ||
+                                  imm >= -32768 && imm <= 32767)) {
+                emit(immOp, rd, rs, imm, ln);
+            } else {
+                loadImm(AT, imm, ln);
+                emit(rop, rd, rs, AT, ln);
+            }
+            return;
+        }
+        if (iop != null) {
+            int rt = reg(ops[0], ln);
+            int rs = reg(ops[1], ln);
+            int imm = parseInt(ops[2], ln);
+            boolean fits = (iop == ADDIU || iop == SLTI || iop == SLTIU)
+                ? imm >= -32768 && imm <= 32767 : (imm & 0xffff0000) == 0;
+            if (fits) {
+                emit(iop, rt, rs, imm, ln);
+            } else {
+                loadImm(AT, imm, ln);
+                int r = iop == ADDIU ? ADDU : iop == ANDI ? AND :
+                    iop == ORI ? OR : iop == XORI ? XOR :
+                    iop == SLTI ? SLT : SLTU;
+                emit(r, rt, rs, AT, ln);
+            }
+            return;
+        }
+
+        if (opName.equals("subi") || opName.equals("subiu")) {
+            int imm = -parseInt(ops[2], ln);
+            if (imm >= -32768 && imm <= 32767) {
+                emit(ADDIU, reg(ops[0], ln), reg(ops[1], ln), imm, ln);
+            } else {
+                loadImm(AT, imm, ln);
+                emit(ADDU, reg(ops[0], ln), reg(ops[1], ln), AT, ln);
+            }
+        } else if (opName.equals("sll") || opName.equals("srl") ||
+                   opName.equals("sra")) {
+            int op = opName.equals("sll") ? SLL :
+                opName.equals("srl") ? SRL : SRA;
+            if (isReg(ops[2])) {
+                int v = op == SLL ? SLLV : op == SRL ? SRLV : SRAV;
+                emit(v, reg(ops[0], ln), reg(ops[1], ln), reg(ops[2], ln), ln);
+            } else {
+                emit(op, reg(ops[0], ln), reg(ops[1], ln),
+                     parseInt(ops[2], ln) & 31, ln);
+            }
+        } else if (opName.equals("li")) {
+            loadImm(reg(ops[0], ln), parseInt(ops[1], ln), ln);
+        } else if (opName.equals("lui")) {
+            emit(LUI, reg(ops[0], ln), 0, parseInt(ops[1], ln) & 0xffff, ln);
+        } else if (opName.equals("la")) {
+            String a = ops[1];
+            int rd = reg(ops[0], ln);
+            int paren = a.indexOf('(');
+            if (paren >= 0) {
+                String before = a.substring(0, paren).trim();
+                int base = reg(a.substring(paren + 1, a.indexOf(')')), ln);
+                int off = before.length() == 0 ? 0 : parseInt(before, ln);
+                if (off >= -32768 && off <= 32767) {
+                    emit(ADDIU, rd, base, off, ln);
+                } else {
+                    loadImm(AT, off, ln);
+                    emit(ADDU, rd, base, AT, ln);
+                }
+            } else {
+                fixups.add(new Fixup(numInstrs, FIX_HI, labelPart(a),
+                                     addendPart(a, ln) + 0, ln));
+                emit(LUI, AT, 0, 0, ln);
+                fixups.add(new Fixup(numInstrs, FIX_LO, labelPart(a),
+                                     addendPart(a, ln), ln));
+                emit(ADDIU, rd, AT, 0, ln);
+            }
+        } else if (opName.equals("move")) {
+            emit(ADDU, reg(ops[0], ln), ZERO, reg(ops[1], ln), ln);
+        } else if (opName.equals("neg") || opName.equals("negu")) {
+            emit(SUBU, reg(ops[0], ln), ZERO, reg(ops[1], ln), ln);
+        } else if (opName.equals("not")) {
+            emit(NOR, reg(ops[0], ln), reg(ops[1], ln), ZERO, ln);
+        } else if (opName.equals("lw") || opName.equals("sw") ||
+                   opName.equals("lb") || opName.equals("lbu") ||
+                   opName.equals("sb") || opName.equals("lh") ||
+                   opName.equals("lhu") || opName.equals("sh")) {
+            int op = opName.equals("lw") ? LW : opName.equals("sw") ? SW :
+                opName.equals("lb") ? LB : opName.equals("lbu") ? LBU :
+                opName.equals("sb") ? SB : opName.equals("lh") ? LH :
+                opName.equals("lhu") ? LHU : SH;
+            memOp(op, reg(ops[0], ln), ops[1], ln);
+        } else if (opName.equals("mult") || opName.equals("multu")) {
+            emit(opName.equals("mult") ? MULT : MULTU,
+                 0, reg(ops[0], ln), reg(ops[1], ln), ln);
+        } else if (opName.equals("div") || opName.equals("divu") ||
+                   opName.equals("rem") || opName.equals("remu")) {
+            boolean signed = opName.equals("div") || opName.equals("rem");
+            int dop = signed ? DIV : DIVU;
+            if (ops.length == 2) {
+                emit(dop, 0, reg(ops[0], ln), reg(ops[1], ln), ln);
+            } else {
+                int rt = regOrImm(ops[2], ln);
+                // SPIM checks for division by zero
+                emit(BNE, rt, ZERO, numInstrs + 2, ln);
+                emit(BREAK, 0, 0, 0, ln);
+                emit(dop, 0, reg(ops[1], ln), rt, ln);
+                emit(opName.startsWith("div") ? MFLO : MFHI,
+                     reg(ops[0], ln), 0, 0, ln);
+            }
+        } else if (opName.equals("mfhi") || opName.equals("mflo")) {
+            emit(opName.equals("mfhi") ? MFHI : MFLO,
+                 reg(ops[0], ln), 0, 0, ln);
+        } else if (opName.equals("mthi") || opName.equals("mtlo")) {
+            emit(opName.equals("mthi") ? MTHI : MTLO,
+                 0, reg(ops[0], ln), 0, ln);
+        } else if (opName.equals("beq") || opName.equals("bne")) {
+            int op = opName.equals("beq") ? BEQ : BNE;
+            int rs = reg(ops[0], ln);
+            int rt = regOrImm(ops[1], ln);
+            branch(op, rs, rt, ops[2], ln);
+        } else if (opName.equals("beqz") || opName.equals("bnez")) {
+            branch(opName.equals("beqz") ? BEQ : BNE, reg(ops[0], ln), ZERO,
+                   ops[1], ln);
+        } else if (opName.equals("b")) {
+            branch(BEQ, ZERO, ZERO, ops[0], ln);
+        } else if (opName.equals("bltz") || opName.equals("bgez") ||
+                   opName.equals("blez") || opName.equals("bgtz")) {
+            int op = opName.equals("bltz") ? BLTZ :
+                opName.equals("bgez") ? BGEZ :
+                opName.equals("blez") ? BLEZ : BGTZ;
+            branch(op, reg(ops[0], ln), 0, ops[1], ln);
+        } else if (opName.equals("blt") || opName.equals("bge") ||
+                   opName.equals("bgt") || opName.equals("ble") ||
+                   opName.equals("bltu") || opName.equals("bgeu") ||
+                   opName.equals("bgtu") || opName.equals("bleu")) {
+            boolean unsigned = opName.endsWith("u");
+            String base = unsigned ? opName.substring(0, 3) : opName;
+            int rs = reg(ops[0], ln);
+            int rt = regOrImm(ops[1], ln);
+            int cmp = unsigned ? SLTU : SLT;
+            // blt: slt at,rs,rt; bne   bge: slt at,rs,rt; beq
+            // bgt: slt at,rt,rs; bne   ble: slt at,rt,rs; beq
+            if (base.equals("blt") || base.equals("bge"))
+                emit(cmp, AT, rs, rt, ln);
+            else
+                emit(cmp, AT, rt, rs, ln);
+            boolean onSet = base.equals("blt") || base.equals("bgt");
+            branch(onSet ? BNE : BEQ, AT, ZERO, ops[2], ln);
+        } else if (opName.equals("j")) {
+            fixups.add(new Fixup(numInstrs, FIX_JUMP, ops[0], 0, ln));
+            emit(J, 0, 0, 0, ln);
+        } else if (opName.equals("jal")) {
+            fixups.add(new Fixup(numInstrs, FIX_JUMP, ops[0], 0, ln));
+            emit(JAL, 0, 0, 0, ln);
+        } else if (opName.equals("jr")) {
+            emit(JR, 0, reg(ops[0], ln), 0, ln);
+        } else if (opName.equals("jalr")) {
+            emit(JALR, ops.length == 2 ? reg(ops[0], ln) : RA,
+                 reg(ops[ops.length - 1], ln), 0, ln);
+        } else if (opName.equals("syscall")) {
+            emit(SYSCALL, 0, 0, 0, ln);
+        } else if (opName.equals("break")) {
+            emit(BREAK, 0, 0, 0, ln);
+        } else if (opName.equals("nop")) {
+            emit(NOP, 0, 0, 0, ln);
+        } else if (opName.equals("seq") || opName.equals("sne")) {
+            int rd = reg(ops[0], ln);
+            int rt = regOrImm(ops[2], ln);
+            emit(XOR, rd, reg(ops[1], ln), rt, ln);
+            if (opName.equals("seq"))
+                emit(SLTIU, rd, rd, 1, ln);
+            else
+                emit(SLTU, rd, ZERO, rd, ln);
+        } else if (opName.equals("sgt") || opName.equals("sle") ||
+                   opName.equals("sge")) {
+            int rd = reg(ops[0], ln);
+            int rs = reg(ops[1], ln);
+            int rt = regOrImm(ops[2], ln);
+            if (opName.equals("sgt")) {
+                emit(SLT, rd, rt, rs, ln);
+            } else if (opName.equals("sle")) {
+                emit(SLT, rd, rt, rs, ln);
+                emit(XORI, rd, rd, 1, ln);
+            } else {
+                emit(SLT, rd, rs, rt, ln);
+                emit(XORI, rd, rd, 1, ln);
+            }
+        } else {
+            throw new SimException("line " + ln + ": unknown instruction " +
+                                   opName);
+        }
+    }
+
+    // **********************************************************************
+    // MEMORY
+    // **********************************************************************
+
+    private void storeWord(int addr, int v) {
+        int k = addr - DATA_BASE;
+        data[k] = (byte)v;
+        data[k + 1] = (byte)(v >> 8);
+        data[k + 2] = (byte)(v >> 16);
+        data[k + 3] = (byte)(v >> 24);
+    }
+
+    final int loadWord(int addr) {
+        if ((addr & 3) != 0)
+            throw new SimException("unaligned word load at 0x" +
+                                   Integer.toHexString(addr));
+        byte[] m;
+        int k;
+        if (addr >= STACK_BASE && addr <= STACK_TOP) {
+            m = stack;
+            k = addr - STACK_BASE;
+        } else if (addr >= DATA_BASE && addr < DATA_BASE + DATA_SIZE) {
+            m = data;
+            k = addr - DATA_BASE;
+        } else {
+            throw new SimException("bad address 0x" +
+                                   Integer.toHexString(addr));
+        }
+        return (m[k] & 0xff) | (m[k + 1] & 0xff) << 8 |
+            (m[k + 2] & 0xff) << 16 | m[k + 3] << 24;
+    }
+
+    final void storeWordChecked(int addr, int v) {
+        if ((addr & 3) != 0)
+            throw new SimException("unaligned word store at 0x" +
+                                   Integer.toHexString(addr));
+        byte[] m;
+        int k;
+        if (addr >= STACK_BASE && addr <= STACK_TOP) {
+            m = stack;
+            k = addr - STACK_BASE;
+        } else if (addr >= DATA_BASE && addr < DATA_BASE + DATA_SIZE) {
+            m = data;
+            k = addr - DATA_BASE;
+        } else {
+            throw new SimException("bad address 0x" +
+                                   Integer.toHexString(addr));
+        }
+        m[k] = (byte)v;
+        m[k + 1] = (byte)(v >> 8);
+        m[k + 2] = (byte)(v >> 16);
+        m[k + 3] = (byte)(v >> 24);
+    }
+
+    final int loadByte(int addr) {
+        if (addr >= STACK_BASE && addr <= STACK_TOP)
+            return stack[addr - STACK_BASE];
+        if (addr >= DATA_BASE && addr < DATA_BASE + DATA_SIZE)
+            return data[addr - DATA_BASE];
+        throw new SimException("bad address 0x" + Integer.toHexString(addr));
+    }
+
+    final void storeByte(int addr, int v) {
+        if (addr >= STACK_BASE && addr <= STACK_TOP)
+            stack[addr - STACK_BASE] = (byte)v;
+        else if (addr >= DATA_BASE && addr < DATA_BASE + DATA_SIZE)
+            data[addr - DATA_BASE] = (byte)v;
+        else
+            throw new SimException("bad address 0x" +
+                                   Integer.toHexString(addr));
+    }
+
+    // **********************************************************************
+    // EXECUTION
+    // **********************************************************************
+
+    /**
+     * Index of the first instruction to run: __start if present, else main.
+     */
+    public int entry() {
+        Integer a = labels.get("__start");
+        if (a == null)
+            a = labels.get("main");
+        if (a == null)
+            throw new SimException("no __start or main label");
+        return (a - TEXT_BASE) / 4;
+    }
+
+    /**
+     * Run the program until it exits, reading from in and writing to out.
+     * Returns the exit code.
+     */
+    public int run(InputStream input, PrintStream output) {
+        in = new BufferedReader(new InputStreamReader(input));
+        out = output;
+        regs[SP] = STACK_TOP - 4096;
+        regs[GP] = GP_INIT;
+        int pc = entry();
+        int[] c = code;
+        int[] r = regs;
+        long[] counts = opCounts;
+        long n = 0;
+        int delaySlotTarget = -1;
+
+        try {
+            while (true) {
+                if (pc < 0 || pc >= numInstrs)
+                    throw new SimException("pc out of range: " + pc);
+                int base = pc * OPS_PER_INSTR;
+                int op = c[base];
+                int x = c[base + 1];
+                int y = c[base + 2];
+                int z = c[base + 3];
+                counts[op]++;
+                n++;
+                int addr = pipeline == null ? 0 : r[y] + z;
+                int next = pc + 1;
+                int target = -1;
+
+                switch (op) {
+                case ADDU: r[x] = r[y] + r[z]; break;
+                case SUBU: r[x] = r[y] - r[z]; break;
+                case AND: r[x] = r[y] & r[z]; break;
+                case OR: r[x] = r[y] | r[z]; break;
+                case XOR: r[x] = r[y] ^ r[z]; break;
+                case NOR: r[x] = ~(r[y] | r[z]); break;
+                case SLT: r[x] = r[y] < r[z] ? 1 : 0; break;
+                case SLTU:
+                    r[x] = Integer.compareUnsigned(r[y], r[z]) < 0 ? 1 : 0;
+                    break;
+                case SLLV: r[x] = r[y] << (r[z] & 31); break;
+                case SRLV: r[x] = r[y] >>> (r[z] & 31); break;
+                case SRAV: r[x] = r[y] >> (r[z] & 31); break;
+                case ADDIU: r[x] = r[y] + z; break;
+                case ANDI: r[x] = r[y] & (z & 0xffff); break;
+                case ORI: r[x] = r[y] | (z & 0xffff); break;
+                case XORI: r[x] = r[y] ^ (z & 0xffff); break;
+                case SLTI: r[x] = r[y] < z ? 1 : 0; break;
+                case SLTIU:
+                    r[x] = Integer.compareUnsigned(r[y], z) < 0 ? 1 : 0;
+                    break;
+                case LUI: r[x] = z << 16; break;
+                case SLL: r[x] = r[y] << z; break;
+                case SRL: r[x] = r[y] >>> z; break;
+                case SRA: r[x] = r[y] >> z; break;
+                case MULT: {
+                    long p = (long)r[y] * (long)r[z];
+                    lo = (int)p;
+                    hi = (int)(p >> 32);
+                    break;
+                }
+                case MULTU: {
+                    long p = (r[y] & 0xffffffffL) * (r[z] & 0xffffffffL);
+                    lo = (int)p;
+                    hi = (int)(p >> 32);
+                    break;
+                }
+                case DIV:
+                    if (r[z] != 0) {
+                        if (r[y] == Integer.MIN_VALUE && r[z] == -1) {
+                            lo = Integer.MIN_VALUE;
+                            hi = 0;
+                        } else {
+                            lo = r[y] / r[z];
+                            hi = r[y] % r[z];
+                        }
+                    }
+                    break;
+                case DIVU:
+                    if (r[z] != 0) {
+                        lo = Integer.divideUnsigned(r[y], r[z]);
+                        hi = Integer.remainderUnsigned(r[y], r[z]);
+                    }
+                    break;
+                case MFHI: r[x] = hi; break;
+                case MFLO: r[x] = lo; break;
+                case MTHI: hi = r[y]; break;
+                case MTLO: lo = r[y]; break;
+                case MUL: r[x] = r[y] * r[z]; break;
+                case LW: r[x] = loadWord(r[y] + z); break;
+                case LB: r[x] = loadByte(r[y] + z); break;
+                case LBU: r[x] = loadByte(r[y] + z) & 0xff; break;
+                case LH:
+                case LHU:
+                    throw new SimException("halfword loads not supported");
+                case SW: storeWordChecked(r[y] + z, r[x]); break;
+                case SB: storeByte(r[y] + z, r[x]); break;
+                case SH:
+                    throw new SimException("halfword stores not supported");
+                case BEQ: if (r[x] == r[y]) target = z; break;
+                case BNE: if (r[x] != r[y]) target = z; break;
+                case BLTZ: if (r[x] < 0) target = z; break;
+                case BGEZ: if (r[x] >= 0) target = z; break;
+                case BLEZ: if (r[x] <= 0) target = z; break;
+                case BGTZ: if (r[x] > 0) target = z; break;
+                case J: target = z; break;
+                case JAL:
+                    r[RA] = TEXT_BASE + 4 * (pc + (delayed ? 2 : 1));
+                    target = z;
+                    break;
+                case JR: target = (r[y] - TEXT_BASE) / 4; break;
+                case JALR: {
+                    int t = (r[y] - TEXT_BASE) / 4;
+                    r[x] = TEXT_BASE + 4 * (pc + (delayed ? 2 : 1));
+                    target = t;
+                    break;
+                }
+                case SYSCALL:
+                    if (syscall())
+                        return exitCode;
+                    break;
+                case BREAK:
+                    throw new SimException("break (division by zero?)");
+                case NOP: break;
+                default:
+                    throw new SimException("bad opcode " + op);
+                }
+                r[0] = 0;
+                if (pipeline != null)
+                    pipeline.step(pc, op, x, y, z, addr, target >= 0);
+
+                if (target >= 0 && op >= BEQ && op <= BGTZ)
+                    takenBranches++;
+                if (delaySlotTarget >= 0) {
+                    // this instruction was in a delay slot
+                    next = delaySlotTarget;
+                    delaySlotTarget = -1;
+                    if (target >= 0)
+                        throw new SimException("branch in delay slot at " +
+                                               "line " + srcLine[pc]);
+                } else if (target >= 0) {
+                    if (delayed)
+                        delaySlotTarget = target;
+                    else
+                        next = target;
+                }
+                pc = next;
+            }
+        } finally {
+            instrCount = n;
+            out.flush();
+        }
+    }
+
+    // returns true if the program exits
+    private boolean syscall() {
+        switch (regs[V0]) {
+        case 1:
+            out.print(regs[A0]);
+            return false;
+        case 4: {
+            StringBuilder sb = new StringBuilder();
+            for (int a = regs[A0]; ; a++) {
+                int b = loadByte(a);
+                if (b == 0)
+                    break;
+                sb.append((char)(b & 0xff));
+            }
+            out.print(sb);
+            return false;
+        }
+        case 5:
+            try {
+                String s = in.readLine();
+                regs[V0] = s == null ? 0 : Integer.parseInt(s.trim());
+            } catch (IOException ex) {
+                regs[V0] = 0;
+            } catch (NumberFormatException ex) {
+                regs[V0] = 0;
+            }
+            return false;
+        case 10:
+            return true;
+        case 11:
+            out.print((char)(regs[A0] & 0xff));
+            return false;
+        case 17:
+            exitCode = regs[A0];
+            return true;
+        default:
+            throw new SimException("unsupported syscall " + regs[V0]);
+        }
+    }
+
+    // **********************************************************************
+    // REPORTING
+    // **********************************************************************
+
+    /**
+     * Print the dynamic instruction count and the instruction mix.
+     */
+    public void printStats(PrintStream s, boolean mix) {
+        long loads = opCounts[LW] + opCounts[LB] + opCounts[LBU];
+        long stores = opCounts[SW] + opCounts[SB];
+        long branches = 0;
+        for (int op = BEQ; op <= BGTZ; op++)
+            branches += opCounts[op];
+        long jumps = opCounts[J] + opCounts[JAL] + opCounts[JR] +
+            opCounts[JALR];
+        long muldiv = opCounts[MULT] + opCounts[MULTU] + opCounts[DIV] +
+            opCounts[DIVU] + opCounts[MUL];
+        s.println("instructions: " + instrCount);
+        s.println("loads: " + loads);
+        s.println("stores: " + stores);
+        s.println("branches: " + branches + " (taken " + takenBranches + ")");
+        s.println("jumps: " + jumps);
+        s.println("mult/div: " + muldiv);
+        if (mix) {
+            s.println("mix:");
+            for (int op = 0; op < NUM_OPS; op++) {
+                if (opCounts[op] == 0)
+                    continue;
+                s.printf("  %-8s %12d %6.2f%%%n", OP_NAMES[op], opCounts[op],
+                         100.0 * opCounts[op] / instrCount);
+            }
+        }
+    }
+
+    /**
+     * Read a whole file into a string.
+     */
+    public static String readFile(String name) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        BufferedReader r = new BufferedReader(new FileReader(name));
+        try {
+            String line;
+            while ((line = r.readLine()) != null)
+                sb.append(line).append('\n');
+        } finally {
+            r.close();
+        }
+        return sb.toString();
+    }
+
+    private static int missPenalty(String s) {
+        try {
+            int n = Integer.parseInt(s);
+            if (n >= 0)
+                return n;
+        } catch (NumberFormatException ex) {
+        }
+        System.err.println("bad miss penalty " + s);
+        System.exit(-1);
+        return 0;
+    }
+
+    public static void main(String[] args) {
+        boolean delayed = false;
+        boolean mix = false;
+        boolean stats = false;
+        boolean timing = false;
+        String icache = "4096:16:1";
+        String dcache = "4096:16:1";
+        int penalty = 10;
+        String file = null;
+        for (String a : args) {
+            if (a.equals("-delayed"))
+                delayed = true;
+            else if (a.equals("-mix"))
+                mix = stats = true;
+            else if (a.equals("-stats"))
+                stats = true;
+            else if (a.equals("-timing"))
+                timing = stats = true;
+            else if (a.startsWith("-icache="))
+                icache = a.substring(8);
+            else if (a.startsWith("-dcache="))
+                dcache = a.substring(8);
+            else if (a.startsWith("-miss="))
+                penalty = missPenalty(a.substring(6));
+            else
+                file = a;
+        }
+        if (file == null) {
+            System.err.println("usage: java MipsSim [-delayed] [-stats] " +
+                               "[-mix] [-timing] [-icache=SIZE:LINE:WAYS] " +
+                               "[-dcache=SIZE:LINE:WAYS] [-miss=N] file.s");
+            System.exit(-1);
+        }
+        MipsSim sim = new MipsSim(delayed);
+        int code = 0;
+        try {
+            sim.assemble(readFile(file));
+            if (timing)
+                sim.pipeline = new Pipeline(sim, delayed, penalty,
+                                            new Cache("icache", icache),
+                                            new Cache("dcache", dcache));
+            long start = System.nanoTime();
+            code = sim.run(System.in, System.out);
+            long ns = System.nanoTime() - start;
+            if (stats) {
+                System.out.println();
+                sim.printStats(System.err, mix);
+                if (timing)
+                    sim.pipeline.report(System.err);
+                System.err.printf("time: %.3f s (%.1f M instr/s)%n", ns / 1e9,
+                                  sim.instrCount / (ns / 1e3));
+            }
+        } catch (IOException ex) {
+            System.err.println("could not read " + file);
+            System.exit(-1);
+        } catch (SimException ex) {
+            System.err.println("error: " + ex.getMessage());
+            System.exit(-1);
+        }
+        System.exit(code);
+    }
+}
@@ -0,0 +1,262 @@
+import java.util.*;
+
+// **********************************************************************
+// The Options class holds the compiler flags that may follow the input
+// and output file names on the P6 command line:
+//
+//     -O0, -O1, -O2      optimization level (default -O2, see setLevel);
+//                        the flags below then override single passes
+//     -regalloc=color    graph-coloring register allocation (default)
+//     -regalloc=linear   linear-scan register allocation
+//     -regalloc=none     keep every variable in memory
+//     -inline=N          inline functions of up to N AST nodes (default
+//                        40; 0 turns inlining off)
+//     -tailcalls=off     keep calls in return statements as real calls
+//     -licm=off          leave loop invariants inside their loops
+//     -gvn=off           compute repeated expressions again
+//     -strength=off      always use mult and div, even for constants
+//     -jumpcode=off      compute conditions as values, then test them
+//     -rotate=off        test while conditions at the top of the loop
+//     -fold=off          compare string literals at run time too
+//     -leaf=off          give leaf functions a full frame
+//     -temps=stack       push and pop the temporaries of expressions
+//                        instead of keeping them in fixed frame slots
+//     -args=stack        pass every actual on the stack instead of the
+//                        first four in $a0-$a3
+//     -share=off         give every local its own frame words for the
+//                        whole of its block, even if it is in a register
+//     -schedule=off      keep instructions in the order generated
+//     -latency=OP:N,...  set the scheduler's latency of lw, mult, div or
+//                        mflo to N cycles (default lw:2,mult:12,div:35,
+//                        mflo:1, as on the R2000)
+//     -gpsize=N          reach globals of up to N bytes (default 8) with
+//                        one $gp-relative instruction; 0 turns it off
+//     -delayed=on        generate code for delayed branches, filling the
+//                        delay slot after each branch and jump
+//     -instrument        count function entries and branch edges, and
+//                        print the counts when main exits
+//     -profile=FILE      optimize for the counts in FILE, the output of
+//                        a run of the instrumented program
+//     -run               run the program with the AST interpreter (see
+//                        Interpreter) instead of compiling it; the
+//                        output file is left empty
+//     -stats             print code generation statistics to stderr
+//
+// The flags are static so that the AST nodes can consult them during
+// code generation, the same way they use Codegen.p.
+// **********************************************************************
+
+public class Options {
+    // optimization level
+    public static int level = 2;
+
+    // register allocation strategy: "color", "linear" or "none"
+    public static String regAlloc = "color";
+
+    // size limit, in AST nodes, for inlining a function at every call
+    public static int inlineSize = 40;
+
+    // turn "return f(...);" into a jump that reuses the frame
+    public static boolean tailCalls = true;
+
+    // hoist loop-invariant expressions out of while loops
+    public static boolean licm = true;
+
+    // reuse the values of expressions computed earlier on every path
+    public static boolean gvn = true;
+
+    // replace multiplication and division by constants with cheaper code
+    public static boolean strength = true;
+
+    // generate conditions as branches to true/false labels
+    public static boolean jumpCode = true;
+
+    // turn while loops into a guard and a do-while
+    public static boolean rotateLoops = true;
+
+    // evaluate operations on literals at compile time
+    public static boolean fold = true;
+
+    // leave $ra (and $fp if possible) unsaved in functions that make no calls
+    public static boolean leafFrames = true;
+
+    // keep expression temporaries in slots reserved by the prologue
+    // instead of moving $sp for each (see Codegen.genPush)
+    public static boolean staticTemps = true;
+
+    // pass the first four actuals in $a0-$a3 (see Codegen.argRegister)
+    public static boolean regArgs = true;
+
+    // let locals that are never live together share frame words, and
+    // give none to locals kept in registers (see FrameLayout)
+    public static boolean shareSlots = true;
+
+    // reorder the instructions of each basic block to avoid stalls
+    public static boolean schedule = true;
+
+    // cycles before the result of lw (and the other loads), mult, div
+    // and mflo (and mfhi) may be used without a stall
+    public static Map<String, Integer> latency =
+        new HashMap<String, Integer>();
+    static {
+        latency.put("lw", 2);
+        latency.put("mult", 12);
+        latency.put("div", 35);
+        latency.put("mflo", 1);
+    }
+
+    // largest global, in bytes, put in the $gp-relative small data
+    public static int gpSize = 8;
+
+    // target a machine with branch delay slots
+    public static boolean delayedBranches = false;
+
+    // generate code that counts entries and branches (see Profile)
+    public static boolean instrument = false;
+
+    // output of an instrumented run to optimize for, or null
+    public static String profile = null;
+
+    // print statistics at the end of compilation
+    public static boolean stats = false;
+
+    // interpret the program instead of generating code (see Interpreter)
+    public static boolean interpret = false;
+
+    /**
+     * Set the flags for the given optimization level:
+     *     -O0   no optimization: every variable in memory, nothing folded,
+     *           inlined, hoisted, reused or scheduled, conditions computed as
+     *           values
+     *     -O1   the cheap optimizations: linear-scan allocation, folding,
+     *           strength reduction, jumping code, tail calls, leaf frames,
+     *           static temporaries, shared frame words, arguments in
+     *           registers and small data
+     *     -O2   all of them, with graph coloring, inlining, loop-invariant
+     *           code motion, value numbering, loop rotation and scheduling
+     */
+    public static void setLevel(int n) {
+        level = n;
+        regAlloc = n == 0 ? "none" : n == 1 ? "linear" : "color";
+        inlineSize = n < 2 ? 0 : 40;
+        tailCalls = n >= 1;
+        licm = n >= 2;
+        gvn = n >= 2;
+        strength = n >= 1;
+        jumpCode = n >= 1;
+        rotateLoops = n >= 2;
+        fold = n >= 1;
+        leafFrames = n >= 1;
+        staticTemps = n >= 1;
+        shareSlots = n >= 1;
+        regArgs = n >= 1;
+        schedule = n >= 2;
+        gpSize = n >= 1 ? 8 : 0;
+    }
+
+    /**
+     * Set the flag named by one command-line argument.
+     * Returns false if the argument is not a known flag.
+     */
+    public static boolean parse(String arg) {
+        if (arg.equals("-stats")) {
+            stats = true;
+        } else if (arg.equals("-run")) {
+            interpret = true;
+        } else if (arg.equals("-O0") || arg.equals("-O1") ||
+                   arg.equals("-O2")) {
+            setLevel(arg.charAt(2) - '0');
+        } else if (arg.equals("-instrument")) {
+            instrument = true;
+        } else if (arg.startsWith("-profile=")) {
+            profile = arg.substring("-profile=".length());
+            if (profile.length() == 0)
+                return false;
+        } else if (arg.startsWith("-regalloc=")) {
+            String value = arg.substring("-regalloc=".length());
+            if (!value.equals("color") && !value.equals("linear") &&
+                !value.equals("none"))
+                return false;
+            regAlloc = value;
+        } else if (arg.equals("-tailcalls=on") || arg.equals("-tailcalls=off")) {
+            tailCalls = arg.endsWith("on");
+        } else if (arg.equals("-licm=on") || arg.equals("-licm=off")) {
+            licm = arg.endsWith("on");
+        } else if (arg.equals("-gvn=on") || arg.equals("-gvn=off")) {
+            gvn = arg.endsWith("on");
+        } else if (arg.equals("-strength=on") || arg.equals("-strength=off")) {
+            strength = arg.endsWith("on");
+        } else if (arg.equals("-jumpcode=on") || arg.equals("-jumpcode=off")) {
+            jumpCode = arg.endsWith("on");
+        } else if (arg.equals("-rotate=on") || arg.equals("-rotate=off")) {
+            rotateLoops = arg.endsWith("on");
+        } else if (arg.equals("-fold=on") || arg.equals("-fold=off")) {
+            fold = arg.endsWith("on");
+        } else if (arg.equals("-leaf=on") || arg.equals("-leaf=off")) {
+            leafFrames = arg.endsWith("on");
+        } else if (arg.equals("-temps=static") || arg.equals("-temps=stack")) {
+            staticTemps = arg.endsWith("static");
+        } else if (arg.equals("-args=regs") || arg.equals("-args=stack")) {
+            regArgs = arg.endsWith("regs");
+        } else if (arg.equals("-share=on") || arg.equals("-share=off")) {
+            shareSlots = arg.endsWith("on");
+        } else if (arg.equals("-schedule=on") || arg.equals("-schedule=off")) {
+            schedule = arg.endsWith("on");
+        } else if (arg.equals("-delayed=on") || arg.equals("-delayed=off")) {
+            delayedBranches = arg.endsWith("on");
+        } else if (arg.startsWith("-latency=")) {
+            for (String entry : arg.substring("-latency=".length()).split(",")) {
+                String[] pair = entry.split(":");
+                if (pair.length != 2 || !latency.containsKey(pair[0]))
+                    return false;
+                try {
+                    latency.put(pair[0], Integer.parseInt(pair[1]));
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+                if (latency.get(pair[0]) < 1)
+                    return false;
+            }
+        } else if (arg.startsWith("-gpsize=")) {
+            try {
+                gpSize = Integer.parseInt(arg.substring("-gpsize=".length()));
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+            if (gpSize < 0)
+                return false;
+        } else if (arg.startsWith("-inline=")) {
+            try {
+                inlineSize = Integer.parseInt(arg.substring("-inline=".length()));
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+            if (inlineSize < 0)
+                return false;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return a one-line summary of the accepted flags.
+     */
+    public static String usage() {
+        return "flags: [-O0|-O1|-O2] [-regalloc=color|linear|none] [-inline=N]" +
+            " [-tailcalls=on|off]" +
+            " [-licm=on|off]" +
+            " [-gvn=on|off]" +
+            " [-strength=on|off]" +
+            " [-jumpcode=on|off]" +
+            " [-rotate=on|off]" +
+            " [-fold=on|off]" +
+            " [-leaf=on|off]" +
+            " [-temps=static|stack]" +
+            " [-share=on|off]" +
+            " [-args=regs|stack]" +
+            " [-schedule=on|off] [-latency=OP:N,...]" +
+            " [-gpsize=N] [-delayed=on|off]" +
+            " [-instrument] [-profile=FILE] [-run] [-stats]";
+    }
+}
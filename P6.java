@@ -9,6 +9,7 @@ import java_cup.runtime.*;
  *    1. the file to be parsed
  *    2. the output file into which the AST built by the parser should be
  *       unparsed
+ * optionally followed by compiler flags (see {@link Options}).
  * The program opens the two files, creates a scanner and a parser, and
  * calls the parser.  If the parse is successful, the AST is unparsed.
  */
@@ -20,6 +21,7 @@ public class P6 {
 	public static final int RESULT_CORRECT = 0;
 	public static final int RESULT_SYNTAX_ERROR = 1;
 	public static final int RESULT_TYPE_ERROR = 2;
+	public static final int RESULT_CODEGEN_ERROR = 3;
 	public static final int RESULT_OTHER_ERROR = -1;
 
 	/**
@@ -34,7 +36,7 @@ public class P6 {
 	 * is the command line to use. It shouldn't be invoked from
 	 * outside the class (hence the private constructor) because
 	 * it 
-	 * @param args command line args array for [<infile> <outfile>]
+	 * @param args command line args array for [<infile> <outfile> <flags>]
 	 */
 	private P6(String[] args){
     	//Parse arguments    	
@@ -52,6 +54,18 @@ public class P6 {
 		} catch(BadOutfileException e){
 			pukeAndDie(e.getMessage());
 		}
+
+		//the -O level goes first, so that the other flags refine it
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].startsWith("-O") && !Options.parse(args[i])) {
+				pukeAndDie("unknown flag " + args[i] + "; " + Options.usage());
+			}
+		}
+		for (int i = 2; i < args.length; i++) {
+			if (!args[i].startsWith("-O") && !Options.parse(args[i])) {
+				pukeAndDie("unknown flag " + args[i] + "; " + Options.usage());
+			}
+		}
 	}
 
 	/**
@@ -142,11 +156,16 @@ public class P6 {
 			return P6.RESULT_SYNTAX_ERROR;
 		}
 		
-		astRoot.nameAnalysis();  // perform name analysis
-		
-		astRoot.typeCheck();
-		
-		astRoot.codeGen();
+		//name analysis, type checking, optimizations and code generation
+		if (!PassManager.run(astRoot)) {
+			return P6.RESULT_TYPE_ERROR;
+		}
+		if (Options.stats) {
+			Stats.print(outStream);
+		}
+		if (ErrMsg.getErr()) {
+			return P6.RESULT_CODEGEN_ERROR;
+		}
 		return P6.RESULT_CORRECT;
 	}
 	
@@ -162,6 +181,10 @@ public class P6 {
 			pukeAndDie("Syntax error", resultCode);
 		case RESULT_TYPE_ERROR:
 			pukeAndDie("Type checking error", resultCode);
+		case RESULT_CODEGEN_ERROR:
+			//keep the code generated so far for a look
+			Codegen.p.close();
+			pukeAndDie("Code generation error", resultCode);
 		default:
 			pukeAndDie("Type checking error", RESULT_OTHER_ERROR);
 		}
@@ -0,0 +1,276 @@
+import java.util.*;
+
+// **********************************************************************
+// The PassManager class runs the compiler as a list of named passes over
+// the program:
+//     names       name analysis                             always
+//     types       type checking                             always
+//     interp      run the program on the AST instead of     -run
+//                 compiling it (see Interpreter); the
+//                 passes after it are skipped
+//     profile     name the branches, read -profile          always
+//     inline      choose the functions to inline            -inline=N
+//     licm        find the loop invariants to hoist         -licm
+//     gvn         find the values computed again            -gvn
+//     codegen     generate code, a function at a time       always
+// Code generation runs these passes over each function; their times and
+// changes are added up over the functions:
+//     regalloc    assign registers (changes: variables in registers)
+//     frame       lay out the locals (changes: bytes of frame saved)
+//     schedule    reorder instructions (changes: blocks reordered)
+//     delay       fill delay slots (changes: slots filled)
+// The front end stops the list if it finds errors.
+//
+// The optimization level -O0, -O1 or -O2 (the default) sets the flags
+// that turn the optimizations on and off (see Options.setLevel); the
+// flags after it on the command line then turn single passes on or off.
+//
+// Analyses are computed when a pass first asks for them and kept until a
+// pass changes the program:
+//     callGraph   the call graph of the program (CallGraph)
+//     cfg         the control-flow graph of a function (Cfg)
+//     dominators  the dominator tree of a function (Dominators)
+//     liveness    the live variables of a function (Liveness)
+// -stats reports the time and the changes of each pass, and how often
+// each analysis was computed and found in the cache.
+// **********************************************************************
+
+public class PassManager {
+    /**
+     * One pass over the whole program.
+     */
+    private static abstract class Pass {
+        String name;
+        boolean frontEnd;
+
+        Pass(String name, boolean frontEnd) {
+            this.name = name;
+            this.frontEnd = frontEnd;
+        }
+
+        // is the pass turned on?
+        boolean enabled() {
+            return true;
+        }
+
+        // run the pass; return the number of changes it made
+        abstract int run(ProgramNode program);
+    }
+
+    private static final Pass[] PASSES = {
+        new Pass("names", true) {
+            int run(ProgramNode program) {
+                program.nameAnalysis();
+                return 0;
+            }
+        },
+        new Pass("types", true) {
+            int run(ProgramNode program) {
+                program.typeCheck();
+                return 0;
+            }
+        },
+        new Pass("interp", false) {
+            boolean enabled() {
+                return Options.interpret;
+            }
+            int run(ProgramNode program) {
+                return Interpreter.run(program);
+            }
+        },
+        new Pass("profile", false) {
+            int run(ProgramNode program) {
+                Profile.number(program);
+                return 0;
+            }
+        },
+        new Pass("inline", false) {
+            boolean enabled() {
+                return Options.inlineSize > 0;
+            }
+            int run(ProgramNode program) {
+                return Inliner.decide(callGraph(program));
+            }
+        },
+        new Pass("licm", false) {
+            boolean enabled() {
+                return Options.licm;
+            }
+            int run(ProgramNode program) {
+                int hoisted = 0;
+                for (ASTnode node : program.walk()) {
+                    if (node instanceof WhileStmtNode) {
+                        hoisted += ((WhileStmtNode)node).hoisted().size();
+                    }
+                }
+                return hoisted;
+            }
+        },
+        new Pass("gvn", false) {
+            boolean enabled() {
+                return Options.gvn;
+            }
+            int run(ProgramNode program) {
+                int reused = 0;
+                CallGraph calls = callGraph(program);
+                for (FnDeclNode fn : calls.functions()) {
+                    reused += Gvn.number(fn, calls, cfg(fn), dominators(fn));
+                }
+                return reused;
+            }
+        },
+        new Pass("codegen", false) {
+            int run(ProgramNode program) {
+                int before = Stats.instructions();
+                program.codeGen();
+                return Stats.instructions() - before;
+            }
+        }
+    };
+
+    // time (ns) and changes of the passes run inside code generation
+    private static Map<String, long[]> perFunction =
+        new LinkedHashMap<String, long[]>();
+
+    // the analyses computed so far
+    private static CallGraph callGraph;
+    private static Map<FnDeclNode, Cfg> cfgs = new HashMap<FnDeclNode, Cfg>();
+    private static Map<FnDeclNode, Dominators> dominators =
+        new HashMap<FnDeclNode, Dominators>();
+    private static Map<FnDeclNode, Liveness> liveness =
+        new HashMap<FnDeclNode, Liveness>();
+    // times each analysis was computed, and found in the cache
+    private static Map<String, int[]> analysisStats =
+        new LinkedHashMap<String, int[]>();
+
+    /**
+     * Run the passes over the given program.  Returns false if the front
+     * end found errors, in which case no code was generated.
+     */
+    public static boolean run(ProgramNode program) {
+        for (Pass pass : PASSES) {
+            if (!pass.enabled()) {
+                Stats.report("pass " + pass.name + ": off");
+                continue;
+            }
+            long start = System.nanoTime();
+            int changes = pass.run(program);
+            long micros = (System.nanoTime() - start) / 1000;
+            if (pass.name.equals("codegen")) {
+                Stats.report("pass codegen: " + micros + " us, " + changes +
+                             " instructions");
+                for (Map.Entry<String, long[]> entry : perFunction.entrySet()) {
+                    long[] t = entry.getValue();
+                    Stats.report("pass " + entry.getKey() + ": " +
+                                 t[0] / 1000 + " us, " + t[1] +
+                                 " changes (in codegen)");
+                }
+            } else {
+                Stats.report("pass " + pass.name + ": " + micros + " us" +
+                             (pass.frontEnd ? "" : ", " + changes + " changes"));
+            }
+            if (pass.frontEnd && ErrMsg.getErr()) {
+                return false;
+            }
+            if (pass.name.equals("interp")) {
+                //the program has run: there is nothing to compile
+                break;
+            }
+            if (changes > 0 && !pass.frontEnd) {
+                invalidate();
+            }
+        }
+        for (Map.Entry<String, int[]> entry : analysisStats.entrySet()) {
+            int[] n = entry.getValue();
+            Stats.report("analysis " + entry.getKey() + ": computed " + n[0] +
+                         " times, " + n[1] + " cache hits");
+        }
+        return true;
+    }
+
+    /**
+     * Add the time since start (from System.nanoTime) and the given
+     * changes to the totals of the given pass, which runs once for each
+     * function during code generation.
+     */
+    public static void record(String name, long start, int changes) {
+        long[] t = perFunction.get(name);
+        if (t == null) {
+            t = new long[2];
+            perFunction.put(name, t);
+        }
+        t[0] += System.nanoTime() - start;
+        t[1] += changes;
+    }
+
+    /**
+     * Forget every analysis, after a pass changed the program.
+     */
+    public static void invalidate() {
+        callGraph = null;
+        cfgs.clear();
+        dominators.clear();
+        liveness.clear();
+    }
+
+    /**
+     * Return the call graph of the given program.
+     */
+    public static CallGraph callGraph(ProgramNode program) {
+        if (hit("callGraph", callGraph != null)) {
+            return callGraph;
+        }
+        callGraph = new CallGraph(program);
+        return callGraph;
+    }
+
+    /**
+     * Return the control-flow graph of the given function.
+     */
+    public static Cfg cfg(FnDeclNode fn) {
+        Cfg cfg = cfgs.get(fn);
+        if (hit("cfg", cfg != null)) {
+            return cfg;
+        }
+        cfg = new Cfg(fn);
+        cfgs.put(fn, cfg);
+        return cfg;
+    }
+
+    /**
+     * Return the dominator tree of the given function.
+     */
+    public static Dominators dominators(FnDeclNode fn) {
+        Dominators dom = dominators.get(fn);
+        if (hit("dominators", dom != null)) {
+            return dom;
+        }
+        dom = new Dominators(cfg(fn));
+        dominators.put(fn, dom);
+        return dom;
+    }
+
+    /**
+     * Return the live variables of the given function.
+     */
+    public static Liveness liveness(FnDeclNode fn) {
+        Liveness live = liveness.get(fn);
+        if (hit("liveness", live != null)) {
+            return live;
+        }
+        live = new Liveness(cfg(fn));
+        liveness.put(fn, live);
+        return live;
+    }
+
+    // count a request for the given analysis; return cached
+    private static boolean hit(String analysis, boolean cached) {
+        int[] n = analysisStats.get(analysis);
+        if (n == null) {
+            n = new int[2];
+            analysisStats.put(analysis, n);
+        }
+        n[cached ? 1 : 0]++;
+        return cached;
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The Pipeline class is the timing model MipsSim runs with -timing.  It
+// follows the instructions the simulator executes through a classic
+// 5-stage pipeline (IF ID EX MEM WB) with full forwarding, and counts
+// the cycle in which each one enters EX.  An instruction waits for:
+//     control     a taken branch or jump before it, resolved in ID; the
+//                 instruction fetched after it is squashed (none with
+//                 -delayed: the delay slot hides it)
+//     icache      a miss fetching it
+//     load-use    a load result it needs: one cycle in EX, two for a
+//                 branch, which compares in ID
+//     branch      an ALU result a branch or jr needs in ID
+//     mult/div    a result of mult, div or mul (LAT_MULT, LAT_DIV
+//                 cycles), or the multiplier still busy
+//     dcache      a miss of the load or store before it (the pipeline
+//                 freezes while the line comes in)
+// Each miss costs the same penalty, -miss=N cycles.  The cycles are
+// charged to the function the instruction is in: the code from one
+// text label that does not start with '.' to the next.
+// **********************************************************************
+
+public class Pipeline {
+    // cycles from entering EX to the result being ready for forwarding;
+    // a load takes 2.  These are the scheduler's defaults (see
+    // Options.latency).
+    static final int LAT_MULT = 12, LAT_DIV = 35;
+
+    // stall causes
+    private static final int CONTROL = 0, ICACHE = 1, LOAD_USE = 2,
+        BRANCH = 3, MULDIV = 4, DCACHE = 5;
+    private static final String[] CAUSES = {
+        "control", "icache", "load-use", "branch", "mult/div", "dcache"
+    };
+
+    // the kind of instruction producing a register, for the cause of a
+    // wait on it
+    private static final int ALU = 0, LOAD = 1, MUL = 2;
+
+    // register 32 stands for hi and lo
+    private static final int HILO = 32;
+
+    private boolean delayed;
+    private int penalty;
+    private Cache icache;
+    private Cache dcache;
+
+    // for each register, the first cycle in EX that can use its value,
+    // and what produced it
+    private long[] ready = new long[33];
+    private int[] producer = new int[33];
+    // the first cycle a new mult or div can enter EX
+    private long mulFree;
+    // the cycle the last instruction entered EX, plus any freeze after it
+    private long last = 2;
+    // did the last instruction redirect the fetch?
+    private boolean squash;
+
+    long instrs;
+    long[] stalls = new long[CAUSES.length];
+
+    // the functions, and the function of each instruction
+    private List<String> fnNames = new ArrayList<String>();
+    private int[] fnOf;
+    // by function: instructions, cycles, icache misses, dcache accesses
+    // and misses
+    private long[][] fnCounts;
+
+    public Pipeline(MipsSim sim, boolean delayed, int penalty,
+                    Cache icache, Cache dcache) {
+        this.delayed = delayed;
+        this.penalty = penalty;
+        this.icache = icache;
+        this.dcache = dcache;
+        fnOf = new int[sim.numInstrs];
+        fnNames.add("(start)");
+        for (int i = 0; i < sim.numInstrs; i++) {
+            String name = sim.fnStarts.get(i);
+            if (name != null)
+                fnNames.add(name);
+            fnOf[i] = fnNames.size() - 1;
+        }
+        fnCounts = new long[fnNames.size()][5];
+    }
+
+    /**
+     * Time one executed instruction: the one at index pc, in the
+     * predecoded form of MipsSim.  addr is the address a load or store
+     * used and taken tells whether a branch or jump was taken.
+     */
+    public void step(int pc, int op, int x, int y, int z, int addr,
+                     boolean taken) {
+        long[] fn = fnCounts[fnOf[pc]];
+        long t = last + 1;
+        if (squash) {
+            t = stall(t, 1, CONTROL);
+            squash = false;
+        }
+        if (!icache.access(MipsSim.TEXT_BASE + 4 * pc)) {
+            t = stall(t, penalty, ICACHE);
+            fn[2]++;
+        }
+
+        // the registers it reads, and the cycle (relative to EX) it
+        // needs them in
+        int r1 = -1, r2 = -1;
+        int when1 = 0, when2 = 0;
+        int dest = -1;
+        int latency = 1;
+        int kind = ALU;
+        boolean mem = false;
+        if (op <= MipsSim.SRAV || op == MipsSim.MUL) {
+            r1 = y;
+            r2 = z;
+            dest = x;
+            if (op == MipsSim.MUL) {
+                latency = LAT_MULT;
+                kind = MUL;
+            }
+        } else if (op <= MipsSim.SLTIU ||
+                   op >= MipsSim.SLL && op <= MipsSim.SRA) {
+            r1 = y;
+            dest = x;
+        } else if (op == MipsSim.LUI) {
+            dest = x;
+        } else if (op >= MipsSim.MULT && op <= MipsSim.DIVU) {
+            r1 = y;
+            r2 = z;
+            dest = HILO;
+            latency = op <= MipsSim.MULTU ? LAT_MULT : LAT_DIV;
+            kind = MUL;
+        } else if (op == MipsSim.MFHI || op == MipsSim.MFLO) {
+            r1 = HILO;
+            dest = x;
+        } else if (op == MipsSim.MTHI || op == MipsSim.MTLO) {
+            r1 = y;
+            dest = HILO;
+        } else if (op >= MipsSim.LW && op <= MipsSim.LHU) {
+            r1 = y;
+            dest = x;
+            latency = 2;
+            kind = LOAD;
+            mem = true;
+        } else if (op >= MipsSim.SW && op <= MipsSim.SH) {
+            // the data is only needed in MEM
+            r1 = y;
+            r2 = x;
+            when2 = 1;
+            mem = true;
+        } else if (op == MipsSim.BEQ || op == MipsSim.BNE) {
+            r1 = x;
+            r2 = y;
+            when1 = when2 = -1;
+        } else if (op >= MipsSim.BLTZ && op <= MipsSim.BGTZ) {
+            r1 = x;
+            when1 = -1;
+        } else if (op == MipsSim.JR || op == MipsSim.JALR) {
+            r1 = y;
+            when1 = -1;
+            if (op == MipsSim.JALR)
+                dest = x;
+        } else if (op == MipsSim.JAL) {
+            dest = 31;
+        } else if (op == MipsSim.SYSCALL) {
+            r1 = 2;
+            r2 = 4;
+            dest = 2;
+        }
+        t = operand(t, r1, when1);
+        t = operand(t, r2, when2);
+        if (op >= MipsSim.MULT && op <= MipsSim.DIVU) {
+            if (mulFree > t)
+                t = stall(t, mulFree - t, MULDIV);
+            mulFree = t + latency;
+        }
+
+        long freeze = 0;
+        if (mem) {
+            fn[3]++;
+            if (!dcache.access(addr)) {
+                freeze = penalty;
+                stalls[DCACHE] += penalty;
+                fn[4]++;
+            }
+        }
+        if (dest > 0) {
+            ready[dest] = t + latency + (kind == LOAD ? freeze : 0);
+            producer[dest] = kind;
+        }
+        if (taken && !delayed)
+            squash = true;
+
+        instrs++;
+        fn[0]++;
+        fn[1] += t + freeze - last;
+        last = t + freeze;
+    }
+
+    // wait from cycle t until register r can be used when relative
+    // cycles after entering EX
+    private long operand(long t, int r, int when) {
+        if (r <= 0 || ready[r] <= t + when)
+            return t;
+        int cause = producer[r] == LOAD ? LOAD_USE :
+            producer[r] == MUL ? MULDIV : BRANCH;
+        return stall(t, ready[r] - (t + when), cause);
+    }
+
+    private long stall(long t, long cycles, int cause) {
+        stalls[cause] += cycles;
+        return t + cycles;
+    }
+
+    /**
+     * Return the cycles the program took: until the last instruction
+     * left WB.
+     */
+    public long cycles() {
+        return last + 2;
+    }
+
+    /**
+     * Print the cycles, CPI, stalls by cause, and the cycles and miss
+     * rates of each function.
+     */
+    public void report(PrintStream s) {
+        long cycles = cycles();
+        s.printf("cycles: %d (CPI %.3f)%n", cycles,
+                 instrs == 0 ? 0.0 : (double)cycles / instrs);
+        long total = 0;
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < CAUSES.length; c++) {
+            total += stalls[c];
+            sb.append(c == 0 ? "" : ", ").append(CAUSES[c]).append(' ')
+                .append(stalls[c]);
+        }
+        s.println("stalls: " + total + " (" + sb + ")");
+        s.println(icache.describe() + ": " + rate(icache.misses,
+                                                   icache.accesses));
+        s.println(dcache.describe() + ": " + rate(dcache.misses,
+                                                   dcache.accesses));
+        s.printf("  %-16s %12s %12s %7s %14s %14s%n", "function", "instrs",
+                 "cycles", "CPI", "icache miss", "dcache miss");
+        for (int f = 0; f < fnNames.size(); f++) {
+            long[] n = fnCounts[f];
+            if (n[0] == 0)
+                continue;
+            s.printf("  %-16s %12d %12d %7.3f %14s %14s%n", fnNames.get(f),
+                     n[0], n[1], (double)n[1] / n[0], percent(n[2], n[0]),
+                     percent(n[4], n[3]));
+        }
+    }
+
+    private static String rate(long misses, long accesses) {
+        return misses + " misses in " + accesses + " accesses (" +
+            percent(misses, accesses) + ")";
+    }
+
+    private static String percent(long part, long whole) {
+        return whole == 0 ? "-" :
+            String.format("%.2f%%", 100.0 * part / whole);
+    }
+}
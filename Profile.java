@@ -0,0 +1,275 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The Profile class does profile-guided optimization over two compiles.
+//
+// With -instrument the generated program counts, in a table of words in
+// the data segment,
+//     function        its entries
+//     if              the times it is reached, the times its then part runs
+//     if-else         the times each of its two parts runs
+//     while           the times it is reached, the iterations of its body
+// and main prints the table when it exits, after the program's output:
+//     #profile
+//     main 1
+//     fib 21891
+//     fib:1 21891 10946
+//     #end
+// A line names a function, or the k-th branch of a function in source
+// order (fib:1), followed by its counts.  The counters sit at the start
+// of blocks rather than on the edges, so no edge has to be split; the two
+// counts of a branch give both of its edges.  Each counter costs a load,
+// an add and a store, and uses only $t0.
+//
+// A later compile of the same source given that output with -profile=FILE
+// uses the counts:
+//     - an if-else moves its less frequent part past the end of its
+//       function, so the other part runs straight from the test to the
+//       code after the if with no jump; the part moved out of line takes
+//       a branch there and a jump back, as the then part took a jump over
+//       the else part before
+//     - an if whose then part never ran moves that part out of line too
+//     - a function that takes at least 1/HOT_DIVISOR of all calls is
+//       inlined up to HOT_FACTOR times the -inline size, and one that was
+//       never called is not inlined
+//     - the register allocators weight each loop by its iterations per
+//       entry instead of a guessed 10, and a loop whose body never ran is
+//       neither rotated nor given hoisted invariants
+// A function or branch the profile does not know, or knows with the wrong
+// number of counts (the source changed), gets the usual static choices.
+// -stats reports each choice the profile made.
+// **********************************************************************
+
+public class Profile {
+    public static final String DUMP = "__profile";
+    private static final String TABLE = "__counts";
+    private static final String HEADER = "#profile";
+    private static final String FOOTER = "#end";
+
+    // a function is hot with this share of the calls, and may then be
+    // this many times larger and still be inlined
+    private static final int HOT_DIVISOR = 10;
+    private static final int HOT_FACTOR = 4;
+
+    // name and first counter of each function and branch
+    private static Map<ASTnode, String> keys = new HashMap<ASTnode, String>();
+    private static Map<ASTnode, Integer> first =
+        new HashMap<ASTnode, Integer>();
+    // every name with its number of counters, in table order
+    private static Map<String, Integer> widths =
+        new LinkedHashMap<String, Integer>();
+    private static int size = 0;
+
+    // the counts read with -profile, by name
+    private static Map<String, long[]> counts = new HashMap<String, long[]>();
+    private static long totalCalls = 0;
+
+    /**
+     * Name the functions and branches of the program, and read the
+     * profile if one was given.  This must come before anything asks
+     * for counts.
+     */
+    public static void number(ProgramNode program) {
+        for (ASTnode decl : program.kids().get(0).kids()) {
+            if (!(decl instanceof FnDeclNode)) {
+                continue;
+            }
+            FnDeclNode fn = (FnDeclNode)decl;
+            add(fn, fn.name(), 1);
+            int k = 0;
+            for (ASTnode node : fn.walk()) {
+                if (node instanceof IfStmtNode ||
+                    node instanceof IfElseStmtNode ||
+                    node instanceof WhileStmtNode) {
+                    add(node, fn.name() + ":" + ++k, 2);
+                }
+            }
+        }
+        if (Options.profile != null) {
+            load(Options.profile);
+        }
+    }
+
+    private static void add(ASTnode node, String key, int width) {
+        keys.put(node, key);
+        first.put(node, size);
+        widths.put(key, width);
+        size += width;
+    }
+
+    /**
+     * Count one pass over the given edge (0 or 1) of the given function or
+     * branch, if the build is instrumented.
+     */
+    public static void count(ASTnode node, int edge) {
+        if (!Options.instrument || !first.containsKey(node)) {
+            return;
+        }
+        int offset = 4 * (first.get(node) + edge);
+        String addr = offset == 0 ? TABLE : TABLE + "+" + offset;
+        Codegen.generateWithComment("lw", "profile " + keys.get(node),
+                                    Codegen.T0, addr);
+        Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
+        Codegen.generate("sw", Codegen.T0, addr);
+    }
+
+    /**
+     * Return the counts of the given function or branch, or null if the
+     * profile has none for it.
+     */
+    public static long[] counts(ASTnode node) {
+        String key = keys.get(node);
+        long[] c = key == null ? null : counts.get(key);
+        if (c == null || c.length != widths.get(key)) {
+            return null;
+        }
+        return c;
+    }
+
+    /**
+     * Return the name of the given function or branch in the profile.
+     */
+    public static String key(ASTnode node) {
+        return keys.get(node);
+    }
+
+    /**
+     * Return the inlining size limit for the given function: the -inline
+     * size, HOT_FACTOR times that for a hot function, and 0 for one the
+     * profile saw never called.
+     */
+    public static int inlineLimit(FnDeclNode fn) {
+        long[] c = counts(fn);
+        if (c == null || Options.inlineSize == 0) {
+            return Options.inlineSize;
+        }
+        if (c[0] == 0) {
+            return 0;
+        }
+        if (c[0] * HOT_DIVISOR >= totalCalls) {
+            return HOT_FACTOR * Options.inlineSize;
+        }
+        return Options.inlineSize;
+    }
+
+    /**
+     * Return the measured iterations per entry of the given while loop,
+     * or the default guess if the profile does not know the loop.
+     */
+    public static double trips(WhileStmtNode loop, double guess) {
+        long[] c = counts(loop);
+        if (c == null) {
+            return guess;
+        }
+        return c[0] == 0 ? 0 : (double)c[1] / c[0];
+    }
+
+    /**
+     * Return true if the profile saw the body of the given while loop
+     * never run.
+     */
+    public static boolean neverLoops(WhileStmtNode loop) {
+        long[] c = counts(loop);
+        return c != null && c[1] == 0;
+    }
+
+    // read the last table in the given program output
+    private static void load(String file) {
+        List<String> lines = new ArrayList<String>();
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+            in.close();
+        } catch (IOException ex) {
+            System.err.println("cannot read profile " + file);
+            System.exit(-1);
+        }
+        int start = lines.lastIndexOf(HEADER);
+        if (start < 0) {
+            System.err.println("no profile in " + file);
+            System.exit(-1);
+        }
+        for (int i = start + 1; i < lines.size(); i++) {
+            String[] fields = lines.get(i).trim().split(" +");
+            if (fields[0].equals(FOOTER)) {
+                break;
+            }
+            long[] c = new long[fields.length - 1];
+            try {
+                for (int k = 0; k < c.length; k++) {
+                    //the counters are unsigned words printed as ints
+                    c[k] = Integer.parseInt(fields[k + 1]) & 0xffffffffL;
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println("bad line in profile " + file + ": " +
+                                   lines.get(i));
+                System.exit(-1);
+            }
+            counts.put(fields[0], c);
+        }
+        int known = 0;
+        for (Map.Entry<String, Integer> entry : widths.entrySet()) {
+            long[] c = counts.get(entry.getKey());
+            if (c != null && c.length == entry.getValue()) {
+                known++;
+                if (entry.getValue() == 1) {
+                    totalCalls += c[0];
+                }
+            }
+        }
+        Stats.report("profile " + file + ": " + known + " of " +
+                     widths.size() + " functions and branches, " +
+                     totalCalls + " calls");
+    }
+
+    /**
+     * Write the table of counters and the routine that prints it, if the
+     * build is instrumented.  This must come before the string pool.
+     */
+    public static void generate() {
+        if (!Options.instrument) {
+            return;
+        }
+        PrintWriter out = Codegen.p;
+        StringWriter code = new StringWriter();
+        Codegen.p = new PrintWriter(code);
+        Codegen.p.println();
+        Codegen.generate(".text");
+        Codegen.genLabel(DUMP, "profile: print the counters");
+        genPrint("\\n" + HEADER + "\\n");
+        int offset = 0;
+        for (Map.Entry<String, Integer> entry : widths.entrySet()) {
+            genPrint(entry.getKey());
+            for (int k = 0; k < entry.getValue(); k++) {
+                genPrint(" ");
+                Codegen.generate("lw", Codegen.A0, TABLE + "+" + offset);
+                Codegen.generate("li", Codegen.V0, 1);
+                Codegen.generate("syscall");
+                offset += 4;
+            }
+            genPrint("\\n");
+        }
+        genPrint(FOOTER + "\\n");
+        Codegen.generate("jr", Codegen.RA);
+        Codegen.p.flush();
+        Codegen.p = out;
+        Codegen.p.print(DelaySlots.fill("profile", code.toString()));
+        Codegen.p.println();
+        Codegen.generate(".data");
+        Codegen.generate(".align 2");
+        Codegen.p.println(TABLE + ":\t.space " + Math.max(4, 4 * size));
+        Stats.report("profile: " + size + " counters for " + widths.size() +
+                     " functions and branches");
+    }
+
+    // print the given string (escapes as in a harambe literal)
+    private static void genPrint(String s) {
+        Codegen.generate("la", Codegen.A0, StringPool.label("\"" + s + "\""));
+        Codegen.generate("li", Codegen.V0, 4);
+        Codegen.generate("syscall");
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.*;
+
+// **********************************************************************
+// The RegAlloc class is the base of the register allocators, which assign
+// machine registers to the scalar (int and bool) formals and locals of
+// one function.  The strategy is picked with -regalloc:
+//     color     ColoringAlloc, Chaitin-Briggs graph coloring
+//     linear    LinearScanAlloc, linear scan with interval splitting
+//     none      no allocator; every variable lives in memory
+//
+// The AST feeds an allocator through the liveness methods of the
+// statement and expression nodes, which walk the function body backwards
+// and call:
+//     use        a variable is read
+//     def        a variable is written (with the source of a copy, if any)
+//     call       a call happens while the given variables are live
+//     boundary   the walk reached the start of a top-level statement
+// FnDeclNode then calls entry() for the formals and allocate().  A call
+// the inliner expands is not a call: the walk goes through the inlined
+// body instead, so its formals and locals compete for registers too.
+//
+// Variables that get no register simply stay in their stack slot.  The
+// code generator already reaches those through the scratch registers
+// $t0 and $t1, so spilling never has to insert new code.
+// **********************************************************************
+
+public abstract class RegAlloc {
+    // registers given to variables; $t0, $t1, $v0, $v1 and $a0 stay
+    // reserved as scratch registers for the code generator
+    public static final String[] CALLER_SAVED = {
+        "$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9"
+    };
+    public static final String[] CALLEE_SAVED = {
+        "$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7"
+    };
+
+    // iterations guessed for a loop the profile does not know, and the
+    // cap on the weight of a use or def (six nested guessed loops)
+    public static final double GUESSED_TRIPS = 10;
+    private static final double MAX_WEIGHT = 1e6;
+
+    protected String fnName;
+    // weight of a use or def in each loop being walked
+    private Stack<Double> weights = new Stack<Double>();
+    private long startTime = System.nanoTime();
+    protected List<String> calleeSaved = new ArrayList<String>();
+    private boolean recording = true;
+    private Stack<Set<SemSym>> returnLive = new Stack<Set<SemSym>>();
+
+    protected RegAlloc(String fnName) {
+        this.fnName = fnName;
+    }
+
+    /**
+     * Return the allocator selected by -regalloc, or null if variables
+     * should stay in memory.
+     */
+    public static RegAlloc create(String fnName) {
+        if (Options.regAlloc.equals("color"))
+            return new ColoringAlloc(fnName);
+        if (Options.regAlloc.equals("linear"))
+            return new LinearScanAlloc(fnName);
+        return null;
+    }
+
+    /**
+     * Return true if the given symbol may live in a register: a local or
+     * formal of type int or bool.
+     */
+    public static boolean isCandidate(SemSym sym) {
+        if (sym == null || sym.isGlobal() || sym.getClass() != SemSym.class)
+            return false;
+        Type t = sym.getType();
+        return t.isIntType() || t.isBoolType();
+    }
+
+    /**
+     * Turn recording of uses and defs on or off.  Loops run their
+     * liveness to a fixed point with recording off and then make one
+     * final recording pass.  Returns the previous setting.
+     */
+    public boolean setRecording(boolean on) {
+        boolean old = recording;
+        recording = on;
+        return old;
+    }
+
+    protected boolean recording() {
+        return recording;
+    }
+
+    /**
+     * The walk enters the body of a function inlined at a call site;
+     * live is the set of variables live after the call, and so after
+     * every return in the body.
+     */
+    public void pushReturnLive(Set<SemSym> live) {
+        returnLive.push(live);
+    }
+
+    public void popReturnLive() {
+        returnLive.pop();
+    }
+
+    /**
+     * Return the set of variables live after a return statement: none
+     * in the function's own body, what the call site needs in an inlined
+     * body.
+     */
+    public Set<SemSym> returnLive() {
+        if (returnLive.isEmpty())
+            return new HashSet<SemSym>();
+        return returnLive.peek();
+    }
+
+    /**
+     * The walk enters a loop (at its end, since it goes backwards) that
+     * runs the given number of iterations each time it is reached.
+     */
+    public void enterLoop(double trips) {
+        weights.push(Math.min(MAX_WEIGHT, weight() * trips));
+    }
+
+    /**
+     * The walk leaves a loop; head is the set of variables live at the
+     * loop head, which are live all through the loop.
+     */
+    public void exitLoop(Set<SemSym> head) {
+        weights.pop();
+    }
+
+    // uses and defs count as often as their loops are expected to run
+    protected double weight() {
+        return weights.isEmpty() ? 1 : weights.peek();
+    }
+
+    /**
+     * A read of sym; live is the set of variables live after the read.
+     */
+    public void use(SemSym sym, Set<SemSym> live) {
+        if (!isCandidate(sym))
+            return;
+        live.add(sym);
+        if (recording)
+            recordUse(sym);
+    }
+
+    /**
+     * A write of sym; live is the set of variables live after the write.
+     * If the value written is a copy of another variable, src is that
+     * variable, and the two do not interfere because of this write.
+     */
+    public void def(SemSym sym, Set<SemSym> live, SemSym src) {
+        if (!isCandidate(sym))
+            return;
+        if (recording)
+            recordDef(sym, live, isCandidate(src) ? src : null);
+        live.remove(sym);
+    }
+
+    /**
+     * A call with the given variables live across it.  Those may only be
+     * given callee-saved registers.
+     */
+    public void call(Set<SemSym> live) {
+        if (recording)
+            recordCall(live);
+    }
+
+    /**
+     * The walk reached the start of the given top-level statement of the
+     * function body (a statement not nested in a loop or branch).
+     */
+    public void boundary(StmtNode stmt) { }
+
+    protected abstract void recordUse(SemSym sym);
+    protected abstract void recordDef(SemSym sym, Set<SemSym> live,
+                                      SemSym src);
+    protected abstract void recordCall(Set<SemSym> live);
+
+    /**
+     * The formals are all defined on entry to the function; live is the
+     * set of variables live at the start of the body.
+     */
+    public abstract void entry(List<SemSym> formals, Set<SemSym> live);
+
+    /**
+     * Choose registers and record them in the symbols.  Variables left
+     * without a register stay in memory.  The time reported covers the
+     * liveness walk as well, since the allocator is created just before.
+     */
+    public void allocate() {
+        String summary = assign();
+        long micros = (System.nanoTime() - startTime) / 1000;
+        Stats.report("regalloc " + fnName + " (" + Options.regAlloc + ", " +
+                     micros + " us): " + summary);
+    }
+
+    /**
+     * Do the allocation; return a summary for the statistics.
+     */
+    protected abstract String assign();
+
+    /**
+     * Return the callee-saved registers the function must preserve.
+     */
+    public List<String> calleeSaved() {
+        return calleeSaved;
+    }
+
+    protected static String firstFree(String[] regs, Set<String> taken) {
+        for (String r : regs)
+            if (!taken.contains(r))
+                return r;
+        return null;
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The RuntimeLib class holds the runtime routines that generated code
+// may call.  A routine is written once, at the end of the program's
+// code, and only if something asked for its label.
+//
+// The routines take their arguments in $a0 and $a1, return in $v0, and
+// may only change $t0, $t1, $v0, $v1 and $a0-$a2.  Those are never given
+// to variables, so calling a routine saves nothing but $ra, which every
+// function reloads from its frame before returning anyway.
+// **********************************************************************
+
+public class RuntimeLib {
+    public static final String STREQ = "__streq";
+
+    // the routines asked for, in order
+    private static Set<String> used = new LinkedHashSet<String>();
+
+    /**
+     * Return the label of the string-equality routine: $v0 is 1 if the
+     * strings at $a0 and $a1 are equal and 0 if not.
+     */
+    public static String streq() {
+        used.add(STREQ);
+        return STREQ;
+    }
+
+    /**
+     * Write the routines that were used.
+     */
+    public static void generate() {
+        PrintWriter out = Codegen.p;
+        StringWriter code = new StringWriter();
+        Codegen.p = new PrintWriter(code);
+        if (used.contains(STREQ))
+            genStreq();
+        Codegen.p.flush();
+        Codegen.p = out;
+        if (!used.isEmpty())
+            Codegen.p.print(DelaySlots.fill("runtime", code.toString()));
+    }
+
+    // Compare a word at a time while both strings are word aligned.  Equal
+    // words end the comparison if one of their bytes is zero (the test
+    // (w - 0x01010101) & ~w & 0x80808080 is nonzero exactly then); words
+    // that differ are compared again a byte at a time, because the bytes
+    // after the terminators may differ between equal strings.
+    private static void genStreq() {
+        String words = Codegen.nextLabel();
+        String bytes = Codegen.nextLabel();
+        String equal = Codegen.nextLabel();
+        String differ = Codegen.nextLabel();
+        Codegen.p.println();
+        Codegen.generate(".text");
+        Codegen.genLabel(STREQ, "runtime: string equality");
+        Codegen.generate("or", Codegen.V0, Codegen.A0, Codegen.A1);
+        Codegen.generate("andi", Codegen.V0, Codegen.V0, 3);
+        Codegen.generate("bne", Codegen.V0, "$zero", bytes);
+        Codegen.generate("li", Codegen.T1, 0x01010101);
+        Codegen.generate("li", Codegen.A2, 0x80808080);
+        Codegen.genLabel(words);
+        Codegen.generateIndexed("lw", Codegen.V0, Codegen.A0, 0);
+        Codegen.generateIndexed("lw", Codegen.V1, Codegen.A1, 0);
+        Codegen.generate("bne", Codegen.V0, Codegen.V1, bytes);
+        Codegen.generate("subu", Codegen.T0, Codegen.V0, Codegen.T1);
+        Codegen.generate("nor", Codegen.V1, Codegen.V0, "$zero");
+        Codegen.generate("and", Codegen.T0, Codegen.T0, Codegen.V1);
+        Codegen.generate("and", Codegen.T0, Codegen.T0, Codegen.A2);
+        Codegen.generate("bne", Codegen.T0, "$zero", equal);
+        Codegen.generate("addu", Codegen.A0, Codegen.A0, 4);
+        Codegen.generate("addu", Codegen.A1, Codegen.A1, 4);
+        Codegen.generate("j", words);
+        Codegen.genLabel(bytes);
+        Codegen.generateIndexed("lbu", Codegen.V0, Codegen.A0, 0);
+        Codegen.generateIndexed("lbu", Codegen.V1, Codegen.A1, 0);
+        Codegen.generate("bne", Codegen.V0, Codegen.V1, differ);
+        Codegen.generate("beq", Codegen.V0, "$zero", equal);
+        Codegen.generate("addu", Codegen.A0, Codegen.A0, 1);
+        Codegen.generate("addu", Codegen.A1, Codegen.A1, 1);
+        Codegen.generate("j", bytes);
+        Codegen.genLabel(equal);
+        Codegen.generate("li", Codegen.V0, 1);
+        Codegen.generate("jr", Codegen.RA);
+        Codegen.genLabel(differ);
+        Codegen.generate("li", Codegen.V0, 0);
+        Codegen.generate("jr", Codegen.RA);
+    }
+}
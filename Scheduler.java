@@ -0,0 +1,317 @@
+import java.util.*;
+
+// **********************************************************************
+// The Scheduler class reorders the instructions inside each basic block
+// of a function so that the result of a load, mult or div is not used
+// right away.  SPIM runs the code as written, so the order does not
+// matter there, but a pipelined MIPS (or the R2000 with its load delay)
+// stalls on every such use.
+//
+// A block is a run of instructions between labels, directives and blank
+// lines; a branch, jump, call or syscall ends it and stays its last
+// instruction, and straight-line code is cut every WINDOW instructions.
+// Within a block an instruction depends on an earlier one if it reads or
+// writes a register the earlier one writes, writes a register the earlier
+// one reads, or if both touch memory that may be the same, at least one
+// of them storing.  Addresses are compared symbolically: each base
+// register is followed through constant addu and subu (the pushes and
+// pops), so two stack slots are known apart even if $sp moved in between,
+// and a global is never a stack slot.
+// HI and LO are treated as registers written by mult and div.
+//
+// The latencies come from Options.latency (see -latency): an instruction
+// reading the result of another issues no sooner than that many cycles
+// after it, and every other instruction takes one cycle.  A block is
+// list scheduled, always issuing the ready instruction with the longest
+// latency-weighted path to the end of the block, and the new order is
+// kept if it stalls less than the old one.  The stall cycles this saves
+// are an estimate for one pass through each block; -stats reports them
+// per function.
+// **********************************************************************
+
+public class Scheduler {
+    // longest run of instructions scheduled together; a longer block is
+    // cut into pieces of this size, so the work stays linear in its length
+    private static final int WINDOW = 64;
+
+    /**
+     * Return the given code of the function with the given name with
+     * each block scheduled.
+     */
+    public static String schedule(String fnName, String code) {
+        if (!Options.schedule)
+            return code;
+        Scheduler s = new Scheduler();
+        StringBuilder out = new StringBuilder();
+        List<Instr> block = new ArrayList<Instr>();
+        for (String line : code.split("\n", -1)) {
+            Instr instr = Instr.parse(line);
+            if (instr != null)
+                block.add(instr);
+            if (instr == null || instr.endsBlock() ||
+                block.size() == WINDOW) {
+                s.flush(block, out);
+                block.clear();
+            }
+            if (instr == null)
+                out.append(line).append('\n');
+        }
+        s.flush(block, out);
+        // split leaves one empty line after the last newline
+        out.setLength(out.length() - 1);
+        reordered += s.moved;
+        Stats.report("schedule " + fnName + ": " + s.blocks + " blocks, " +
+                     s.moved + " reordered, stalls " + s.before + " -> " +
+                     s.after);
+        return out.toString();
+    }
+
+    /**
+     * Return the number of blocks reordered so far, in all functions.
+     */
+    public static int reordered() {
+        return reordered;
+    }
+
+    private static int reordered = 0;
+
+    // blocks seen and reordered; stall cycles before and after
+    private int blocks = 0;
+    private int moved = 0;
+    private int before = 0;
+    private int after = 0;
+
+    // schedule the given block and append it to out
+    private void flush(List<Instr> block, StringBuilder out) {
+        if (block.isEmpty())
+            return;
+        blocks++;
+        Dag dag = new Dag(block);
+        List<Instr> order = dag.schedule();
+        int old = dag.stalls(block);
+        int stalls = dag.stalls(order);
+        if (stalls < old) {
+            moved++;
+        } else {
+            order = block;
+            stalls = old;
+        }
+        before += old;
+        after += stalls;
+        for (Instr instr : order)
+            out.append(instr.line).append('\n');
+    }
+
+    /**
+     * Return the number of cycles after the given instruction before its
+     * result may be used without a stall.
+     */
+    public static int latency(Instr instr) {
+        String op = instr.op;
+        String key = null;
+        if (instr.loads)
+            key = "lw";
+        else if (op.equals("mult") || op.equals("multu") || op.equals("mul"))
+            key = "mult";
+        else if (op.startsWith("div") || op.startsWith("rem"))
+            key = "div";
+        else if (op.equals("mflo") || op.equals("mfhi"))
+            key = "mflo";
+        Integer n = key == null ? null : Options.latency.get(key);
+        return n == null ? 1 : n;
+    }
+
+    // ******************************************************************
+    // The dependence graph of one block
+    // ******************************************************************
+    private static class Dag {
+        private List<Instr> instrs;
+        private int n;
+        // lat[i][j] > 0 if j depends on i: j issues at least that many
+        // cycles after i
+        private int[][] lat;
+        private int[] height;
+        private Map<Instr, Integer> index =
+            new IdentityHashMap<Instr, Integer>();
+
+        Dag(List<Instr> instrs) {
+            this.instrs = instrs;
+            n = instrs.size();
+            for (int i = 0; i < n; i++)
+                index.put(instrs.get(i), i);
+            lat = new int[n][n];
+            Addresses addrs = new Addresses();
+            for (Instr instr : instrs)
+                addrs.note(instr);
+            for (int j = 0; j < n; j++) {
+                Instr b = instrs.get(j);
+                for (int i = 0; i < j; i++) {
+                    Instr a = instrs.get(i);
+                    if (b.endsBlock() || a.endsBlock())
+                        lat[i][j] = 1;
+                    if (!Collections.disjoint(a.defs, b.uses))
+                        lat[i][j] = latency(a);
+                    else if (!Collections.disjoint(a.defs, b.defs) ||
+                             !Collections.disjoint(a.uses, b.defs) ||
+                             (a.stores && (b.loads || b.stores) ||
+                              a.loads && b.stores) && addrs.mayAlias(a, b))
+                        lat[i][j] = Math.max(lat[i][j], 1);
+                }
+            }
+            height = new int[n];
+            for (int i = n - 1; i >= 0; i--) {
+                height[i] = latency(instrs.get(i));
+                for (int j = i + 1; j < n; j++)
+                    if (lat[i][j] > 0)
+                        height[i] = Math.max(height[i], lat[i][j] + height[j]);
+            }
+        }
+
+        // list schedule the block: at each cycle issue the ready
+        // instruction with the greatest height whose operands are ready,
+        // or, if there is none, the one that will be ready first
+        List<Instr> schedule() {
+            int[] waiting = new int[n];
+            int[] earliest = new int[n];
+            boolean[] done = new boolean[n];
+            for (int j = 0; j < n; j++)
+                for (int i = 0; i < j; i++)
+                    if (lat[i][j] > 0)
+                        waiting[j]++;
+            List<Instr> order = new ArrayList<Instr>();
+            int cycle = 0;
+            while (order.size() < n) {
+                int best = -1;
+                for (int i = 0; i < n; i++) {
+                    if (done[i] || waiting[i] > 0)
+                        continue;
+                    if (best < 0 || better(i, best, earliest, cycle))
+                        best = i;
+                }
+                cycle = Math.max(cycle, earliest[best]);
+                done[best] = true;
+                order.add(instrs.get(best));
+                for (int j = best + 1; j < n; j++) {
+                    if (lat[best][j] > 0) {
+                        waiting[j]--;
+                        earliest[j] = Math.max(earliest[j],
+                                               cycle + lat[best][j]);
+                    }
+                }
+                cycle++;
+            }
+            return order;
+        }
+
+        private boolean better(int i, int best, int[] earliest, int cycle) {
+            boolean iReady = earliest[i] <= cycle;
+            boolean bestReady = earliest[best] <= cycle;
+            if (iReady != bestReady)
+                return iReady;
+            if (!iReady && earliest[i] != earliest[best])
+                return earliest[i] < earliest[best];
+            return height[i] > height[best];
+        }
+
+        // the stall cycles of running the block's instructions in the
+        // given order, one per cycle when nothing is waited for
+        int stalls(List<Instr> order) {
+            int[] issued = new int[n];
+            int cycle = 0;
+            int stalls = 0;
+            for (Instr instr : order) {
+                int j = index.get(instr);
+                int t = cycle;
+                for (int i = 0; i < j; i++)
+                    if (lat[i][j] > 0)
+                        t = Math.max(t, issued[i] + lat[i][j]);
+                stalls += t - cycle;
+                issued[j] = t;
+                cycle = t + 1;
+            }
+            return stalls;
+        }
+    }
+
+    // ******************************************************************
+    // The addresses of the loads and stores of one block, each as a base
+    // value and an offset.  A base value is a register's value at the
+    // start of the block, or the last value it was given by anything but
+    // a constant addu, subu or move; a label is a base value of its own.
+    // ******************************************************************
+    private static class Addresses {
+        // the base value and offset in each register
+        private Map<String, String> base = new HashMap<String, String>();
+        private Map<String, Integer> offset = new HashMap<String, Integer>();
+        private Map<Instr, String> accessBase = new HashMap<Instr, String>();
+        private Map<Instr, Integer> accessOffset = new HashMap<Instr, Integer>();
+        private int fresh = 0;
+
+        void note(Instr instr) {
+            if (instr.loads || instr.stores) {
+                if (instr.baseReg == null) {
+                    accessBase.put(instr, instr.label);
+                    accessOffset.put(instr, instr.offset);
+                } else {
+                    accessBase.put(instr, baseOf(instr.baseReg));
+                    accessOffset.put(instr, offsetOf(instr.baseReg) +
+                                     instr.offset);
+                }
+            }
+            for (String reg : instr.defs) {
+                String[] a = instr.args;
+                String src = null;
+                int delta = 0;
+                if (instr.op.equals("move")) {
+                    src = a[1];
+                } else if (a.length == 3 && Instr.isInt(a[2]) &&
+                           (instr.op.equals("addu") || instr.op.equals("addiu") ||
+                            instr.op.equals("subu"))) {
+                    src = a[1];
+                    delta = Integer.parseInt(a[2]);
+                    if (instr.op.equals("subu"))
+                        delta = -delta;
+                }
+                if (src != null) {
+                    String b = baseOf(src);
+                    int off = offsetOf(src) + delta;
+                    base.put(reg, b);
+                    offset.put(reg, off);
+                } else {
+                    base.put(reg, reg + "#" + fresh++);
+                    offset.put(reg, 0);
+                }
+            }
+        }
+
+        private String baseOf(String reg) {
+            String b = base.get(reg);
+            return b == null ? reg : b;
+        }
+
+        private int offsetOf(String reg) {
+            Integer off = offset.get(reg);
+            return off == null ? 0 : off;
+        }
+
+        // true unless the two accesses are known to be apart
+        boolean mayAlias(Instr a, Instr b) {
+            String ba = accessBase.get(a);
+            String bb = accessBase.get(b);
+            if (ba.equals(bb)) {
+                int oa = accessOffset.get(a);
+                int ob = accessOffset.get(b);
+                return oa < ob + b.size && ob < oa + a.size;
+            }
+            // globals are apart from each other and from the stack
+            if (a.isGlobal() && b.isGlobal())
+                return false;
+            return !(a.isGlobal() && onStack(bb) ||
+                     b.isGlobal() && onStack(ba));
+        }
+
+        private static boolean onStack(String base) {
+            return base.equals(Codegen.SP) || base.equals(Codegen.FP);
+        }
+    }
+}
@@ -8,11 +8,13 @@ public class SemSym {
     private Type type;
     private int offset;
     private boolean isGlobal;
+    private String register;
 
     public SemSym(Type type, int offset) {
         this.type = type;
 	this.offset = offset;
 	this.isGlobal = false;
+	this.register = null;
     }
 
     public void setIsGlobal(boolean isGlobal) {
@@ -27,10 +29,30 @@ public class SemSym {
         return type;
     }
 
+    /**
+     * The register allocator sets the register holding this variable, or
+     * null if the variable lives in memory.
+     */
+    public void setRegister(String register) {
+	this.register = register;
+    }
+
+    public String getRegister() {
+	return this.register;
+    }
+
     public int getSymOffsetSize(){
       return offset;
     }
 
+    /**
+     * Move this variable to another frame offset (the inliner does this
+     * while it expands the function's body inside a caller).
+     */
+    public void setSymOffsetSize(int offset){
+      this.offset = offset;
+    }
+
     public String toString() {
         return type.toString();
     }
@@ -133,6 +155,8 @@ class StructSym extends SemSym {
 class StructDefSym extends SemSym {
     // new fields
     private SymTable symTab;
+    private int size;       // bytes, not rounded up
+    private int alignment;  // 4 if any field holds an int, else 1
 
     public StructDefSym(SymTable table) {
         super(new StructDefType(), 0);
@@ -142,4 +166,21 @@ class StructDefSym extends SemSym {
     public SymTable getSymTable() {
         return symTab;
     }
+
+    /**
+     * StructDeclNode sets the size and alignment once it has placed the
+     * fields (the offset of each field is the offset of its symbol).
+     */
+    public void setLayout(int size, int alignment) {
+        this.size = size;
+        this.alignment = alignment;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getAlignment() {
+        return alignment;
+    }
 }
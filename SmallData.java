@@ -0,0 +1,81 @@
+import java.util.*;
+
+// **********************************************************************
+// The SmallData class puts the small globals of the program (those of at
+// most Options.gpSize bytes) in one block, so that each can be reached
+// with a single $gp-relative load or store instead of the lui pair the
+// assembler makes of "lw $t0, _x".
+//
+// SPIM starts the data segment at 0x10000000 and points $gp 32K past
+// that, and it has no %gp_rel operator to ask for the offset of a label.
+// The block is therefore written first of all, at the start of the data
+// segment, and the offsets are worked out here: the global at byte k of
+// the block is at k - 32768 from $gp.  A signed 16-bit offset reaches
+// the first 64K of the segment, which caps the size of the block; the
+// globals that do not fit keep their labels.
+// **********************************************************************
+
+public class SmallData {
+    // bytes $gp can reach, and where the block starts relative to it
+    public static final int LIMIT = 65536;
+    private static final int GP_OFFSET = -32768;
+
+    // offset of each global in the block
+    private static Map<SemSym, Integer> offsets =
+        new HashMap<SemSym, Integer>();
+    private static int bytes = 0;
+    private static int accesses = 0;
+
+    /**
+     * Write the block with the small globals among the given
+     * declarations, before anything else in the data segment.
+     */
+    public static void generate(DeclListNode decls) {
+        if (Options.gpSize == 0)
+            return;
+        for (ASTnode node : decls.kids()) {
+            if (!(node instanceof VarDeclNode))
+                continue;
+            VarDeclNode decl = (VarDeclNode)node;
+            int size = decl.size();
+            if (decl.sym() == null || size > Options.gpSize ||
+                bytes + size > LIMIT)
+                continue;
+            if (bytes == 0) {
+                Codegen.p.println("# small data, from 32K below $gp");
+                Codegen.generate(".data");
+            }
+            Codegen.p.print("_" + decl.name() + ":");
+            Codegen.p.println("\t.space " + size);
+            decl.sym().setIsGlobal(true);
+            offsets.put(decl.sym(), bytes);
+            bytes += size;
+        }
+    }
+
+    /**
+     * Return true if the given global is in the block.
+     */
+    public static boolean contains(SemSym sym) {
+        return offsets.containsKey(sym);
+    }
+
+    /**
+     * Return the offset from $gp of the given global, for one access.
+     */
+    public static int offset(SemSym sym) {
+        accesses++;
+        return GP_OFFSET + offsets.get(sym);
+    }
+
+    /**
+     * Add the size of the block and the accesses made through $gp to the
+     * statistics.  Each access is one instruction shorter than through a
+     * label.
+     */
+    public static void report() {
+        Stats.report("small data: " + offsets.size() + " globals, " +
+                     bytes + " bytes, " + accesses + " $gp-relative " +
+                     "accesses (" + accesses + " instructions saved)");
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The Stats class collects the report printed when P6 is run with
+// -stats.  Passes add free-form lines with report(); Codegen counts the
+// instructions it emits with count().
+// **********************************************************************
+
+public class Stats {
+    // report lines, in the order they were added
+    private static List<String> lines = new ArrayList<String>();
+
+    // static instruction counts, by opcode
+    private static TreeMap<String, Integer> opcodes =
+        new TreeMap<String, Integer>();
+    private static int instrs = 0;
+
+    /**
+     * Add a line to the report (ignored unless -stats was given).
+     */
+    public static void report(String line) {
+        if (Options.stats)
+            lines.add(line);
+    }
+
+    /**
+     * Count one emitted instruction with the given opcode.
+     */
+    public static void count(String opcode) {
+        instrs++;
+        Integer n = opcodes.get(opcode);
+        opcodes.put(opcode, n == null ? 1 : n + 1);
+    }
+
+    /**
+     * Return the number of instructions counted so far.
+     */
+    public static int instructions() {
+        return instrs;
+    }
+
+    /**
+     * Return how many instructions with the given opcode were counted.
+     */
+    public static int instructions(String opcode) {
+        Integer n = opcodes.get(opcode);
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * Print the report.
+     */
+    public static void print(PrintStream p) {
+        for (String line : lines)
+            p.println(line);
+        p.println("instructions: " + instrs + " (lw " + instructions("lw") +
+                  ", sw " + instructions("sw") + ")");
+    }
+}
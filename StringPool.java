@@ -0,0 +1,137 @@
+import java.util.*;
+
+// **********************************************************************
+// The StringPool class collects the string literals of the program.  Each
+// distinct string gets one label, however many times it appears, and the
+// whole pool is written as a single .data section after the code.
+//
+// A string that is a suffix of a longer one shares its storage: the
+// longer string is written as .ascii pieces with a label at the start of
+// each shared suffix, and only its last piece ends in a NUL.  For
+// example "hello\n", "llo\n" and "\n" become
+//     .L3:    .ascii "he"
+//     .L7:    .ascii "llo"
+//     .L9:    .asciiz "\n"
+// Each stored string starts on a word boundary, for the word-at-a-time
+// loop of the string-equality routine (see RuntimeLib).  The pool sizes
+// go into the -stats report.
+// **********************************************************************
+
+public class StringPool {
+    // label of each distinct string, by its characters (escapes decoded)
+    private static Map<String, String> labels =
+        new LinkedHashMap<String, String>();
+    private static int uses = 0;
+    // bytes the literals would take with a copy per occurrence
+    private static int unpooledBytes = 0;
+
+    /**
+     * Return the label of the given string literal, as written in the
+     * source (with its quotes and escapes).
+     */
+    public static String label(String literal) {
+        uses++;
+        String s = decode(literal);
+        unpooledBytes += s.length() + 1;
+        String label = labels.get(s);
+        if (label == null) {
+            label = Codegen.nextLabel();
+            labels.put(s, label);
+        }
+        return label;
+    }
+
+    /**
+     * Return the characters of the given literal: the quotes removed and
+     * the escapes decoded.
+     */
+    public static String decode(String literal) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 1; i < literal.length() - 1; i++) {
+            char c = literal.charAt(i);
+            if (c == '\\') {
+                c = literal.charAt(++i);
+                if (c == 'n')
+                    c = '\n';
+                else if (c == 't')
+                    c = '\t';
+            }
+            b.append(c);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Write the pool.
+     */
+    public static void generate() {
+        if (labels.isEmpty())
+            return;
+        // longest first, so every string meets its hosts before itself
+        List<String> strings = new ArrayList<String>(labels.keySet());
+        Collections.sort(strings, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return b.length() - a.length();
+            }
+        });
+        // the strings stored in full, each with the labels inside it by
+        // offset
+        Map<String, TreeMap<Integer, String>> hosts =
+            new LinkedHashMap<String, TreeMap<Integer, String>>();
+        int shared = 0;
+        for (String s : strings) {
+            String host = null;
+            for (String h : hosts.keySet()) {
+                if (h.endsWith(s)) {
+                    host = h;
+                    break;
+                }
+            }
+            if (host == null) {
+                host = s;
+                hosts.put(s, new TreeMap<Integer, String>());
+            } else {
+                shared++;
+            }
+            hosts.get(host).put(host.length() - s.length(), labels.get(s));
+        }
+
+        int bytes = 0;
+        Codegen.p.println();
+        Codegen.generate(".data");
+        for (Map.Entry<String, TreeMap<Integer, String>> e : hosts.entrySet()) {
+            String host = e.getKey();
+            List<Integer> cuts = new ArrayList<Integer>(e.getValue().keySet());
+            Codegen.generate(".align 2"); // lets __streq go a word at a time
+            for (int i = 0; i < cuts.size(); i++) {
+                int from = cuts.get(i);
+                boolean last = i == cuts.size() - 1;
+                int to = last ? host.length() : cuts.get(i + 1);
+                Codegen.p.print(e.getValue().get(from) + ":");
+                Codegen.p.println("\t" + (last ? ".asciiz " : ".ascii ") +
+                                  encode(host.substring(from, to)));
+            }
+            bytes = (bytes + 3) / 4 * 4 + host.length() + 1;
+        }
+        Stats.report("strings: " + uses + " literals, " + labels.size() +
+                     " distinct, " + shared + " stored as suffixes, " +
+                     bytes + " bytes (" + unpooledBytes +
+                     " without the pool)");
+    }
+
+    // the given characters as an assembler string, quotes included
+    private static String encode(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '\n')
+                b.append("\\n");
+            else if (c == '\t')
+                b.append("\\t");
+            else if (c == '"' || c == '\\')
+                b.append('\\').append(c);
+            else
+                b.append(c);
+        }
+        return b.append('"').toString();
+    }
+}
@@ -5,6 +5,29 @@ abstract class ASTnode {
     // every subclass must provide an unparse operation
     abstract public void unparse(PrintWriter p, int indent);
 
+    // the children of this node, for passes that walk the whole tree
+    // (see walk); leaves have none
+    public List<ASTnode> kids() {
+        return new ArrayList<ASTnode>();
+    }
+
+    // this node and all the nodes under it, in preorder: each node comes
+    // before its kids, and the kids in order
+    public List<ASTnode> walk() {
+        List<ASTnode> nodes = new ArrayList<ASTnode>();
+        Stack<ASTnode> todo = new Stack<ASTnode>();
+        todo.push(this);
+        while (!todo.isEmpty()) {
+            ASTnode node = todo.pop();
+            nodes.add(node);
+            List<ASTnode> kids = node.kids();
+            for (int i = kids.size() - 1; i >= 0; i--) {
+                todo.push(kids.get(i));
+            }
+        }
+        return nodes;
+    }
+
     // this method can be used by the unparse methods to do indenting
     protected void doIndent(PrintWriter p, int indent) {
         for (int k=0; k<indent; k++) p.print(" ");
@@ -29,6 +52,13 @@ class ProgramNode extends ASTnode {
     public void nameAnalysis() {
         SymTable symTab = new SymTable();
         myDeclList.nameAnalysis(symTab, 0);
+        //the passes before code generation need to tell globals apart
+        for (ASTnode decl : myDeclList.kids()) {
+            if (decl instanceof VarDeclNode &&
+                ((VarDeclNode)decl).sym() != null) {
+                ((VarDeclNode)decl).sym().setIsGlobal(true);
+            }
+        }
         SemSym mainSymbol = symTab.lookupGlobal("main");
         if(mainSymbol == null){
           //Report error "No Main Function" 0,0
@@ -44,13 +74,22 @@ class ProgramNode extends ASTnode {
 
 
     public void codeGen(){
+	     SmallData.generate(myDeclList);
 	     myDeclList.codeGen();
+	     RuntimeLib.generate();
+	     Profile.generate();
+	     StringPool.generate();
+	     SmallData.report();
     }
 
     public void unparse(PrintWriter p, int indent) {
         myDeclList.unparse(p, indent);
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myDeclList);
+    }
+
     // 1 kid
     private DeclListNode myDeclList;
 }
@@ -68,8 +107,17 @@ class DeclListNode extends ASTnode {
         nameAnalysis(symTab, symTab, initialOffset);
     }
 
+    /**
+     * Return the bytes of frame the variables declared here take.
+     */
     public int totalOffsetSize(){      
-      return myDecls.size() * 4;
+      int size = 0;
+      for (DeclNode node : myDecls) {
+          if (node instanceof VarDeclNode) {
+              size += ((VarDeclNode)node).size();
+          }
+      }
+      return size;
     }
 
     public void codeGen(){
@@ -85,11 +133,12 @@ class DeclListNode extends ASTnode {
 
 
     public void nameAnalysis(SymTable symTab, SymTable globalTab, int initialOffset) {
+	int offset = initialOffset;
         for (int i = 0; i < myDecls.size(); i++) {
 	    DeclNode node = myDecls.get(i);
-	    int offset = -(i * 4);
             if (node instanceof VarDeclNode) {
-                ((VarDeclNode)node).nameAnalysis(symTab, globalTab, (offset + initialOffset));
+                ((VarDeclNode)node).nameAnalysis(symTab, globalTab, offset);
+                offset -= ((VarDeclNode)node).size();
             } else {
                 node.nameAnalysis(symTab, 0);
             }
@@ -117,6 +166,10 @@ class DeclListNode extends ASTnode {
         }
     }
 
+    public List<ASTnode> kids() {
+        return new ArrayList<ASTnode>(myDecls);
+    }
+
     // list of kids (DeclNodes)
     private List<DeclNode> myDecls;
 }
@@ -135,21 +188,34 @@ class FormalsListNode extends ASTnode {
      */
     public List<Type> nameAnalysis(SymTable symTab) {
         List<Type> typeList = new LinkedList<Type>();
+        int offset = 0;
         for (FormalDeclNode node : myFormals) {
-            SemSym sym = node.nameAnalysis(symTab, 0);
+            SemSym sym = node.nameAnalysis(symTab, offset);
             if (sym != null) {
                 typeList.add(sym.getType());
             }
+            offset -= 4;
         }
         return typeList;
     }
 
+    /**
+     * The caller pushes the actuals in order, so formal i is at -(i*4)
+     * from the frame pointer.
+     */
     public int totalFormalsOffsetSize(){
-      int totalFormalOffsetSize = 0;
-      for(FormalDeclNode node : myFormals){
-        totalFormalOffsetSize += node.getOffsetSize();
-      }
-      return totalFormalOffsetSize;
+      return myFormals.size() * 4;
+    }
+
+    /**
+     * Return the symbols of the formals, in order.
+     */
+    public List<SemSym> syms() {
+        List<SemSym> syms = new LinkedList<SemSym>();
+        for (FormalDeclNode node : myFormals) {
+            syms.add(node.sym());
+        }
+        return syms;
     }
 
     /**
@@ -170,6 +236,10 @@ class FormalsListNode extends ASTnode {
         }
     }
 
+    public List<ASTnode> kids() {
+        return new ArrayList<ASTnode>(myFormals);
+    }
+
     // list of kids (FormalDeclNodes)
     private List<FormalDeclNode> myFormals;
 }
@@ -185,10 +255,14 @@ class FnBodyNode extends ASTnode {
      * Given a symbol table symTab, do:
      * - process the declaration list
      * - process the statement list
+     * The locals go downwards from localsStart, and the locals of each
+     * block inside go below those of the blocks around it.  Blocks side
+     * by side start at the same offset, so their locals share the words.
      */
-    public void nameAnalysis(SymTable symTab) {
-        myDeclList.nameAnalysis(symTab, 0);
-        myStmtList.nameAnalysis(symTab, totalLocalsOffsetSize());
+    public void nameAnalysis(SymTable symTab, int localsStart) {
+        myDeclList.nameAnalysis(symTab, localsStart);
+        myStmtList.nameAnalysis(symTab,
+                                localsStart - myDeclList.totalOffsetSize());
     }
 
     /**
@@ -198,8 +272,12 @@ class FnBodyNode extends ASTnode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * Return the bytes of frame the locals take: those declared here and
+     * the most that the blocks inside take at once.
+     */
     public int totalLocalsOffsetSize(){
-      return myDeclList.length() * 4;
+      return myDeclList.totalOffsetSize() + myStmtList.localsSize();
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -208,9 +286,37 @@ class FnBodyNode extends ASTnode {
     }
 
     public void codeGen(){	
+	StmtNode last = myStmtList.last();
+	if (last instanceof ReturnStmtNode) {
+		//the epilogue follows right after this return
+		((ReturnStmtNode)last).setFallsThrough();
+	}
 	myStmtList.codeGen();
     }
 
+    /**
+     * liveness
+     * Walk the body backwards; live holds the variables live after it on
+     * entry and the variables live before it on exit.
+     */
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        myStmtList.bodyLiveness(live, ra);
+    }
+
+    /**
+     * inlineLiveness
+     * Like liveness, for a copy of the body inlined into a caller.  The
+     * statements are not top-level statements of the caller, so ra is
+     * not told where they start.
+     */
+    public void inlineLiveness(Set<SemSym> live, RegAlloc ra) {
+        myStmtList.liveness(live, ra);
+    }
+
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myDeclList, myStmtList);
+    }
+
     // 2 kids
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
@@ -231,6 +337,18 @@ class StmtListNode extends ASTnode {
         }
     }
 
+    /**
+     * Return the bytes of frame the blocks of these statements need: the
+     * blocks follow one another, so the most any one needs.
+     */
+    public int localsSize() {
+        int size = 0;
+        for (StmtNode node : myStmts) {
+            size = Math.max(size, node.localsSize());
+        }
+        return size;
+    }
+
     /**
      * typeCheck
      */
@@ -249,10 +367,46 @@ class StmtListNode extends ASTnode {
 
     public void codeGen() {
 	for(StmtNode node : myStmts) {
-	     node.codeGen();
+	     node.genSplits();
+	     node.genChecked();
 	}
     }
 
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        ListIterator<StmtNode> it = myStmts.listIterator(myStmts.size());
+        while (it.hasPrevious()) {
+            it.previous().liveness(live, ra);
+        }
+    }
+
+    /**
+     * Return the last statement in the list, or null if it is empty.
+     */
+    public StmtNode last() {
+        if (myStmts.isEmpty()) {
+            return null;
+        }
+        return myStmts.get(myStmts.size() - 1);
+    }
+
+    /**
+     * bodyLiveness
+     * Like liveness, for the top-level statements of a function body:
+     * also tells ra where each statement starts.
+     */
+    public void bodyLiveness(Set<SemSym> live, RegAlloc ra) {
+        ListIterator<StmtNode> it = myStmts.listIterator(myStmts.size());
+        while (it.hasPrevious()) {
+            StmtNode node = it.previous();
+            node.liveness(live, ra);
+            ra.boundary(node);
+        }
+    }
+
+    public List<ASTnode> kids() {
+        return new ArrayList<ASTnode>(myStmts);
+    }
+
     // list of kids (StmtNodes)
     private List<StmtNode> myStmts;
 }
@@ -306,6 +460,73 @@ class ExpListNode extends ASTnode {
 	}
     }
 
+    /**
+     * genActuals
+     * Put the values of the actuals of a call where the callee expects
+     * them: a word on the stack for each, the first at the highest
+     * address and the last at 4($sp), and the first four in $a0-$a3
+     * instead with -args=regs (see Codegen.argRegister).  With static
+     * temporaries the words are reserved first and each value stored
+     * into its word; otherwise they are pushed in order.
+     */
+    public void genActuals() {
+	int n = myExps.size();
+	if (!Options.staticTemps) {
+		codeGen();
+		for (int i = 0; i < n && Codegen.argRegister(i) != null; i++) {
+			Codegen.generateIndexed("lw", Codegen.argRegister(i), Codegen.SP,
+			                        Codegen.topOffset(n - 1 - i));
+		}
+		return;
+	}
+	//an actual that makes a call changes the argument registers, so the
+	//ones before it wait on the stack until it is done
+	int wait = 0;
+	for (int i = 0; i < n; i++) {
+		if (usesArgRegisters(myExps.get(i))) {
+			wait = i;
+		}
+	}
+	Codegen.genReserve(n);
+	int i = 0;
+	for (ExpNode exp : myExps) {
+		exp.codeGen();
+		String arg = Codegen.argRegister(i);
+		if (arg == null) {
+			Codegen.genPopStore(Codegen.SP, 4 * (n - i), "actual " + i);
+		} else if (i >= wait) {
+			Codegen.genPop(arg);
+		}
+		i++;
+	}
+	for (i = wait - 1; i >= 0; i--) {
+		if (Codegen.argRegister(i) != null) {
+			Codegen.genPop(Codegen.argRegister(i));
+		}
+	}
+    }
+
+    // may the code of the given expression change $a0-$a3?  Calls do,
+    // and so do string comparisons, which call the runtime
+    private static boolean usesArgRegisters(ASTnode exp) {
+	if (exp instanceof CallExpNode || exp instanceof EqualityExpNode) {
+		return true;
+	}
+	for (ASTnode kid : exp.kids()) {
+		if (usesArgRegisters(kid)) {
+			return true;
+		}
+	}
+	return false;
+    }
+
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        ListIterator<ExpNode> it = myExps.listIterator(myExps.size());
+        while (it.hasPrevious()) {
+            it.previous().liveness(live, ra);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<ExpNode> it = myExps.iterator();
         if (it.hasNext()) { // if there is at least one element
@@ -317,6 +538,10 @@ class ExpListNode extends ASTnode {
         }
     }
 
+    public List<ASTnode> kids() {
+        return new ArrayList<ASTnode>(myExps);
+    }
+
     // list of kids (ExpNodes)
     private List<ExpNode> myExps;
 }
@@ -400,11 +625,13 @@ class VarDeclNode extends DeclNode {
         if (!badDecl) {  // insert into symbol table
             try {
                 if (myType instanceof StructNode) {
+                    //offset is the top word of the variable's area; the
+                    //fields go upwards from its bottom
                     sym = new StructSym(structId);
+                    sym.setSymOffsetSize(offset - size() + 4);
                 }
                 else {
                     sym = new SemSym(myType.type(), offset);
-		    System.out.println(myId.name() + ": " + offset);
                 }
                 symTab.addDecl(name, sym);
                 myId.link(sym);
@@ -423,18 +650,47 @@ class VarDeclNode extends DeclNode {
     }
 
     public void codeGen() {
-	String offset = "4";
+	if (SmallData.contains(myId.sym())) {
+		return; //already written with the small data
+	}
 	Codegen.generate(".data");
 	Codegen.generate(".align 2");
 	Codegen.p.print("_" + myId.name() + ":");
-	Codegen.p.println("\t.space " + offset);
+	Codegen.p.println("\t.space " + size());
 	myId.sym().setIsGlobal(true);
     }
 
+    /**
+     * Return the bytes this variable takes in a frame or in the data
+     * segment: a word, or its struct's size rounded up to whole words.
+     */
+    public int size() {
+	if (!(myType instanceof StructNode)) {
+		return 4;
+	}
+	SemSym def = ((StructNode)myType).idNode().sym();
+	if (!(def instanceof StructDefSym)) {
+		return 4;
+	}
+	return Math.max(4, (((StructDefSym)def).getSize() + 3) / 4 * 4);
+    }
+
     public int getOffsetSize(){
-      int symOffset = myId.sym().getSymOffsetSize();
-      System.out.println(symOffset);
-      return symOffset;
+      return myId.sym().getSymOffsetSize();
+    }
+
+    /**
+     * Return the symbol for this variable (null if it was badly declared).
+     */
+    public SemSym sym() {
+        return myId.sym();
+    }
+
+    /**
+     * Return the name of this variable.
+     */
+    public String name() {
+        return myId.name();
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -445,6 +701,10 @@ class VarDeclNode extends DeclNode {
         p.println(";");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myId);
+    }
+
     // 3 kids
     private TypeNode myType;
     private IdNode myId;
@@ -513,7 +773,9 @@ class FnDeclNode extends DeclNode {
 	if (sym != null) {
             sym.addFormals(typeList);
         }
-        myBody.nameAnalysis(symTab); // process the function body
+        // locals start below the formals and the saved RA and FP
+        myBody.nameAnalysis(symTab, -(totalFormalsOffsetSize + 8));
+	myLocalsSize = myBody.totalLocalsOffsetSize();
 	int totalLocalsOffsetSize = computeOffsetFromLocals();
         sym.setLocalsOffsetSize(totalLocalsOffsetSize);
 
@@ -528,12 +790,26 @@ class FnDeclNode extends DeclNode {
         return null;
     }
 
+    /**
+     * Return the name of this function.
+     */
+    public String name() {
+        return myId.name();
+    }
+
+    /**
+     * Return the symbol for this function.
+     */
+    public SemSym sym() {
+        return myId.sym();
+    }
+
     private int computeOffsetFromFormals(){
       return myFormalsList.totalFormalsOffsetSize();
     }
 
     private int computeOffsetFromLocals(){
-      return myBody.totalLocalsOffsetSize();
+      return myLocalsSize;
     }
 
     private void genFnPreamble() {
@@ -548,42 +824,465 @@ class FnDeclNode extends DeclNode {
 
     }
 
-    private void genFnPrologue(int totalParamsOffset, int totalLocalsOffset) {
-	Codegen.genPush(Codegen.RA);
-	Codegen.genPush(Codegen.FP);
-	Codegen.generate("addu", Codegen.FP, Codegen.SP, totalParamsOffset + 8); //size of params + 8
-    	Codegen.generate("subu", Codegen.SP, Codegen.SP, totalLocalsOffset);
+    // Frame layout, relative to $fp:
+    //     formals            0 .. -(params - 4)
+    //     saved $ra          -params
+    //     saved $fp          -(params + 4)
+    //     locals             -(params + 8) ..
+    //     saved $s regs      below the locals
+    //     inlined frames     below those (see genInline and newSlot)
+    //     and temporaries
+    //     expression temps   the bottom tempsSize bytes, from 4($sp) up
+    //                        (see Codegen.genPush)
+    //
+    // A leaf function (one that makes no calls) never changes $ra, so
+    // its slot stays empty.  A leaf whose body never addresses its frame
+    // (everything is in registers) also keeps $fp: only the saved $s
+    // registers go on the stack, $sp-relative, and the epilogue pops
+    // them and the actuals, as the caller expects.
+    private void genFnPrologue(int totalParamsOffset, int totalLocalsOffset,
+                               int inlinedOffset, int tempsSize) {
+	List<String> saved = savedRegisters();
+	if (!myUsesFp) {
+		genFramelessPrologue(totalParamsOffset, saved, tempsSize);
+		return;
+	}
+	if (mySavesRa) {
+		Codegen.generateIndexed("sw", Codegen.RA, Codegen.SP, 0, "save $ra");
+		Codegen.generateIndexed("sw", Codegen.FP, Codegen.SP, -4, "save $fp");
+	} else {
+		Codegen.generateIndexed("sw", Codegen.FP, Codegen.SP, -4, "leaf: $ra stays put");
+	}
+	Codegen.generate("addu", Codegen.FP, Codegen.SP, totalParamsOffset);
+	Codegen.generate("subu", Codegen.SP, Codegen.SP,
+	                 8 + totalLocalsOffset + saved.size() * 4 + inlinedOffset +
+	                 tempsSize);
+	int offset = -(totalParamsOffset + 8 + totalLocalsOffset);
+	for (String reg : saved) {
+		Codegen.generateIndexed("sw", reg, Codegen.FP, offset, "save " + reg);
+		offset -= 4;
+	}
+	//formals that live in registers are loaded once, here, and those
+	//passed in registers are stored into their words
+	List<SemSym> formals = myFormalsList.syms();
+	for (int i = 0; i < formals.size(); i++) {
+		SemSym formal = formals.get(i);
+		String arg = Codegen.argRegister(i);
+		if (formal == null) {
+			continue;
+		}
+		if (formal.getRegister() != null && arg != null) {
+			Codegen.generate("move", formal.getRegister(), arg);
+		} else if (formal.getRegister() != null) {
+			Codegen.generateIndexed("lw", formal.getRegister(), Codegen.FP,
+			                        formal.getSymOffsetSize());
+		} else if (arg != null) {
+			Codegen.generateIndexed("sw", arg, Codegen.FP,
+			                        formal.getSymOffsetSize());
+		}
+	}
+	if (myEntryLabel != null) {
+		Codegen.genLabel(myEntryLabel, "self tail calls of " + myId.name());
+	}
+    }
+
+    private void genFramelessPrologue(int totalParamsOffset,
+                                      List<String> saved, int tempsSize) {
+	int size = saved.size() * 4 + tempsSize;
+	if (size > 0) {
+		Codegen.generate("subu", Codegen.SP, Codegen.SP, size);
+	}
+	//the saved registers go above the temporaries; they are stored
+	//before any formal is moved into one of them
+	for (int i = 0; i < saved.size(); i++) {
+		Codegen.generateIndexed("sw", saved.get(i), Codegen.SP,
+		                        tempsSize + 4 * (i + 1),
+		                        "save " + saved.get(i));
+	}
+	//the formals are still where the caller put them, now size bytes
+	//further from $sp; the body never reads those that are not in
+	//registers
+	List<SemSym> formals = myFormalsList.syms();
+	for (int i = 0; i < formals.size(); i++) {
+		SemSym formal = formals.get(i);
+		String arg = Codegen.argRegister(i);
+		if (formal == null || formal.getRegister() == null) {
+			continue;
+		}
+		if (arg != null) {
+			Codegen.generate("move", formal.getRegister(), arg);
+		} else {
+			Codegen.generateIndexed("lw", formal.getRegister(), Codegen.SP,
+			                        size + totalParamsOffset +
+			                        formal.getSymOffsetSize());
+		}
+	}
+	if (myEntryLabel != null) {
+		Codegen.genLabel(myEntryLabel, "self tail calls of " + myId.name());
+	}
     }
 
     private void genFnBody() {
 	myBody.codeGen();
     }
 
-    private void genFnEpilogue(int totalParamsOffset, int totalLocalsOffset) {
+    private void genFnEpilogue(int totalParamsOffset, int totalLocalsOffset,
+                               int tempsSize) {
+	 Codegen.genLabel(Codegen.fnExitLabel, "exit from " + myId.name());
 	 if(myId.name().equals("main")){
+		if (Options.instrument) {
+			Codegen.generate("jal", Profile.DUMP);
+		}
 		Codegen.generate("li", Codegen.V0, 10);
 		Codegen.generate("syscall");
+	 } else if (!myUsesFp) {
+		List<String> saved = savedRegisters();
+		for (int i = 0; i < saved.size(); i++) {
+			Codegen.generateIndexed("lw", saved.get(i), Codegen.SP,
+			                        tempsSize + 4 * (i + 1),
+			                        "restore " + saved.get(i));
+		}
+		int pop = tempsSize + saved.size() * 4 + totalParamsOffset;
+		if (pop > 0) {
+			Codegen.generate("addu", Codegen.SP, Codegen.SP, pop);
+		}
+		Codegen.generate("jr", Codegen.RA);
 	 } else {
-		Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, totalParamsOffset);
+		genRestore(totalParamsOffset, totalLocalsOffset);
+		if (mySavesRa) {
+			Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -totalParamsOffset);
+		}
 	 	Codegen.generate("move", Codegen.T0, Codegen.FP);
-	 	Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, (totalParamsOffset + 4));
+	 	Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -(totalParamsOffset + 4));
 	 	Codegen.generate("move", Codegen.SP, Codegen.T0);
 	 	Codegen.generate("jr", Codegen.RA);
 	 }	
  	 
     }
 
+    // restore the callee-saved registers
+    private void genRestore(int totalParamsOffset, int totalLocalsOffset) {
+	int offset = -(totalParamsOffset + 8 + totalLocalsOffset);
+	for (String reg : savedRegisters()) {
+		Codegen.generateIndexed("lw", reg, Codegen.FP, offset, "restore " + reg);
+		offset -= 4;
+	}
+    }
+
+    /**
+     * Run the register allocator over this function, if enabled.
+     */
+    private void allocateRegisters() {
+	myRegAlloc = RegAlloc.create(myId.name());
+	if (myRegAlloc == null) {
+		return;
+	}
+	Set<SemSym> live = new HashSet<SemSym>();
+	myBody.liveness(live, myRegAlloc);
+	myRegAlloc.entry(myFormalsList.syms(), live);
+	myRegAlloc.allocate();
+    }
+
+    /**
+     * Return the callee-saved registers the prologue must save.  main
+     * never returns, so it saves nothing.
+     */
+    private List<String> savedRegisters() {
+	if (myRegAlloc == null || myId.name().equals("main")) {
+		return new LinkedList<String>();
+	}
+	return myRegAlloc.calleeSaved();
+    }
+
     public void codeGen(){
+	if (Inliner.isDropped(this)) {
+		return;
+	}
 	int totalParamsOffset = computeOffsetFromFormals();
 	int totalLocalsOffset = computeOffsetFromLocals();
+	current = this;
+	myEntryLabel = null;
+	mySelfTailCalls = 0;
+	myTailCalls = 0;
+	long start = System.nanoTime();
+	allocateRegisters();
+	int inRegisters = 0;
+	for (SemSym sym : Inliner.frameSyms(this)) {
+		if (sym.getRegister() != null) {
+			inRegisters++;
+		}
+	}
+	PassManager.record("regalloc", start, inRegisters);
+	if (Options.shareSlots) {
+		start = System.nanoTime();
+		int byBlock = totalLocalsOffset;
+		myLocalsSize = FrameLayout.layout(this, -(totalParamsOffset + 8));
+		totalLocalsOffset = myLocalsSize;
+		PassManager.record("frame", start, byBlock - totalLocalsOffset);
+		if (totalLocalsOffset != byBlock) {
+			Stats.report("frame " + myId.name() + ": locals take " +
+			             totalLocalsOffset + " bytes, " + byBlock +
+			             " by block");
+		}
+	}
+	Codegen.fnExitLabel = Codegen.nextLabel();
+	inlineTop = -(totalParamsOffset + 8 + totalLocalsOffset +
+	              savedRegisters().size() * 4);
+	inlineBottom = inlineTop;
+	//the body goes first, into a buffer, so that the prologue knows
+	//how much room the inlined frames need
+	PrintWriter out = Codegen.p;
+	StringWriter body = new StringWriter();
+	Codegen.p = new PrintWriter(body);
+	int calls = Codegen.calls();
+	int fpRefs = Codegen.fpRefs();
+	myColdCode = new StringWriter();
+	int slots = slotMark();
+	for (SemSym temp : Gvn.temps(this)) {
+		temp.setSymOffsetSize(newSlot());
+	}
+	Codegen.startFrame();
+	Profile.count(this, 0);
+	genFnBody();
+	releaseSlots(slots);
+	int tempsSize = Codegen.tempsSize();
+	Codegen.p.flush();
+	Codegen.p = out;
+	//now the shape of the frame is known
+	boolean leaf = Options.leafFrames && !myId.name().equals("main") &&
+	               Codegen.calls() == calls && myTailCalls == 0;
+	mySavesRa = !leaf;
+	myUsesFp = !leaf || Codegen.fpRefs() != fpRefs;
+	if (leaf) {
+		Stats.report("frame " + myId.name() + ": leaf, " +
+		             (myUsesFp ? "$ra not saved" : "no $ra or $fp"));
+	}
+	//the whole function is buffered again for the scheduler and the
+	//delay slot filler
+	StringWriter fn = new StringWriter();
+	Codegen.p = new PrintWriter(fn);
 	genFnPreamble();
 	Codegen.p.println();
-	genFnPrologue(totalParamsOffset, totalLocalsOffset);
+	genFnPrologue(totalParamsOffset, totalLocalsOffset,
+	              inlineTop - inlineBottom, tempsSize);
 	Codegen.p.println();
-	genFnBody();
+	Codegen.p.print(body.toString());
 	Codegen.p.println();
-	genFnEpilogue(totalParamsOffset, totalLocalsOffset);
+	genFnEpilogue(totalParamsOffset, totalLocalsOffset, tempsSize);
 	Codegen.p.println();
+	Codegen.p.print(myColdCode.toString());
+	Codegen.p.flush();
+	Codegen.p = out;
+	start = System.nanoTime();
+	int reordered = Scheduler.reordered();
+	String code = Scheduler.schedule(myId.name(), fn.toString());
+	PassManager.record("schedule", start, Scheduler.reordered() - reordered);
+	start = System.nanoTime();
+	int filled = DelaySlots.filled();
+	Codegen.p.print(DelaySlots.fill(myId.name(), code));
+	PassManager.record("delay", start, DelaySlots.filled() - filled);
+	if (mySelfTailCalls + myTailCalls > 0) {
+		Stats.report("tailcall " + myId.name() + ": " + mySelfTailCalls +
+		             " self, " + myTailCalls + " general");
+	}
+	current = null;
+    }
+
+    /**
+     * Return the function whose return statements may make tail calls
+     * right now, or null: main never returns, and returns inside an
+     * inlined body are not returns from the function being generated.
+     */
+    public static FnDeclNode current() {
+	return current;
+    }
+
+    public static FnDeclNode tailContext() {
+	if (current == null || inlineDepth > 0 || !Options.tailCalls ||
+	    current.name().equals("main")) {
+		return null;
+	}
+	return current;
+    }
+
+    /**
+     * Add the given code to the end of the function being generated,
+     * after its epilogue, out of the way of the code that runs.  It must
+     * be entered by a jump and leave by one.
+     */
+    public static void addColdCode(String code) {
+	current.myColdCode.write(code);
+    }
+
+    /**
+     * Return a free word of the area below the saved registers, for a
+     * temporary of the code being generated.
+     */
+    public static int newSlot() {
+	int offset = inlineTop;
+	inlineTop -= 4;
+	inlineBottom = Math.min(inlineBottom, inlineTop);
+	return offset;
+    }
+
+    /**
+     * slotMark and releaseSlots bracket code that takes temporaries with
+     * newSlot: the slots are free again once that code is generated.
+     */
+    public static int slotMark() {
+	return inlineTop;
+    }
+
+    public static void releaseSlots(int mark) {
+	inlineTop = mark;
+    }
+
+    /**
+     * genTailCall
+     * Generate "return call;" as a jump.  A call to this function stores
+     * the actuals into the formals and jumps back to just after the
+     * prologue.  Any other call reuses this frame: the callee-saved
+     * registers, $ra and the caller's $fp are restored as the epilogue
+     * would, the actuals are moved to where this function's caller put
+     * ours, and the callee is entered with a plain jump, so it returns
+     * straight to our caller.
+     */
+    public void genTailCall(CallExpNode call) {
+	ExpListNode actuals = call.args();
+	if (call.callee() == sym()) {
+		actuals.codeGen(); //actuals pushed in order
+
+		mySelfTailCalls++;
+		if (myEntryLabel == null) {
+			myEntryLabel = Codegen.nextLabel();
+		}
+		List<SemSym> formals = myFormalsList.syms();
+		for (int i = formals.size() - 1; i >= 0; i--) {
+			SemSym formal = formals.get(i);
+			if (formal.getRegister() != null) {
+				Codegen.genPop(formal.getRegister());
+			} else {
+				Codegen.genPopStore(Codegen.FP, formal.getSymOffsetSize(), "");
+			}
+		}
+		Codegen.generate("j", myEntryLabel);
+		return;
+	}
+	myTailCalls++;
+	actuals.genActuals(); //as for a call
+	int totalParamsOffset = computeOffsetFromFormals();
+	int n = actuals.size();
+	genRestore(totalParamsOffset, computeOffsetFromLocals());
+	Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -totalParamsOffset);
+	Codegen.generateIndexed("lw", Codegen.V1, Codegen.FP, -(totalParamsOffset + 4));
+	//the actuals sit below this whole frame, so copying them upwards,
+	//first one first, never overwrites one not yet copied
+	for (int i = 0; i < n; i++) {
+		if (Codegen.argRegister(i) != null) {
+			continue; //already in its register
+		}
+		Codegen.generateIndexed("lw", Codegen.T0, Codegen.SP, 4 * (n - i));
+		Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP, -4 * i);
+	}
+	Codegen.generate("subu", Codegen.SP, Codegen.FP, 4 * n);
+	Codegen.generate("move", Codegen.FP, Codegen.V1);
+	Codegen.generateWithComment("j", "tail call", "_" + call.calleeName());
+	Codegen.calleePopped(n); //as for a call
+    }
+
+    /**
+     * tailLiveness
+     * The liveness walk of "return call;" when genTailCall generates it.
+     * A self tail call defines the formals and goes back to the start of
+     * the body, where at most the formals are live.  genTailCall pops the
+     * last formal first, so walking backwards the first formal is
+     * defined first.
+     */
+    public void tailLiveness(CallExpNode call, Set<SemSym> live, RegAlloc ra) {
+        live.clear();
+        if (call.callee() != sym()) {
+            call.liveness(live, ra);
+            return;
+        }
+        List<SemSym> formals = myFormalsList.syms();
+        for (SemSym formal : formals) {
+            if (RegAlloc.isCandidate(formal)) {
+                live.add(formal);
+            }
+        }
+        for (int i = 0; i < formals.size(); i++) {
+            ra.def(formals.get(i), live, null);
+        }
+        call.args().liveness(live, ra);
+    }
+
+    /**
+     * genInline
+     * Expand a call to this function with the given actuals in place.
+     * The formals and locals are moved into a fresh area of the caller's
+     * frame while the body is generated, the actuals are stored into the
+     * formals, and return statements jump to the end of the expansion
+     * with the value in $v0, as they would for a real call.  The caller's
+     * register allocator saw the body through inlineLiveness, so the
+     * formals and locals may also be in registers.
+     */
+    public void genInline(ExpListNode actuals) {
+	actuals.codeGen(); //actuals pushed in order, as for a call
+	List<SemSym> formals = myFormalsList.syms();
+	List<SemSym> syms = Inliner.frameSyms(this);
+	int[] offsets = new int[syms.size()];
+	int base = slotMark();
+	for (int i = 0; i < syms.size(); i++) {
+		SemSym sym = syms.get(i);
+		offsets[i] = sym.getSymOffsetSize();
+		sym.setSymOffsetSize(newSlot());
+	}
+	for (SemSym temp : Gvn.temps(this)) {
+		temp.setSymOffsetSize(newSlot());
+	}
+	inlineDepth++;
+	Stats.report("inline " + myId.name() + " into " + current.name());
+	for (int i = formals.size() - 1; i >= 0; i--) {
+		SemSym formal = formals.get(i);
+		if (formal.getRegister() != null) {
+			Codegen.genPop(formal.getRegister());
+		} else {
+			Codegen.genPopStore(Codegen.FP, formal.getSymOffsetSize(),
+			                    "inlined " + myId.name());
+		}
+	}
+	String exitLabel = Codegen.fnExitLabel;
+	Codegen.fnExitLabel = Codegen.nextLabel();
+	Profile.count(this, 0);
+	genFnBody();
+	Codegen.genLabel(Codegen.fnExitLabel, "end of inlined " + myId.name());
+	Codegen.fnExitLabel = exitLabel;
+	for (int i = 0; i < syms.size(); i++) {
+		syms.get(i).setSymOffsetSize(offsets[i]);
+	}
+	releaseSlots(base);
+	inlineDepth--;
+    }
+
+    /**
+     * inlineLiveness
+     * The liveness walk of a call site where this function is inlined:
+     * what is live after the call is live after each return, and the
+     * formals are defined before the body.  genInline pops the last
+     * formal first, so walking backwards the first formal is defined
+     * first: a formal the body never reads still interferes with the
+     * formals popped after it.
+     */
+    public void inlineLiveness(Set<SemSym> live, RegAlloc ra) {
+        ra.pushReturnLive(new HashSet<SemSym>(live));
+        inlineDepth++;
+        myBody.inlineLiveness(live, ra);
+        inlineDepth--;
+        ra.popReturnLive();
+        List<SemSym> formals = myFormalsList.syms();
+        for (int i = 0; i < formals.size(); i++) {
+            ra.def(formals.get(i), live, null);
+        }
     }
 
     /**
@@ -605,11 +1304,32 @@ class FnDeclNode extends DeclNode {
         p.println("}\n");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myId, myFormalsList, myBody);
+    }
+
     // 4 kids
     private TypeNode myType;
     private IdNode myId;
     private FormalsListNode myFormalsList;
     private FnBodyNode myBody;
+
+    private RegAlloc myRegAlloc;  // null when everything lives in memory
+    private boolean mySavesRa;    // false in leaf functions
+    private boolean myUsesFp;     // false if the body never uses the frame
+    private String myEntryLabel;  // target of self tail calls, if any
+    private int mySelfTailCalls;
+    private int myTailCalls;
+    private StringWriter myColdCode;  // code placed after the epilogue
+    private int myLocalsSize;     // bytes of the locals (see FrameLayout)
+
+    // the function being generated, the top and lowest point of the area
+    // of its frame used by inlined calls and temporaries, and how deeply
+    // inlined the code being generated (or walked for liveness) is
+    private static FnDeclNode current;
+    private static int inlineTop;
+    private static int inlineBottom;
+    private static int inlineDepth = 0;
 }
 
 class FormalDeclNode extends DeclNode {
@@ -644,7 +1364,7 @@ class FormalDeclNode extends DeclNode {
 
         if (!badDecl) {  // insert into symbol table
             try {
-                sym = new SemSym(myType.type(), 4);
+                sym = new SemSym(myType.type(), initialOffset);
                 symTab.addDecl(name, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
@@ -671,6 +1391,17 @@ class FormalDeclNode extends DeclNode {
       return myId.sym().getSymOffsetSize();
     }
 
+    /**
+     * Return the symbol for this formal (null if it was badly declared).
+     */
+    public SemSym sym() {
+        return myId.sym();
+    }
+
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myId);
+    }
+
     // 2 kids
     private TypeNode myType;
     private IdNode myId;
@@ -710,6 +1441,7 @@ class StructDeclNode extends DeclNode {
         if (!badDecl) {
             try {   // add entry to symbol table
                 StructDefSym sym = new StructDefSym(structSymTab);
+                layOut(sym);
                 symTab.addDecl(name, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
@@ -726,6 +1458,75 @@ class StructDeclNode extends DeclNode {
         return null;
     }
 
+    /**
+     * layOut
+     * Give each field its byte offset in the struct.  An int takes 4
+     * bytes on a word boundary, a bool a single byte, and a nested struct
+     * its own size on its own alignment.  Nothing can see the order of
+     * the fields in memory, so the word-aligned fields whose size is a
+     * whole number of words go first, then the other word-aligned ones,
+     * then the bytes: a struct only needs padding after a nested struct
+     * that ends in bytes.
+     */
+    private void layOut(StructDefSym def) {
+        List<SemSym> fields = new ArrayList<SemSym>();
+        for (ASTnode node : myDeclList.kids()) {
+            SemSym sym = ((VarDeclNode)node).sym();
+            if (sym != null) {
+                fields.add(sym);
+            }
+        }
+        Collections.sort(fields, new Comparator<SemSym>() {
+            public int compare(SemSym a, SemSym b) {
+                return rank(a) - rank(b);
+            }
+        });
+        int size = 0;
+        int alignment = 1;
+        String report = "";
+        for (SemSym field : fields) {
+            int align = alignmentOf(field);
+            size = (size + align - 1) / align * align;
+            field.setSymOffsetSize(size);
+            size += sizeOf(field);
+            alignment = Math.max(alignment, align);
+        }
+        def.setLayout(size, alignment);
+        for (ASTnode node : myDeclList.kids()) {
+            VarDeclNode decl = (VarDeclNode)node;
+            if (decl.sym() != null) {
+                report += " " + decl.name() + "@" + decl.sym().getSymOffsetSize();
+            }
+        }
+        Stats.report("struct " + myId.name() + ": " + size + " bytes," + report);
+    }
+
+    private static int sizeOf(SemSym field) {
+        if (field instanceof StructSym) {
+            return structOf(field).getSize();
+        }
+        return field.getType().isBoolType() ? 1 : 4;
+    }
+
+    private static int alignmentOf(SemSym field) {
+        if (field instanceof StructSym) {
+            return structOf(field).getAlignment();
+        }
+        return field.getType().isBoolType() ? 1 : 4;
+    }
+
+    // 0 for whole words, 1 for other word-aligned fields, 2 for bytes
+    private static int rank(SemSym field) {
+        if (alignmentOf(field) == 1) {
+            return 2;
+        }
+        return sizeOf(field) % 4 == 0 ? 0 : 1;
+    }
+
+    private static StructDefSym structOf(SemSym field) {
+        return (StructDefSym)((StructSym)field).getStructType().sym();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("struct ");
@@ -832,6 +1633,113 @@ abstract class StmtNode extends ASTnode {
     abstract public void nameAnalysis(SymTable symTab, int currentOffset);
     abstract public void typeCheck(Type retType);
     abstract public void codeGen();
+
+    /**
+     * liveness
+     * Given the set of variables live after this statement, update it to
+     * the set live before it, reporting uses, defs and calls to ra.
+     */
+    abstract public void liveness(Set<SemSym> live, RegAlloc ra);
+
+    /**
+     * addSplit
+     * The register allocator splits sym here: from this statement on it
+     * lives in its stack slot instead of its register.
+     */
+    public void addSplit(SemSym sym) {
+        if (mySplits == null) {
+            mySplits = new LinkedList<SemSym>();
+        }
+        mySplits.add(sym);
+    }
+
+    /**
+     * Return the variables split here (see addSplit).
+     */
+    public List<SemSym> splits() {
+        if (mySplits == null) {
+            return new LinkedList<SemSym>();
+        }
+        return mySplits;
+    }
+
+    /**
+     * Return the bytes of frame the locals of the blocks of this
+     * statement need, nested blocks included.
+     */
+    public int localsSize() {
+        return 0;
+    }
+
+    /**
+     * genChecked
+     * Generate this statement and check that it leaves $sp where it
+     * found it: whatever its code pushes must be popped again (the
+     * actuals of a call by the callee).  A statement that leaks or eats
+     * stack is a bug in the code generator, so it is an internal error,
+     * reported at the statement's first expression.
+     */
+    public void genChecked() {
+	int depth = Codegen.depth();
+	codeGen();
+	int leaked = Codegen.depth() - depth;
+	if (leaked != 0) {
+		StringWriter text = new StringWriter();
+		unparse(new PrintWriter(text), 0);
+		int line = 0;
+		int col = 0;
+		for (ASTnode node : walk()) {
+			if (node instanceof ExpNode) {
+				line = ((ExpNode)node).lineNum();
+				col = ((ExpNode)node).charNum();
+				break;
+			}
+		}
+		ErrMsg.fatal(line, col, "stack check: \"" + text.toString().trim() +
+		             "\" in " + FnDeclNode.current().name() +
+		             " moves $sp by " + (-4 * leaked) + " bytes");
+	}
+    }
+
+    /**
+     * genSplits
+     * Store the variables split here back to their stack slots.
+     */
+    public void genSplits() {
+	if (mySplits == null) {
+		return;
+	}
+	for (SemSym sym : mySplits) {
+		if (sym.getRegister() == null) {
+			continue; //already in memory, e.g. inside an inlined copy
+		}
+		Codegen.generateIndexed("sw", sym.getRegister(), Codegen.FP,
+		                        sym.getSymOffsetSize());
+		sym.setRegister(null);
+	}
+    }
+
+    /**
+     * genOutOfLine
+     * Generate the given statements, the given edge of this branch, after
+     * the end of the function: they start at label and jump back to back.
+     */
+    protected void genOutOfLine(String label, StmtListNode stmts, int edge,
+                                String back) {
+	PrintWriter out = Codegen.p;
+	StringWriter cold = new StringWriter();
+	Codegen.p = new PrintWriter(cold);
+	Codegen.genLabel(label, "cold: " + Profile.key(this));
+	Profile.count(this, edge);
+	stmts.codeGen();
+	Codegen.generate("j", back);
+	Codegen.p.println();
+	Codegen.p.flush();
+	Codegen.p = out;
+	FnDeclNode.addColdCode(cold.toString());
+    }
+
+    private List<SemSym> mySplits;
 }
 
 class AssignStmtNode extends StmtNode {
@@ -855,7 +1763,11 @@ class AssignStmtNode extends StmtNode {
     }
 
     public void codeGen(){
-	myAssign.codeGen();
+	myAssign.genEffect();
+    }
+
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        myAssign.liveness(live, ra);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -864,6 +1776,10 @@ class AssignStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myAssign);
+    }
+
     // 1 kid
     private AssignNode myAssign;
 }
@@ -895,6 +1811,20 @@ class PostIncStmtNode extends StmtNode {
 
 
     public void codeGen(){
+	if (myExp instanceof DotAccessExpNode) {
+		//a field: update it in place
+		DotAccessExpNode field = (DotAccessExpNode)myExp;
+		field.genLoad(Codegen.T0);
+		Codegen.generate("addi", Codegen.T0, Codegen.T0, 1);
+		field.genStore(Codegen.T0);
+		return;
+	}
+	String reg = ((IdNode)myExp).sym().getRegister();
+	if (reg != null) {
+		//variable lives in a register: update it in place
+		Codegen.generate("addi", reg, reg, 1);
+		return;
+	}
 	//1. Eval the RHS expression, leaving the value on the stack
 	myExp.codeGen(); //result is pushed onto top of stack
 	//2. Push the address of the LHS ID onto the stack
@@ -904,8 +1834,14 @@ class PostIncStmtNode extends StmtNode {
 	Codegen.genPop(Codegen.T0); //place value to store into T0
 	Codegen.generate("addi", Codegen.T0, Codegen.T0, 1);
 	Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0); //
-	//4. Leave a copy of the value on the stack
-	Codegen.genPush(Codegen.T0);
+    }
+
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        if (myExp instanceof IdNode) {
+            SemSym sym = ((IdNode)myExp).sym();
+            ra.def(sym, live, null);
+            ra.use(sym, live);
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -914,6 +1850,10 @@ class PostIncStmtNode extends StmtNode {
         p.println("++;");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myExp);
+    }
+
     // 1 kid
     private ExpNode myExp;
 }
@@ -945,6 +1885,20 @@ class PostDecStmtNode extends StmtNode {
 
 
     public void codeGen(){
+	if (myExp instanceof DotAccessExpNode) {
+		//a field: update it in place
+		DotAccessExpNode field = (DotAccessExpNode)myExp;
+		field.genLoad(Codegen.T0);
+		Codegen.generate("subi", Codegen.T0, Codegen.T0, 1);
+		field.genStore(Codegen.T0);
+		return;
+	}
+	String reg = ((IdNode)myExp).sym().getRegister();
+	if (reg != null) {
+		//variable lives in a register: update it in place
+		Codegen.generate("subi", reg, reg, 1);
+		return;
+	}
 	//1. Eval the RHS expression, leaving the value on the stack
 	myExp.codeGen(); //result is pushed onto top of stack
 	//2. Push the address of the LHS ID onto the stack
@@ -954,8 +1908,14 @@ class PostDecStmtNode extends StmtNode {
 	Codegen.genPop(Codegen.T0); //place value to store into T0
 	Codegen.generate("subi", Codegen.T0, Codegen.T0, 1);
 	Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0); //
-	//4. Leave a copy of the value on the stack
-	Codegen.genPush(Codegen.T0);
+    }
+
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        if (myExp instanceof IdNode) {
+            SemSym sym = ((IdNode)myExp).sym();
+            ra.def(sym, live, null);
+            ra.use(sym, live);
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -964,6 +1924,10 @@ class PostDecStmtNode extends StmtNode {
         p.println("--;");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myExp);
+    }
+
     // 1 kid
     private ExpNode myExp;
 }
@@ -1007,11 +1971,25 @@ class ReadStmtNode extends StmtNode {
     public void codeGen(){
 	Codegen.generate("li", Codegen.V0, 5); 
 	Codegen.generate("syscall"); //says to do this in the notes
+	if (myExp instanceof IdNode) {
+		((IdNode)myExp).genStore(Codegen.V0);
+		return;
+	}
+	if (myExp instanceof DotAccessExpNode) {
+		((DotAccessExpNode)myExp).genStore(Codegen.V0);
+		return;
+	}
 	myExp.genAddr(); //addr of Expr placed on top of stack
 	Codegen.genPop(Codegen.T0);
 	Codegen.generateIndexed("sw", Codegen.V0, Codegen.T0, 0); //Value from read should be in V0
     }
 
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        if (myExp instanceof IdNode) {
+            ra.def(((IdNode)myExp).sym(), live, null);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("cin >> ");
@@ -1019,6 +1997,10 @@ class ReadStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myExp);
+    }
+
     // 1 kid (actually can only be an IdNode or an ArrayExpNode)
     private ExpNode myExp;
 }
@@ -1081,6 +2063,10 @@ class WriteStmtNode extends StmtNode {
 
     }
 
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        myExp.liveness(live, ra);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("cout << ");
@@ -1088,6 +2074,10 @@ class WriteStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myExp);
+    }
+
     // 1 kid
     private ExpNode myExp;
 }
@@ -1111,7 +2101,8 @@ class IfStmtNode extends StmtNode {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
         myDeclList.nameAnalysis(symTab, currentOffset);
-        myStmtList.nameAnalysis(symTab, currentOffset);
+        myStmtList.nameAnalysis(symTab,
+                                currentOffset - myDeclList.totalOffsetSize());
         try {
             symTab.removeScope();
         } catch (EmptySymTableException ex) {
@@ -1121,6 +2112,15 @@ class IfStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * localsSize
+     * The locals of the block go below the current ones, and its inner
+     * blocks below those.
+     */
+    public int localsSize() {
+        return myDeclList.totalOffsetSize() + myStmtList.localsSize();
+    }
+
      /**
      * typeCheck
      */
@@ -1138,16 +2138,34 @@ class IfStmtNode extends StmtNode {
 
     public void codeGen(){
 	String labelStr = Codegen.nextLabel();
-	myExp.codeGen(); //result goes to T0
-	Codegen.generate("li", Codegen.T1, 0);
-	Codegen.generate("beq", Codegen.T0, Codegen.T1, labelStr);
+	Profile.count(this, 0);
+	long[] counts = Profile.counts(this);
+	if (counts != null && counts[0] > 0 && counts[1] == 0) {
+		//the body never ran: keep it out of the straight-line path
+		String coldStr = Codegen.nextLabel();
+		Stats.report("profile " + Profile.key(this) +
+		             ": then part never ran, moved out of line");
+		myExp.genCond(coldStr, true);
+		Codegen.genLabel(labelStr);
+		genOutOfLine(coldStr, myStmtList, 1, labelStr);
+		return;
+	}
+	myExp.genCond(labelStr, false); //skip the body if false
         //myDeclList.codeGen();
 
+	Profile.count(this, 1);
 	myStmtList.codeGen();
 	Codegen.genLabel(labelStr);
 
     }
 
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        Set<SemSym> thenLive = new HashSet<SemSym>(live);
+        myStmtList.liveness(thenLive, ra);
+        live.addAll(thenLive);
+        myExp.liveness(live, ra);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("if (");
@@ -1159,6 +2177,10 @@ class IfStmtNode extends StmtNode {
         p.println("}");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myExp, myDeclList, myStmtList);
+    }
+
     // e kids
     private ExpNode myExp;
     private DeclListNode myDeclList;
@@ -1191,7 +2213,8 @@ class IfElseStmtNode extends StmtNode {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
         myThenDeclList.nameAnalysis(symTab, currentOffset);
-        myThenStmtList.nameAnalysis(symTab, currentOffset);
+        myThenStmtList.nameAnalysis(symTab, currentOffset -
+                                    myThenDeclList.totalOffsetSize());
         try {
             symTab.removeScope();
         } catch (EmptySymTableException ex) {
@@ -1201,7 +2224,8 @@ class IfElseStmtNode extends StmtNode {
         }
         symTab.addScope();
         myElseDeclList.nameAnalysis(symTab, currentOffset);
-        myElseStmtList.nameAnalysis(symTab, currentOffset);
+        myElseStmtList.nameAnalysis(symTab, currentOffset -
+                                    myElseDeclList.totalOffsetSize());
         try {
             symTab.removeScope();
         } catch (EmptySymTableException ex) {
@@ -1211,6 +2235,17 @@ class IfElseStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * localsSize
+     * The then and else blocks never run together, so they share words.
+     */
+    public int localsSize() {
+        return Math.max(myThenDeclList.totalOffsetSize() +
+                        myThenStmtList.localsSize(),
+                        myElseDeclList.totalOffsetSize() +
+                        myElseStmtList.localsSize());
+    }
+
     /**
      * typeCheck
      */
@@ -1230,18 +2265,41 @@ class IfElseStmtNode extends StmtNode {
     public void codeGen(){
 	String labelStr1 = Codegen.nextLabel();
 	String labelStr2 = Codegen.nextLabel();
-	myExp.codeGen();
-	Codegen.generate("li", Codegen.T1, 0);
-	Codegen.generate("beq", Codegen.T0, Codegen.T1, labelStr1);
-        myThenDeclList.codeGen();
+	long[] counts = Profile.counts(this);
+	if (counts != null && counts[0] != counts[1]) {
+		//the less frequent part goes out of line, so the other falls
+		//through from the test to the end with no jump
+		boolean thenHot = counts[0] > counts[1];
+		Stats.report("profile " + Profile.key(this) + ": " +
+		             (thenHot ? "else" : "then") + " part (" +
+		             Math.min(counts[0], counts[1]) + " of " +
+		             (counts[0] + counts[1]) + ") moved out of line");
+		myExp.genCond(labelStr1, !thenHot); //to the cold part
+		Profile.count(this, thenHot ? 0 : 1);
+		(thenHot ? myThenStmtList : myElseStmtList).codeGen();
+		Codegen.genLabel(labelStr2);
+		genOutOfLine(labelStr1, thenHot ? myElseStmtList : myThenStmtList,
+		             thenHot ? 1 : 0, labelStr2);
+		return;
+	}
+	myExp.genCond(labelStr1, false); //to the else part if false
+	Profile.count(this, 0);
 	myThenStmtList.codeGen();
 	Codegen.generate("j", labelStr2);
 	Codegen.genLabel(labelStr1);
-	myElseDeclList.codeGen();
+	Profile.count(this, 1);
 	myElseStmtList.codeGen();
 	Codegen.genLabel(labelStr2);
     }
 
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        Set<SemSym> thenLive = new HashSet<SemSym>(live);
+        myThenStmtList.liveness(thenLive, ra);
+        myElseStmtList.liveness(live, ra);
+        live.addAll(thenLive);
+        myExp.liveness(live, ra);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("if (");
@@ -1259,6 +2317,10 @@ class IfElseStmtNode extends StmtNode {
         p.println("}");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myExp, myThenDeclList, myThenStmtList, myElseDeclList, myElseStmtList);
+    }
+
     // 5 kids
     private ExpNode myExp;
     private DeclListNode myThenDeclList;
@@ -1286,7 +2348,8 @@ class WhileStmtNode extends StmtNode {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
         myDeclList.nameAnalysis(symTab, currentOffset);
-        myStmtList.nameAnalysis(symTab, currentOffset);
+        myStmtList.nameAnalysis(symTab,
+                                currentOffset - myDeclList.totalOffsetSize());
         try {
             symTab.removeScope();
         } catch (EmptySymTableException ex) {
@@ -1296,6 +2359,15 @@ class WhileStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * localsSize
+     * The locals of the block go below the current ones, and its inner
+     * blocks below those.
+     */
+    public int localsSize() {
+        return myDeclList.totalOffsetSize() + myStmtList.localsSize();
+    }
+
     /**
      * typeCheck
      */
@@ -1311,16 +2383,114 @@ class WhileStmtNode extends StmtNode {
     }
 
     public void codeGen(){
+	Profile.count(this, 0);
+	List<ExpNode> hoisted = hoisted();
+	int slots = FnDeclNode.slotMark();
+	//preheader: compute the loop invariants into their temporaries
+	for (int i = 0; i < hoisted.size(); i++) {
+		SemSym temp = myTemps.get(i);
+		temp.setSymOffsetSize(FnDeclNode.newSlot());
+		hoisted.get(i).codeGen();
+		if (temp.getRegister() != null) {
+			Codegen.genPop(temp.getRegister());
+		} else {
+			Codegen.genPop(Codegen.T0);
+			Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP,
+			                        temp.getSymOffsetSize(), "hoisted");
+		}
+		hoisted.get(i).setValueIn(temp);
+	}
 	String labelStr1 = Codegen.nextLabel();
 	String labelStr2 = Codegen.nextLabel();
-	Codegen.genLabel(labelStr1);
-	myExp.codeGen(); // result is placed in T0
-	Codegen.generate("li", Codegen.T1, 0);
-	Codegen.generate("beq", Codegen.T0, Codegen.T1, labelStr2);
-	myDeclList.codeGen();
-	myStmtList.codeGen();
-	Codegen.generate("j", labelStr1);
+	if (Options.rotateLoops && !Profile.neverLoops(this)) {
+		//guarded do-while: one test on entry, then one at the bottom
+		//of each iteration, so an iteration takes a single branch
+		myExp.genCond(labelStr2, false); //skip the loop if false
+		Codegen.genLabel(labelStr1);
+		Profile.count(this, 1);
+		myStmtList.codeGen();
+		myExp.genCond(labelStr1, true); //repeat while true
+	} else {
+		Codegen.genLabel(labelStr1);
+		myExp.genCond(labelStr2, false); //leave the loop if false
+		Profile.count(this, 1);
+		myStmtList.codeGen();
+		Codegen.generate("j", labelStr1);
+	}
 	Codegen.genLabel(labelStr2);
+	//the same loop is generated again wherever its function is inlined
+	for (ExpNode exp : hoisted) {
+		exp.setValueIn(null);
+	}
+	FnDeclNode.releaseSlots(slots);
+    }
+
+    /**
+     * Return the loop-invariant expressions computed before the loop,
+     * finding them (and making their temporaries) the first time.
+     */
+    public List<ExpNode> hoisted() {
+        if (myHoisted == null && Profile.neverLoops(this)) {
+            //hoisting would only add work on the way past the loop
+            Stats.report("profile " + Profile.key(this) +
+                         ": body never ran, not rotated or hoisted from");
+            myHoisted = new ArrayList<ExpNode>();
+        }
+        if (myHoisted == null) {
+            myHoisted = Hoister.invariants(myExp, myStmtList);
+            myTemps = new ArrayList<SemSym>();
+            for (ExpNode exp : myHoisted) {
+                myTemps.add(new SemSym(exp.typeCheck(), 0));
+            }
+        }
+        return myHoisted;
+    }
+
+    /**
+     * liveness
+     * Iterate to a fixed point for the set live at the loop head with
+     * recording off, then make one recording pass with that set.  The
+     * hoisted expressions are reads of their temporaries inside the loop
+     * and are computed, defining the temporaries, before it.
+     */
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        List<ExpNode> hoisted = hoisted();
+        for (int i = 0; i < hoisted.size(); i++) {
+            hoisted.get(i).setValueIn(myTemps.get(i));
+        }
+        Set<SemSym> exit = new HashSet<SemSym>(live);
+        Set<SemSym> head = new HashSet<SemSym>();
+        ra.enterLoop(Profile.trips(this, RegAlloc.GUESSED_TRIPS));
+        boolean recording = ra.setRecording(false);
+        while (true) {
+            Set<SemSym> next = headLiveness(head, exit, ra);
+            if (next.equals(head)) {
+                break;
+            }
+            head = next;
+        }
+        ra.setRecording(recording);
+        if (recording) {
+            headLiveness(head, exit, ra);
+        }
+        ra.exitLoop(head);
+        live.clear();
+        live.addAll(head);
+        for (int i = hoisted.size() - 1; i >= 0; i--) {
+            hoisted.get(i).setValueIn(null);
+            ra.def(myTemps.get(i), live, null);
+            hoisted.get(i).liveness(live, ra);
+        }
+    }
+
+    // one backwards pass over the body and the test
+    private Set<SemSym> headLiveness(Set<SemSym> head, Set<SemSym> exit,
+                                     RegAlloc ra) {
+        Set<SemSym> live = new HashSet<SemSym>(head);
+        myStmtList.liveness(live, ra);
+        live.addAll(exit);
+        myExp.liveness(live, ra);
+        return live;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1334,10 +2504,18 @@ class WhileStmtNode extends StmtNode {
         p.println("}");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myExp, myDeclList, myStmtList);
+    }
+
     // 3 kids
     private ExpNode myExp;
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
+
+    // loop invariants and the temporaries that hold them
+    private List<ExpNode> myHoisted;
+    private List<SemSym> myTemps;
 }
 
 class CallStmtNode extends StmtNode {
@@ -1361,8 +2539,11 @@ class CallStmtNode extends StmtNode {
     }
 
     public void codeGen(){
-	myCall.codeGen();
-	Codegen.genPop(Codegen.T0);
+	myCall.genEffect();
+    }
+
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        myCall.liveness(live, ra);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1371,6 +2552,10 @@ class CallStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myCall);
+    }
+
     // 1 kid
     private CallExpNode myCall;
 }
@@ -1419,10 +2604,56 @@ class ReturnStmtNode extends StmtNode {
 
 
     public void codeGen(){
-	myExp.codeGen(); //Places result into T0
-	Codegen.genPop(Codegen.T0);
-	Codegen.generate("addi", Codegen.V0, Codegen.T0, 0);
-	//Codegen.generate("move", Codegen.V0, Codegen.T0);
+	FnDeclNode fn = FnDeclNode.tailContext();
+	if (fn != null && tailCall() != null) {
+		fn.genTailCall(tailCall());
+		return;
+	}
+	if (myExp instanceof CallExpNode) {
+		((CallExpNode)myExp).genEffect(); //result is left in V0
+	} else if (myExp != null) {
+		myExp.codeGen(); //result is pushed onto top of stack
+		Codegen.genPop(Codegen.V0);
+	}
+	if (!myFallsThrough) {
+		Codegen.generate("j", Codegen.fnExitLabel); //leave through the epilogue
+	}
+    }
+
+    /**
+     * This is the last statement of the function body, so it can fall
+     * through to the epilogue instead of jumping there.
+     */
+    public void setFallsThrough() {
+        myFallsThrough = true;
+    }
+
+    /**
+     * Return the call this statement returns the value of, if it is a
+     * call that is not inlined; null otherwise.
+     */
+    private CallExpNode tailCall() {
+        if (!(myExp instanceof CallExpNode)) {
+            return null;
+        }
+        CallExpNode call = (CallExpNode)myExp;
+        if (Inliner.target(call) != null) {
+            return null;
+        }
+        return call;
+    }
+
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        FnDeclNode fn = FnDeclNode.tailContext();
+        if (fn != null && tailCall() != null) {
+            fn.tailLiveness(tailCall(), live, ra);
+            return;
+        }
+        live.clear();  // only what the caller uses is live after a return
+        live.addAll(ra.returnLive());
+        if (myExp != null) {
+            myExp.liveness(live, ra);
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1435,8 +2666,16 @@ class ReturnStmtNode extends StmtNode {
         p.println(";");
     }
 
+    public List<ASTnode> kids() {
+        if (myExp == null) {
+            return new ArrayList<ASTnode>();
+        }
+        return Arrays.<ASTnode>asList(myExp);
+    }
+
     // 1 kid
     private ExpNode myExp; // possibly null
+    private boolean myFallsThrough = false;
 }
 
 // **********************************************************************
@@ -1456,6 +2695,125 @@ abstract class ExpNode extends ASTnode {
     public void genAddr(){
 	//do nothing
     }
+
+    /**
+     * genEffect
+     * Generate this expression for its effects only, where nothing uses
+     * its value (an assignment or call used as a statement): unlike
+     * codeGen, it leaves nothing on the stack.  By default the value is
+     * computed and dropped.
+     */
+    public void genEffect() {
+	codeGen();
+	Codegen.genDrop();
+    }
+
+    /**
+     * liveness
+     * Default version for nodes that read no variables: given the set of
+     * variables live after this expression, update it to the set live
+     * before it.
+     */
+    public void liveness(Set<SemSym> live, RegAlloc ra) { }
+
+    /**
+     * Take this expression's value from temp instead of computing it (a
+     * loop hoisted it and computed it into temp); null computes it again.
+     */
+    public void setValueIn(SemSym temp) {
+        myValueIn = temp;
+    }
+
+    /**
+     * Also leave this expression's value in temp when computing it (later
+     * copies of the expression take it from there); null stops saving it.
+     */
+    public void setSavedIn(SemSym temp) {
+        mySavedIn = temp;
+    }
+
+    /**
+     * genValueIn
+     * If the value is in a temporary, push it and return true.  The
+     * codeGen methods of the expressions that can be hoisted call this
+     * first.  If the value is to be saved, compute it, copy it into the
+     * temporary and return true.
+     */
+    protected boolean genValueIn() {
+	if (mySavedIn != null) {
+		SemSym temp = mySavedIn;
+		mySavedIn = null;
+		codeGen();
+		mySavedIn = temp;
+		if (temp.getRegister() != null) {
+			Codegen.genTop(temp.getRegister());
+		} else {
+			Codegen.genTop(Codegen.T0);
+			Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP,
+			                        temp.getSymOffsetSize());
+		}
+		return true;
+	}
+	if (myValueIn == null) {
+		return false;
+	}
+	if (myValueIn.getRegister() != null) {
+		Codegen.genPush(myValueIn.getRegister());
+	} else {
+		Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP,
+		                        myValueIn.getSymOffsetSize());
+		Codegen.genPush(Codegen.T0);
+	}
+	return true;
+    }
+
+    /**
+     * genCond
+     * Generate this boolean expression as jump code: branch to target if
+     * its value is jumpIf, and fall through otherwise.  Nothing is left
+     * on the stack.
+     */
+    public void genCond(String target, boolean jumpIf) {
+	if (myValueIn != null || mySavedIn != null || !Options.jumpCode) {
+		genValueBranch(target, jumpIf);
+	} else {
+		genBranch(target, jumpIf);
+	}
+    }
+
+    /**
+     * genBranch
+     * The jump code of this expression.  By default the value is computed
+     * and tested; comparisons and logical operators branch directly.
+     */
+    protected void genBranch(String target, boolean jumpIf) {
+	genValueBranch(target, jumpIf);
+    }
+
+    private void genValueBranch(String target, boolean jumpIf) {
+	codeGen();
+	Codegen.genPop(Codegen.T0);
+	Codegen.generate(jumpIf ? "bne" : "beq", Codegen.T0, "$zero", target);
+    }
+
+    /**
+     * If the value is in a temporary, its liveness is a use of the
+     * temporary; return true if so.  Saving the value defines the
+     * temporary, and the expression is still walked.
+     */
+    protected boolean valueInLiveness(Set<SemSym> live, RegAlloc ra) {
+        if (mySavedIn != null) {
+            ra.def(mySavedIn, live, null);
+        }
+        if (myValueIn == null) {
+            return false;
+        }
+        ra.use(myValueIn, live);
+        return true;
+    }
+
+    private SemSym myValueIn;
+    private SemSym mySavedIn;
 }
 
 class IntLitNode extends ExpNode {
@@ -1487,6 +2845,13 @@ class IntLitNode extends ExpNode {
     }
 
 
+    /**
+     * Return the value of this literal.
+     */
+    public int value() {
+        return myIntVal;
+    }
+
     public void codeGen(){
 	Codegen.generate("li", Codegen.T0, myIntVal);
 	Codegen.genPush(Codegen.T0);
@@ -1529,13 +2894,15 @@ class StringLitNode extends ExpNode {
         return new StringType();
     }
 
+    /**
+     * Return the characters of this literal, escapes decoded.
+     */
+    public String chars() {
+        return StringPool.decode(myStrVal);
+    }
+
     public void codeGen(){
-	String label = Codegen.nextLabel();
-	Codegen.generate(".data");
-      	Codegen.p.print(label + ":");
-	Codegen.p.println("\t.asciiz " + myStrVal);
-	Codegen.generate(".text");
-	Codegen.generate("la", Codegen.T0, label);
+	Codegen.generate("la", Codegen.T0, StringPool.label(myStrVal));
 	Codegen.genPush(Codegen.T0);
     }
 
@@ -1580,6 +2947,12 @@ class TrueNode extends ExpNode {
 	    Codegen.genPush(Codegen.T0);
     }
 
+    protected void genBranch(String target, boolean jumpIf) {
+	if (jumpIf) {
+		Codegen.generate("j", target);
+	}
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("true");
     }
@@ -1621,6 +2994,13 @@ class FalseNode extends ExpNode {
 	Codegen.genPush(Codegen.T0);
 
     }
+
+    protected void genBranch(String target, boolean jumpIf) {
+	if (!jumpIf) {
+		Codegen.generate("j", target);
+	}
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("false");
     }
@@ -1706,8 +3086,15 @@ class IdNode extends ExpNode {
     }
 
     public void codeGen(){
+	if(genValueIn()){
+		return;
+	}
+	if(mySym.getRegister() != null){
+		Codegen.genPush(mySym.getRegister());
+		return;
+	}
 	if(mySym.isGlobal()){
-		Codegen.generate("lw", Codegen.T0, "_"+ myStrVal);
+		genGlobal("lw", Codegen.T0, 0);
 	}
 	else{
 		int offset = mySym.getSymOffsetSize();
@@ -1716,12 +3103,39 @@ class IdNode extends ExpNode {
 	Codegen.genPush(Codegen.T0);
     }
 
+    protected void genBranch(String target, boolean jumpIf) {
+	if (mySym.getRegister() == null) {
+		super.genBranch(target, jumpIf);
+		return;
+	}
+	Codegen.generate(jumpIf ? "bne" : "beq", mySym.getRegister(), "$zero",
+	                 target);
+    }
 
+    /**
+     * Store the value in register reg into this variable.
+     */
+    public void genStore(String reg){
+	if(mySym.getRegister() != null){
+		Codegen.generate("move", mySym.getRegister(), reg);
+	}
+	else if(mySym.isGlobal()){
+		genGlobal("sw", reg, 0);
+	}
+	else{
+		Codegen.generateIndexed("sw", reg, Codegen.FP, mySym.getSymOffsetSize());
+	}
+    }
 
     public void genAddr(){
+	if(mySym.getRegister() != null){
+		System.err.println("address of register variable " + myStrVal +
+		                   " in IdNode.genAddr");
+		System.exit(-1);
+	}
 	int offset = mySym.getSymOffsetSize();
 	if(mySym.isGlobal()){
-		Codegen.generate("la", Codegen.T0, "_"+ myStrVal);
+		genGlobal("la", Codegen.T0, 0);
 	}
 	else{
 		Codegen.generateIndexed("la", Codegen.T0, Codegen.FP, offset);
@@ -1730,6 +3144,27 @@ class IdNode extends ExpNode {
 
     }
 
+    /**
+     * Generate "op reg, address" for the address offset bytes into this
+     * global: one $gp-relative instruction if the global is in the small
+     * data, a label (which the assembler turns into a lui pair) if not.
+     */
+    public void genGlobal(String op, String reg, int offset){
+	if (SmallData.contains(mySym)) {
+		Codegen.generateIndexed(op, reg, Codegen.GP,
+		                        SmallData.offset(mySym) + offset);
+	} else {
+		Codegen.generate(op, reg, "_" + myStrVal +
+		                 (offset == 0 ? "" : "+" + offset));
+	}
+    }
+
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        if (!valueInLiveness(live, ra)) {
+            ra.use(mySym, live);
+        }
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print(myStrVal);
         if (mySym != null) {
@@ -1875,8 +3310,77 @@ class DotAccessExpNode extends ExpNode {
         return myId.typeCheck();
     }
 
+    /**
+     * codeGen
+     * However deep the access, the field is at a fixed offset from the
+     * variable left of the first dot, so it is loaded with one
+     * instruction.  Bool fields are single bytes.
+     */
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
+	genLoad(Codegen.T0);
+	Codegen.genPush(Codegen.T0);
+    }
+
+    public void genAddr(){
+	genAccess("la", Codegen.T0);
+	Codegen.genPush(Codegen.T0);
+    }
+
+    /**
+     * Load the field into register reg.
+     */
+    public void genLoad(String reg){
+	genAccess(isByte() ? "lbu" : "lw", reg);
+    }
+
+    /**
+     * Store the value in register reg into the field.
+     */
+    public void genStore(String reg){
+	genAccess(isByte() ? "sb" : "sw", reg);
+    }
+
+    // generate "op reg, address of the field"
+    private void genAccess(String op, String reg){
+	IdNode root = root();
+	int offset = fieldOffset();
+	if (root.sym().isGlobal()) {
+		root.genGlobal(op, reg, offset);
+	} else {
+		Codegen.generateIndexed(op, reg, Codegen.FP,
+		                        root.sym().getSymOffsetSize() + offset);
+	}
+    }
+
+    /**
+     * Return the struct variable left of the first dot.
+     */
+    public IdNode root() {
+	if (myLoc instanceof DotAccessExpNode) {
+		return ((DotAccessExpNode)myLoc).root();
+	}
+	return (IdNode)myLoc;
+    }
 
+    /**
+     * Return the offset of the field from the start of the root variable.
+     */
+    public int fieldOffset() {
+	int offset = myId.sym().getSymOffsetSize();
+	if (myLoc instanceof DotAccessExpNode) {
+		offset += ((DotAccessExpNode)myLoc).fieldOffset();
+	}
+	return offset;
+    }
+
+    /**
+     * Is the field a bool, kept in a single byte?
+     */
+    public boolean isByte() {
+	return myId.sym().getType().isBoolType();
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1885,6 +3389,18 @@ class DotAccessExpNode extends ExpNode {
         myId.unparse(p, 0);
     }
 
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        valueInLiveness(live, ra);
+    }
+
+    /**
+     * The field name is not a kid for walks: its symbol belongs to the
+     * struct, not to the function containing this expression.
+     */
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myLoc);
+    }
+
     // 2 kids
     private ExpNode myLoc;
     private IdNode myId;
@@ -1959,19 +3475,50 @@ class AssignNode extends ExpNode {
         return retType;
     }
 
+    /**
+     * codeGen
+     * The value of an assignment is the value assigned, left on the stack
+     * for the enclosing expression, as in x = y = 0.
+     */
     public void codeGen(){
-	int offset = ((IdNode)myLhs).sym().getSymOffsetSize();
-	System.out.println(offset);
+	genEffect();
+	Codegen.genPush(Codegen.T0);
+    }
+
+    /**
+     * genEffect
+     * Store the value without pushing a copy; it is left in T0.
+     */
+    public void genEffect(){
 	//1. Eval the RHS expression, leaving the value on the stack
 	myExp.codeGen(); //result is pushed onto top of stack
-	//2. Push the address of the LHS ID onto the stack
-	((IdNode)myLhs).genAddr(); //Addr of LHS pushed onto stack
-	//3. Store the value into the address
-	Codegen.genPop(Codegen.T1); //place addr into T0 by popping from stack
-	Codegen.genPop(Codegen.T0); //place value to store into T1
-	Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, offset); //
-	//4. Leave a copy of the value on the stack
-	Codegen.genPush(Codegen.T0);
+	if (myLhs instanceof IdNode) {
+		//2. Store straight into the variable (memory or register)
+		Codegen.genPop(Codegen.T0);
+		((IdNode)myLhs).genStore(Codegen.T0);
+	} else if (myLhs instanceof DotAccessExpNode) {
+		//2. Store straight into the field
+		Codegen.genPop(Codegen.T0);
+		((DotAccessExpNode)myLhs).genStore(Codegen.T0);
+	} else {
+		//2. Push the address of the LHS onto the stack
+		myLhs.genAddr(); //Addr of LHS pushed onto stack
+		//3. Store the value into the address
+		Codegen.genPop(Codegen.T1); //place addr into T1 by popping from stack
+		Codegen.genPop(Codegen.T0); //place value to store into T0
+		Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
+	}
+    }
+
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        if (myLhs instanceof IdNode) {
+            SemSym src = null;
+            if (myExp instanceof IdNode) {
+                src = ((IdNode)myExp).sym();
+            }
+            ra.def(((IdNode)myLhs).sym(), live, src);
+        }
+        myExp.liveness(live, ra);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1982,6 +3529,10 @@ class AssignNode extends ExpNode {
         if (indent != -1)  p.print(")");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myLhs, myExp);
+    }
+
     // 2 kids
     private ExpNode myLhs;
     private ExpNode myExp;
@@ -1998,6 +3549,27 @@ class CallExpNode extends ExpNode {
         myExpList = new ExpListNode(new LinkedList<ExpNode>());
     }
 
+    /**
+     * Return the symbol of the function called.
+     */
+    public SemSym callee() {
+        return myId.sym();
+    }
+
+    /**
+     * Return the name of the function called.
+     */
+    public String calleeName() {
+        return myId.name();
+    }
+
+    /**
+     * Return the actuals.
+     */
+    public ExpListNode args() {
+        return myExpList;
+    }
+
     /**
      * Return the line number for this call node.
      * The line number is the one corresponding to the function name.
@@ -2052,13 +3624,36 @@ class CallExpNode extends ExpNode {
     }
 
     public void codeGen(){
-	//1. Evaluate each actual parameter, push the values onto the stack
-	myExpList.codeGen();
-	//2. Jump and link (Jump to the called function, leaving the return addr in the RA register)
-	myId.genJumpAndLink();
+	genEffect();
 	//3. Push the returned value (V0 or F0) onto the stack
 	Codegen.genPush(Codegen.V0);
-	
+    }
+
+    /**
+     * genEffect
+     * Make the call, leaving the returned value in V0 only.
+     */
+    public void genEffect(){
+	FnDeclNode inline = Inliner.target(this);
+	if (inline != null) {
+		inline.genInline(myExpList);
+		return;
+	}
+	//1. Evaluate each actual parameter, put the values on the stack
+	myExpList.genActuals();
+	//2. Jump and link (Jump to the called function, leaving the return addr in the RA register)
+	myId.genJumpAndLink();
+	Codegen.calleePopped(myExpList.size()); //the callee pops the actuals
+    }
+
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        FnDeclNode inline = Inliner.target(this);
+        if (inline != null) {
+            inline.inlineLiveness(live, ra);
+        } else {
+            ra.call(live);
+        }
+        myExpList.liveness(live, ra);
     }
 
     // ** unparse **
@@ -2071,6 +3666,10 @@ class CallExpNode extends ExpNode {
         p.print(")");
     }
 
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myId, myExpList);
+    }
+
     // 2 kids
     private IdNode myId;
     private ExpListNode myExpList;  // possibly null
@@ -2109,6 +3708,16 @@ abstract class UnaryExpNode extends ExpNode {
         myExp.nameAnalysis(symTab);
     }
 
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        if (!valueInLiveness(live, ra)) {
+            myExp.liveness(live, ra);
+        }
+    }
+
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myExp);
+    }
+
     // one child
     protected ExpNode myExp;
 }
@@ -2149,6 +3758,22 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2.nameAnalysis(symTab);
     }
 
+    /**
+     * liveness
+     * The right operand is evaluated last, so it is walked first.
+     */
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        if (valueInLiveness(live, ra)) {
+            return;
+        }
+        myExp2.liveness(live, ra);
+        myExp1.liveness(live, ra);
+    }
+
+    public List<ASTnode> kids() {
+        return Arrays.<ASTnode>asList(myExp1, myExp2);
+    }
+
     // two kids
     protected ExpNode myExp1;
     protected ExpNode myExp2;
@@ -2184,6 +3809,9 @@ class UnaryMinusNode extends UnaryExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
 	myExp.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T0); // pop myExp1 result into T0
 	Codegen.generate("li", Codegen.T1, 0);
@@ -2227,14 +3855,19 @@ class NotNode extends UnaryExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
 	    myExp.codeGen(); // will push result to stack
 	    Codegen.genPop(Codegen.T0); // pop myExp1 result into T0
-            Codegen.generate("li", Codegen.T1, 0);
-      	    Codegen.generate("addi", Codegen.T1, Codegen.T1, -1);
-      	    Codegen.generate("xor", Codegen.T0, Codegen.T0, Codegen.T1);
+	    Codegen.generate("xori", Codegen.T0, Codegen.T0, 1); //flip the low bit
 	    Codegen.genPush(Codegen.T0);
     }
 
+    protected void genBranch(String target, boolean jumpIf) {
+	myExp.genCond(target, !jumpIf);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(!");
         myExp.unparse(p, 0);
@@ -2282,6 +3915,28 @@ abstract class ArithmeticExpNode extends BinaryExpNode {
 
     }
 
+    /**
+     * Return the value of exp if it is an int literal, or the negation
+     * of one, for strength reduction; otherwise return null.
+     */
+    protected static Integer constant(ExpNode exp) {
+        if (!Options.strength) {
+            return null;
+        }
+        if (exp instanceof IntLitNode) {
+            return ((IntLitNode)exp).value();
+        }
+        if (exp instanceof UnaryMinusNode) {
+            Integer c = constant((ExpNode)exp.kids().get(0));
+            return c == null ? null : -c;
+        }
+        return null;
+    }
+
+    // is c a power of two (as an unsigned number, so 2^31 counts)?
+    protected static boolean isPowerOf2(long c) {
+        return c != 0 && (c & (c - 1)) == 0;
+    }
 }
 
 abstract class LogicalExpNode extends BinaryExpNode {
@@ -2319,6 +3974,21 @@ abstract class LogicalExpNode extends BinaryExpNode {
     public void codeGen(){
 
     }
+
+    /**
+     * liveness
+     * The right operand may be skipped, so what is live after the left
+     * operand is the union of both paths.
+     */
+    public void liveness(Set<SemSym> live, RegAlloc ra) {
+        if (valueInLiveness(live, ra)) {
+            return;
+        }
+        Set<SemSym> rhsLive = new HashSet<SemSym>(live);
+        myExp2.liveness(rhsLive, ra);
+        live.addAll(rhsLive);
+        myExp1.liveness(live, ra);
+    }
 }
 
 abstract class EqualityExpNode extends BinaryExpNode {
@@ -2368,12 +4038,94 @@ abstract class EqualityExpNode extends BinaryExpNode {
             retType = new ErrorType();
         }
 
+        myStrings = type1.isStringType() && type2.isStringType();
         return retType;
     }
 
     public void codeGen(){
 
     }
+
+    /**
+     * genBranch
+     * Ints and bools are compared with beq or bne, strings with the
+     * runtime routine (or at compile time).
+     */
+    protected void genBranch(String target, boolean jumpIf) {
+	if (myStrings) {
+		Boolean same = foldedStrings();
+		if (same != null) {
+			if (same == testsEqual() == jumpIf) {
+				Codegen.generate("j", target);
+			}
+			return;
+		}
+		genStreq();
+		Codegen.generate(jumpIf == testsEqual() ? "bne" : "beq",
+		                 Codegen.V0, "$zero", target);
+		return;
+	}
+	myExp1.codeGen();
+	myExp2.codeGen();
+	Codegen.genPop(Codegen.T1);
+	Codegen.genPop(Codegen.T0);
+	Codegen.generate(jumpIf == testsEqual() ? "beq" : "bne",
+	                 Codegen.T0, Codegen.T1, target);
+    }
+
+    /**
+     * genStrings
+     * Push the value of a comparison of two strings.
+     */
+    protected void genStrings() {
+	Boolean same = foldedStrings();
+	if (same != null) {
+		Codegen.generate("li", Codegen.T0, same == testsEqual() ? 1 : 0);
+		Codegen.genPush(Codegen.T0);
+		return;
+	}
+	genStreq();
+	if (!testsEqual()) {
+		Codegen.generate("xori", Codegen.V0, Codegen.V0, 1);
+	}
+	Codegen.genPush(Codegen.V0);
+    }
+
+    // compare the two strings with the runtime routine; $v0 is 1 if they
+    // are equal
+    private void genStreq() {
+	myExp1.codeGen();
+	myExp2.codeGen();
+	Codegen.genPop(Codegen.A1);
+	Codegen.genPop(Codegen.A0);
+	Codegen.generate("jal", RuntimeLib.streq());
+    }
+
+    // the result of comparing two literals (equal exactly when they
+    // intern to the same pool entry), or null if they are not both
+    // literals
+    private Boolean foldedStrings() {
+	if (!Options.fold || !(myExp1 instanceof StringLitNode) ||
+	    !(myExp2 instanceof StringLitNode)) {
+		return null;
+	}
+	return ((StringLitNode)myExp1).chars().equals(((StringLitNode)myExp2).chars());
+    }
+
+    /**
+     * Return true for ==, false for !=.
+     */
+    abstract protected boolean testsEqual();
+
+    /**
+     * Return true if the operands are strings (known after typeCheck).
+     */
+    protected boolean comparesStrings() {
+        return myStrings;
+    }
+
+    // set by typeCheck: are the operands strings?
+    private boolean myStrings;
 }
 
 abstract class RelationalExpNode extends BinaryExpNode {
@@ -2411,6 +4163,19 @@ abstract class RelationalExpNode extends BinaryExpNode {
     public void codeGen(){
 
     }
+
+    protected void genBranch(String target, boolean jumpIf) {
+	myExp1.codeGen();
+	myExp2.codeGen();
+	Codegen.genPop(Codegen.T1);
+	Codegen.genPop(Codegen.T0);
+	Codegen.generate(branchOp(jumpIf), Codegen.T0, Codegen.T1, target);
+    }
+
+    /**
+     * Return the branch taken when the comparison has the value jumpIf.
+     */
+    abstract protected String branchOp(boolean jumpIf);
 }
 
 class PlusNode extends ArithmeticExpNode {
@@ -2427,6 +4192,9 @@ class PlusNode extends ArithmeticExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
 	myExp1.codeGen(); // will push result to stack
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
@@ -2450,6 +4218,9 @@ class MinusNode extends ArithmeticExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
 	myExp1.codeGen(); // will push result to stack
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
@@ -2474,6 +4245,23 @@ class TimesNode extends ArithmeticExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
+	Integer c1 = constant(myExp1);
+	Integer c2 = constant(myExp2);
+	if (c1 != null || c2 != null) {
+		//only the other operand needs code; a literal has no effects
+		if (c2 != null) {
+			myExp1.codeGen();
+		} else {
+			myExp2.codeGen();
+		}
+		Codegen.genPop(Codegen.T0);
+		genMultiply(c2 != null ? c2 : c1);
+		Codegen.genPush(Codegen.T0);
+		return;
+	}
 	myExp1.codeGen(); // will push result to stack
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
@@ -2482,6 +4270,59 @@ class TimesNode extends ArithmeticExpNode {
 	Codegen.generateWithComment("mflo", "Move from lo to T1", Codegen.T1);
 	Codegen.genPush(Codegen.T1); // push result to stack
     }
+
+    /**
+     * genMultiply
+     * T0 = T0 * c, using T1 as scratch.  Powers of two become a shift,
+     * and constants of the form 2^a + 2^b or 2^a - 2^b (and their
+     * negations) a shift-add pair; everything else still uses mult.
+     * Shifts and adds wrap around exactly as the low word of mult does.
+     */
+    private void genMultiply(int c) {
+	if (c == 0) {
+		Codegen.generate("li", Codegen.T0, 0);
+	} else if (c == 1) {
+		//nothing to do
+	} else if (isPowerOf2(c & 0xffffffffL)) {
+		Codegen.generate("sll", Codegen.T0, Codegen.T0,
+		                 Integer.numberOfTrailingZeros(c));
+	} else if (c > 0 && isShiftAdd(c)) {
+		genShiftAdd(c);
+	} else if (c < 0 && isShiftAdd(-c)) {
+		genShiftAdd(-c);
+		Codegen.generate("subu", Codegen.T0, "$zero", Codegen.T0);
+	} else {
+		Codegen.generate("li", Codegen.T1, c);
+		Codegen.generateWithComment("mult", "Multiplication Operation", Codegen.T0, Codegen.T1);
+		Codegen.generate("mflo", Codegen.T0);
+	}
+    }
+
+    // can c > 0 be made from two shifts and an add or subtract?
+    private static boolean isShiftAdd(int c) {
+	int low = Integer.lowestOneBit(c);
+	return isPowerOf2(c - low) || isPowerOf2((c & 0xffffffffL) + low);
+    }
+
+    private void genShiftAdd(int c) {
+	int low = Integer.lowestOneBit(c);
+	int b = Integer.numberOfTrailingZeros(c);
+	String op;
+	int a;
+	if (isPowerOf2(c - low)) {
+		op = "addu"; // c = 2^a + 2^b
+		a = Integer.numberOfTrailingZeros(c - low);
+	} else {
+		op = "subu"; // c = 2^a - 2^b
+		a = Long.numberOfTrailingZeros((c & 0xffffffffL) + low);
+	}
+	Codegen.generateWithComment("sll", "times " + c, Codegen.T1, Codegen.T0,
+	                            Integer.toString(a));
+	if (b > 0) {
+		Codegen.generate("sll", Codegen.T0, Codegen.T0, b);
+	}
+	Codegen.generate(op, Codegen.T0, Codegen.T1, Codegen.T0);
+    }
 }
 
 class DivideNode extends ArithmeticExpNode {
@@ -2498,13 +4339,109 @@ class DivideNode extends ArithmeticExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
+	Integer c = constant(myExp2);
 	myExp1.codeGen(); // will push result to stack
+	if (c != null && c != 0) {
+		Codegen.genPop(Codegen.T0);
+		genDivide(c);
+		Codegen.genPush(Codegen.T0);
+		return;
+	}
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
 	Codegen.genPop(Codegen.T0); // pop myExp1 result into T0
-	Codegen.generate("div", "Division Operation", Codegen.T1, Codegen.T0);
-	Codegen.generate("mflo", "Move from lo to T1", Codegen.T1);
-	Codegen.genPush(Codegen.T1); // push result to stack
+	Codegen.generateWithComment("div", "Division Operation", Codegen.T0, Codegen.T1);
+	Codegen.generateWithComment("mflo", "Move from lo to T0", Codegen.T0);
+	Codegen.genPush(Codegen.T0); // push result to stack
+    }
+
+    /**
+     * genDivide
+     * T0 = T0 / d for a constant d != 0, rounding toward zero as div
+     * does, using T1 as scratch.  A power of two is an arithmetic shift
+     * after adding 2^k - 1 to negative dividends; any other divisor is a
+     * multiplication by a "magic" reciprocal, keeping the high word
+     * (Granlund and Montgomery; Warren, Hacker's Delight, 10-4).
+     */
+    private void genDivide(int d) {
+	long ad = Math.abs((long)d);
+	if (d == 1) {
+		//nothing to do
+	} else if (d == -1) {
+		Codegen.generate("subu", Codegen.T0, "$zero", Codegen.T0);
+	} else if (isPowerOf2(ad)) {
+		int k = Long.numberOfTrailingZeros(ad);
+		//T1 = 2^k - 1 if T0 is negative, else 0
+		if (k == 1) {
+			Codegen.generate("srl", Codegen.T1, Codegen.T0, 31);
+		} else {
+			Codegen.generate("sra", Codegen.T1, Codegen.T0, 31);
+			Codegen.generate("srl", Codegen.T1, Codegen.T1, 32 - k);
+		}
+		Codegen.generate("addu", Codegen.T0, Codegen.T0, Codegen.T1);
+		Codegen.generateWithComment("sra", "divided by " + d, Codegen.T0,
+		                            Codegen.T0, Integer.toString(k));
+		if (d < 0) {
+			Codegen.generate("subu", Codegen.T0, "$zero", Codegen.T0);
+		}
+	} else {
+		int[] magic = magic(d);
+		int m = magic[0];
+		int shift = magic[1];
+		Codegen.generate("li", Codegen.T1, m);
+		Codegen.generateWithComment("mult", "divided by " + d, Codegen.T0, Codegen.T1);
+		Codegen.generate("mfhi", Codegen.T1);
+		if (d > 0 && m < 0) {
+			Codegen.generate("addu", Codegen.T1, Codegen.T1, Codegen.T0);
+		} else if (d < 0 && m > 0) {
+			Codegen.generate("subu", Codegen.T1, Codegen.T1, Codegen.T0);
+		}
+		if (shift > 0) {
+			Codegen.generate("sra", Codegen.T1, Codegen.T1, shift);
+		}
+		//add one to a negative quotient to round toward zero
+		Codegen.generate("srl", Codegen.T0, Codegen.T1, 31);
+		Codegen.generate("addu", Codegen.T0, Codegen.T1, Codegen.T0);
+	}
+    }
+
+    /**
+     * Return the magic multiplier and shift for signed division by d,
+     * where |d| >= 2 is not a power of two (Hacker's Delight, figure
+     * 10-1, in 64-bit arithmetic so nothing wraps).
+     */
+    private static int[] magic(int d) {
+	final long two31 = 0x80000000L;
+	long ad = Math.abs((long)d);
+	long t = two31 + (d < 0 ? 1 : 0);
+	long anc = t - 1 - t % ad; // absolute value of nc
+	int p = 31;
+	long q1 = two31 / anc;     // 2^p / |nc|
+	long r1 = two31 - q1 * anc;
+	long q2 = two31 / ad;      // 2^p / |d|
+	long r2 = two31 - q2 * ad;
+	long delta;
+	do {
+		p++;
+		q1 = 2 * q1;
+		r1 = 2 * r1;
+		if (r1 >= anc) {
+			q1++;
+			r1 -= anc;
+		}
+		q2 = 2 * q2;
+		r2 = 2 * r2;
+		if (r2 >= ad) {
+			q2++;
+			r2 -= ad;
+		}
+		delta = ad - r2;
+	} while (q1 < delta || (q1 == delta && r1 == 0));
+	int m = (int)(q2 + 1);
+	return new int[] { d < 0 ? -m : m, p - 32 };
     }
 }
 
@@ -2522,22 +4459,35 @@ class AndNode extends LogicalExpNode {
     }
 
     public void codeGen(){
-	//generate jump label
-	String labelString1 = Codegen.nextLabel();
-	Codegen.generate("li", Codegen.T1, "1", "Load truthy number into register T1");
-	myExp1.codeGen(); // will push result to stack
-	Codegen.genPop(Codegen.T0); // pop myExp1 result into T0
-	Codegen.generate("bne", Codegen.T0, Codegen.T1, labelString1); //if myExp1 != True, jump to label
-	//else, evaluate right operand, that value is result
-	myExp2.codeGen(); // will push result to stack
-	Codegen.genPop(Codegen.T0); //pop myExp2 result into T0
-	Codegen.generate("bne", Codegen.T0, Codegen.T1, labelString1); //if myExp2 != True, jump to label
-	//else, value of the whole expression is true
-	Codegen.genPush(Codegen.T1); //push true to stack
-	//jump here
-	Codegen.genLabel(labelString1);
-	Codegen.generate("li", Codegen.T1, "0", "Load falsey number into register T1");
-	Codegen.genPush(Codegen.T1); //push false to stack
+	if (genValueIn()) {
+		return;
+	}
+	String falseLabel = Codegen.nextLabel();
+	String doneLabel = Codegen.nextLabel();
+	genBranch(falseLabel, false);
+	Codegen.generate("li", Codegen.T0, 1);
+	Codegen.generate("j", doneLabel);
+	Codegen.genLabel(falseLabel);
+	Codegen.generate("li", Codegen.T0, 0);
+	Codegen.genLabel(doneLabel);
+	Codegen.genPush(Codegen.T0); //push the result to stack
+    }
+
+    /**
+     * genBranch
+     * If either operand is false the whole is false; the right operand
+     * is skipped when the left one settles it.
+     */
+    protected void genBranch(String target, boolean jumpIf) {
+	if (jumpIf) {
+		String skip = Codegen.nextLabel();
+		myExp1.genCond(skip, false);
+		myExp2.genCond(target, true);
+		Codegen.genLabel(skip);
+	} else {
+		myExp1.genCond(target, false);
+		myExp2.genCond(target, false);
+	}
     }
 }
 
@@ -2555,22 +4505,35 @@ class OrNode extends LogicalExpNode {
     }
 
     public void codeGen(){
-	//generate jump label
-	String labelString1 = Codegen.nextLabel();
-	Codegen.generate("li", Codegen.T1, "1", "Load truthy number into register T1");
-	myExp1.codeGen(); //push result of myExp1 to stack
-	Codegen.genPop(Codegen.T0); //pop myExp1 result into T0
-	Codegen.generate("beq", Codegen.T0, Codegen.T1, labelString1); //if myExp1 == True, jump to label
-	//else evaluate the right operand, the value is result
-	myExp2.codeGen();
-	Codegen.genPop(Codegen.T0); //pop result into T0
-	Codegen.generate("beq", Codegen.T0, Codegen.T1, labelString1); //if myExp2 == True, jump to label
-	//else, exp is false
-	Codegen.generate("li", Codegen.T1, "0", "Load falsey number into register T1");
-	Codegen.genPush(Codegen.T0);
-	//else, lhs is true, no need to evaluate rest of expression, push lhs on stack
-	Codegen.genLabel(labelString1);
-	Codegen.genPush(Codegen.T0); //push true to stack
+	if (genValueIn()) {
+		return;
+	}
+	String trueLabel = Codegen.nextLabel();
+	String doneLabel = Codegen.nextLabel();
+	genBranch(trueLabel, true);
+	Codegen.generate("li", Codegen.T0, 0);
+	Codegen.generate("j", doneLabel);
+	Codegen.genLabel(trueLabel);
+	Codegen.generate("li", Codegen.T0, 1);
+	Codegen.genLabel(doneLabel);
+	Codegen.genPush(Codegen.T0); //push the result to stack
+    }
+
+    /**
+     * genBranch
+     * If either operand is true the whole is true; the right operand
+     * is skipped when the left one settles it.
+     */
+    protected void genBranch(String target, boolean jumpIf) {
+	if (jumpIf) {
+		myExp1.genCond(target, true);
+		myExp2.genCond(target, true);
+	} else {
+		String skip = Codegen.nextLabel();
+		myExp1.genCond(skip, true);
+		myExp2.genCond(target, false);
+		Codegen.genLabel(skip);
+	}
     }
 }
 
@@ -2588,49 +4551,26 @@ class EqualsNode extends EqualityExpNode {
     }
 
     public void codeGen(){
-	String labelStr = Codegen.nextLabel();
-	String labelStr1;
-	String labelStr2;
-	String labelStr3;
+	if (genValueIn()) {
+		return;
+	}
+	if (comparesStrings()) {
+		genStrings();
+		return;
+	}
 	myExp1.codeGen(); // will push result to stack
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
 	Codegen.genPop(Codegen.T0); // pop myExp1 result into T0
-
-	//Is this string lit stuff okay??
-	if(myExp1 instanceof StringLitNode){
-		labelStr1 = Codegen.nextLabel();
-		labelStr2 = Codegen.nextLabel();
-		labelStr3 = Codegen.nextLabel();
-		Codegen.genLabel(labelStr1); //label for beginning of loop
-		Codegen.generate("lb", Codegen.V0, Codegen.T0, 0); //get next char of 1st string
-		Codegen.generate("lb", Codegen.V1, Codegen.T1, 0); //get next char of 2nd string
-		Codegen.generate("bne", Codegen.V0, Codegen.V1, labelStr2); //compare the two strings
-		Codegen.generate("li", Codegen.V1, 0); //load 0 into V1 to represent null char
-		Codegen.generate("beq", Codegen.V0, Codegen.V1, labelStr3); //if end of string, they're equal!
-		Codegen.generate("addi", Codegen.T0, Codegen.T0, 1); //increment addr1 by 1
-		Codegen.generate("addi", Codegen.T1, Codegen.T1, 1); //increment addr2 by 1
-		Codegen.generate("j", labelStr1); //jump to loop for next char
-
-		//If Not Equals
-		Codegen.genLabel(labelStr2);
-		Codegen.generate("li", Codegen.T0, 0); //load 0 for not equals
-		Codegen.generate("j", labelStr);
-		//If Equals
-		Codegen.genLabel(labelStr3);
-		Codegen.generate("li", Codegen.T0, 1); //load 1 for equals
-		Codegen.generate("j", labelStr);
-	}
-	else{
-		//if comparing ints or bools
-		Codegen.generate("li", Codegen.T0, 1); //Load 1 by default
-		Codegen.generate("beq", Codegen.T0, Codegen.T1, labelStr); //push if equal
-		Codegen.generate("li", Codegen.T0, 0); //otherwise load 0, then go to push
-	}
-	//code for any type, push to stack
-	Codegen.genLabel(labelStr);
+	//ints or bools: T0 is 1 exactly when T0 ^ T1 is 0
+	Codegen.generate("xor", Codegen.T0, Codegen.T0, Codegen.T1);
+	Codegen.generate("sltiu", Codegen.T0, Codegen.T0, 1);
 	Codegen.genPush(Codegen.T0); // push result to stack
     }
+
+    protected boolean testsEqual() {
+	return true;
+    }
 }
 
 class NotEqualsNode extends EqualityExpNode {
@@ -2647,51 +4587,26 @@ class NotEqualsNode extends EqualityExpNode {
     }
 
     public void codeGen(){
-	String labelStr = Codegen.nextLabel(); //this is needed regardless
-	//these are needed if comparing strings
-	String labelStr1;
-	String labelStr2;
-	String labelStr3;
+	if (genValueIn()) {
+		return;
+	}
+	if (comparesStrings()) {
+		genStrings();
+		return;
+	}
 	myExp1.codeGen(); // will push result to stack
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
 	Codegen.genPop(Codegen.T0); // pop myExp1 result into T0
-
-	//Is this string lit stuff okay??
-	if(myExp1 instanceof StringLitNode){
-		//generate labels
-		labelStr1 = Codegen.nextLabel();
-		labelStr2 = Codegen.nextLabel();
-		labelStr3 = Codegen.nextLabel();
-		Codegen.genLabel(labelStr1); //label for beginning of loop
-		Codegen.generate("lb", Codegen.V0, Codegen.T0, 0); //get next char of 1st string
-		Codegen.generate("lb", Codegen.V1, Codegen.T1, 0); //get next char of 2nd string
-		Codegen.generate("bne", Codegen.V0, Codegen.V1, labelStr2); //compare the two strings
-		Codegen.generate("li", Codegen.V1, 0); //load 0 into V1 to represent null char
-		Codegen.generate("beq", Codegen.V0, Codegen.V1, labelStr3); //if end of string, they're equal!
-		Codegen.generate("addi", Codegen.T0, Codegen.T0, 1); //increment addr1 by 1
-		Codegen.generate("addi", Codegen.T1, Codegen.T1, 1); //increment addr2 by 1
-		Codegen.generate("j", labelStr1); //jump to loop for next char
-
-		//If Not Equals
-		Codegen.genLabel(labelStr2);
-		Codegen.generate("li", Codegen.T0, 1); //load 1 for not equals
-		Codegen.generate("j", labelStr);
-		//If Equals
-		Codegen.genLabel(labelStr3);
-		Codegen.generate("li", Codegen.T0, 0); //load 0 for equals
-		Codegen.generate("j", labelStr);
-	}
-	else{
-		//if literal, not string
-		Codegen.generate("li", Codegen.T0, 1); //Load 1 by default
-		Codegen.generate("bne", Codegen.T0, Codegen.T1, labelStr); //push if not equal
-		Codegen.generate("li", Codegen.T0, 0); //otherwise load 0, then go to push
-	}
-	//code for any type, push to stack
-	Codegen.genLabel(labelStr);
+	//ints or bools: T0 is 1 exactly when T0 ^ T1 is not 0
+	Codegen.generate("xor", Codegen.T0, Codegen.T0, Codegen.T1);
+	Codegen.generate("sltu", Codegen.T0, "$zero", Codegen.T0);
 	Codegen.genPush(Codegen.T0); // push result to stack
     }
+
+    protected boolean testsEqual() {
+	return false;
+    }
 }
 
 class LessNode extends RelationalExpNode {
@@ -2708,6 +4623,9 @@ class LessNode extends RelationalExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
 	myExp1.codeGen(); // will push result to stack
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
@@ -2715,6 +4633,10 @@ class LessNode extends RelationalExpNode {
 	Codegen.generate("slt", Codegen.T0, Codegen.T0, Codegen.T1); //T0 has 1 if myExp1 < myExp2
 	Codegen.genPush(Codegen.T0); // push result to stack
     }
+
+    protected String branchOp(boolean jumpIf) {
+	return jumpIf ? "blt" : "bge";
+    }
 }
 
 class GreaterNode extends RelationalExpNode {
@@ -2731,14 +4653,20 @@ class GreaterNode extends RelationalExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
 	myExp1.codeGen(); // will push result to stack
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
 	Codegen.genPop(Codegen.T0); // pop myExp1 result into T0
-	Codegen.generate("addu", Codegen.T0, Codegen.T0, 1);
 	Codegen.generate("slt", Codegen.T0, Codegen.T1, Codegen.T0); //T0 has 1 if myExp1 > myExp2
 	Codegen.genPush(Codegen.T0); // push result to stack
     }
+
+    protected String branchOp(boolean jumpIf) {
+	return jumpIf ? "bgt" : "ble";
+    }
 }
 
 class LessEqNode extends RelationalExpNode {
@@ -2755,14 +4683,21 @@ class LessEqNode extends RelationalExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
 	myExp1.codeGen(); // will push result to stack
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
 	Codegen.genPop(Codegen.T0); // pop myExp1 result into T0
-	Codegen.generate("addu", Codegen.T1, Codegen.T1, 1);
-	Codegen.generate("slt", Codegen.T0, Codegen.T0, Codegen.T1); //T0 has 1 if myExp1 <= myExp2
+	Codegen.generate("slt", Codegen.T0, Codegen.T1, Codegen.T0); //T0 has 1 if myExp1 > myExp2
+	Codegen.generate("xori", Codegen.T0, Codegen.T0, 1); //so 1 if myExp1 <= myExp2
 	Codegen.genPush(Codegen.T0); // push result to stack
     }
+
+    protected String branchOp(boolean jumpIf) {
+	return jumpIf ? "ble" : "bgt";
+    }
 }
 
 class GreaterEqNode extends RelationalExpNode {
@@ -2779,11 +4714,19 @@ class GreaterEqNode extends RelationalExpNode {
     }
 
     public void codeGen(){
+	if (genValueIn()) {
+		return;
+	}
 	myExp1.codeGen(); // will push result to stack
 	myExp2.codeGen(); // will push result to stack
 	Codegen.genPop(Codegen.T1); // Pop myExp2 result into T1
 	Codegen.genPop(Codegen.T0); // pop myExp1 result into T0
-	Codegen.generate("slt", Codegen.T0, Codegen.T1, Codegen.T0); //T0 has 1 if myExp1 >= myExp2
+	Codegen.generate("slt", Codegen.T0, Codegen.T0, Codegen.T1); //T0 has 1 if myExp1 < myExp2
+	Codegen.generate("xori", Codegen.T0, Codegen.T0, 1); //so 1 if myExp1 >= myExp2
 	Codegen.genPush(Codegen.T0); // push result to stack
     }
+
+    protected String branchOp(boolean jumpIf) {
+	return jumpIf ? "bge" : "blt";
+    }
 }